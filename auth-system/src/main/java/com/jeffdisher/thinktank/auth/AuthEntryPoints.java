@@ -3,6 +3,7 @@ package com.jeffdisher.thinktank.auth;
 import java.security.PrivateKey;
 import java.util.UUID;
 
+import javax.crypto.SecretKey;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -20,12 +21,23 @@ import com.jeffdisher.thinktank.crypto.BinaryToken;
  * -POST /login/&lt;UUID&gt;
  * -GET /getid
  * -POST /logout
+ * The tokens are either signed with an EC private key or, if the validators share a secret key with us, authenticated
+ * with that (which is much cheaper for both sides).  See BinaryToken for details.
  */
 public class AuthEntryPoints {
 	// 10 seconds (should be more like 10 minutes but this helps with testing).
 	private static final long TOKEN_LONGEVITY_MILLIS = 10 * 1000L;
 
 	public static void registerEntryPoints(RestServer server, PrivateKey key) {
+		_registerEntryPoints(server, (UUID uuid, long expiryMillis) -> BinaryToken.createToken(key, uuid, expiryMillis));
+	}
+
+	public static void registerEntryPoints(RestServer server, int macKeyId, SecretKey macKey) {
+		_registerEntryPoints(server, (UUID uuid, long expiryMillis) -> BinaryToken.createMacToken(macKeyId, macKey, uuid, expiryMillis));
+	}
+
+
+	private static void _registerEntryPoints(RestServer server, TokenFactory tokenFactory) {
 		// Install handlers for modifying login state.
 		server.addPostHandler("/login", 1, (HttpServletRequest request, HttpServletResponse response, String[] pathVariables, StringMultiMap<String> formVariables, StringMultiMap<byte[]> multiPart, byte[] rawPost) -> {
 			UUID uuid;
@@ -50,7 +62,7 @@ public class AuthEntryPoints {
 			if (null != session) {
 				UUID uuid = (UUID)session.getAttribute("uuid");
 				long expiryMillis = System.currentTimeMillis() + TOKEN_LONGEVITY_MILLIS;
-				String binaryToken = BinaryToken.createToken(key, uuid, expiryMillis);
+				String binaryToken = tokenFactory.createToken(uuid, expiryMillis);
 				Cookie cookie = new Cookie("BT", binaryToken);
 				cookie.setDomain("localhost");
 				cookie.setComment(HttpCookie.SAME_SITE_STRICT_COMMENT);
@@ -71,4 +83,9 @@ public class AuthEntryPoints {
 			response.getWriter().println("logged out");
 		});
 	}
+
+
+	private static interface TokenFactory {
+		String createToken(UUID uuid, long expiryMillis);
+	}
 }
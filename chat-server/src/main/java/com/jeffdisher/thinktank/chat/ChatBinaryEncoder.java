@@ -0,0 +1,98 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import com.jeffdisher.thinktank.chat.support.StringCodec;
+import com.jeffdisher.thinktank.chat.support.UUIDCodec;
+
+
+/**
+ * Encodes chat messages for the "binary" WebSocket sub-protocol.  Each message is:
+ * -index - unsigned LEB128 varint.
+ * -sender - 16 bytes, in the same layout as UUIDCodec (most significant bits, then least significant bits, big-endian).
+ * -content length - unsigned LEB128 varint of the number of UTF-8 bytes.
+ * -content - UTF-8 bytes.
+ * Since each message is self-delimiting, a batch of messages is just their encodings concatenated into one frame.
+ * 
+ * Note that this class is NOT thread-safe.
+ */
+public class ChatBinaryEncoder {
+	// The most bytes a varint encoding of a 64-bit value can use.
+	private static final int MAX_VARINT_BYTES = 10;
+
+	private final UUIDCodec _uuidCodec;
+	private final StringCodec _stringCodec;
+
+	public ChatBinaryEncoder() {
+		_uuidCodec = new UUIDCodec();
+		_stringCodec = new StringCodec();
+	}
+
+	/**
+	 * Encodes a single chat message.
+	 * 
+	 * @param sender The sender of the message.
+	 * @param content The message content.
+	 * @param index The index of the message.
+	 * @return A read-only buffer containing the encoded message (callers sharing it must use duplicate()).
+	 */
+	public ByteBuffer encode(UUID sender, String content, long index) {
+		// We encode the content straight into the frame, instead of through an intermediate array.
+		int contentBytes = _stringCodec.serializedSize(content);
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_VARINT_BYTES + UUIDCodec.SERIALIZED_SIZE + MAX_VARINT_BYTES + contentBytes);
+		_putVarint(buffer, index);
+		_uuidCodec.serializeInto(sender, buffer);
+		_putVarint(buffer, contentBytes);
+		_stringCodec.serializeInto(content, buffer);
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Concatenates the given encoded messages into a single frame.
+	 * 
+	 * @param messages The encoded messages (their positions are not changed).
+	 * @return A read-only buffer containing all the messages, in order.
+	 */
+	public static ByteBuffer concatenate(Iterable<ByteBuffer> messages) {
+		int size = 0;
+		for (ByteBuffer message : messages) {
+			size += message.remaining();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (ByteBuffer message : messages) {
+			buffer.put(message.duplicate());
+		}
+		buffer.flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads an unsigned LEB128 varint, as written for the index and content length, from the buffer.
+	 * 
+	 * @param buffer The buffer to read from, at its current position.
+	 * @return The value.
+	 */
+	public static long readVarint(ByteBuffer buffer) {
+		long value = 0L;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= ((long)(b & 0x7F)) << shift;
+			shift += 7;
+		} while (0 != (b & 0x80));
+		return value;
+	}
+
+
+	private static void _putVarint(ByteBuffer buffer, long value) {
+		long remaining = value;
+		while (0L != (remaining & ~0x7FL)) {
+			buffer.put((byte)((remaining & 0x7FL) | 0x80L));
+			remaining >>>= 7;
+		}
+		buffer.put((byte)remaining);
+	}
+}
@@ -1,24 +1,35 @@
 package com.jeffdisher.thinktank.chat;
 
-import java.io.IOException;
 import java.net.HttpCookie;
-import java.security.PublicKey;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
 
-import org.eclipse.jetty.websocket.api.RemoteEndpoint;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
 
 import com.jeffdisher.breakwater.RestServer;
-import com.jeffdisher.thinktank.crypto.BinaryToken;
+import com.jeffdisher.thinktank.crypto.TokenBatchValidator;
 
 
 /**
  * Entry-points related to chat system:
  * -POST /chat/send
- * -WebSocket listen for "text" /chat/listen
+ * -WebSocket listen for "text" or "binary" /chat/listen
+ * The server accepts exactly one of the sub-protocols the client offers, "text" or "binary", and the connection's
+ * format follows the accepted one:  a "binary" connection is sent messages in the compact ChatBinaryEncoder format,
+ * instead of JSON.  Posts are accepted as either text frames or binary frames (UTF-8 content) from any client.
+ * The other options aren't formats so they are requested with query parameters instead of sub-protocols:
+ * -"batch" (as in /chat/42?batch) - the client is sent arrays of messages, instead of one message per frame.
+ * -"ack" - the client is sent {"ack":index} once each of its posts is durable.
+ * Posting never waits for the post to commit so the WebSocket thread is released immediately.
+ * Tokens are validated through a TokenBatchValidator, off the WebSocket thread, since reconnecting clients present the
+ * same token over and over (answered from its cache) and a restart makes every client reconnect at once (validated in
+ * parallel).  The connection is only accepted, with "READY", once its token is validated.  If too many are already
+ * waiting, the connection is closed with STATUS_BUSY so the client retries.
  */
 public class ChatEntryPoints {
 	/**
@@ -27,11 +38,23 @@ public class ChatEntryPoints {
 	private static final int STATUS_MISSING_AUTH = 3000;
 	private static final int STATUS_STALE_AUTH = 3001;
 	private static final int STATUS_INVALID_ARGUMENTS = 3002;
+	// Package-visible since the OutboundQueue uses this when applying SlowConsumerPolicy.DISCONNECT or RESYNC.
+	static final int STATUS_SLOW_CONSUMER = 3003;
+	private static final int STATUS_BUSY = 3004;
+	private static final String PROTOCOL_BINARY = "binary";
+	private static final String OPTION_BATCH = "batch";
+	private static final String OPTION_ACK = "ack";
+	// The most UTF-8 bytes MAX_CONTENT_CHARS can need, so we can reject huge binary posts before decoding them.
+	private static final int MAX_CONTENT_BYTES = 3 * ChatStore.MAX_CONTENT_CHARS;
 
-	public static void registerEntryPoints(RestServer server, ChatStore chatStore, IChatWriter chatWriter, PublicKey key) {
-		server.addWebSocketFactory("/chat", 1, true, false, (String[] variables) -> new WebSocketListener() {
-			private UUID _user;
-			private RemoteEndpoint _session;
+	public static void registerEntryPoints(RestServer server, ChatStore chatStore, IChatWriter chatWriter, TokenBatchValidator tokenValidator) {
+		server.addWebSocketFactory("/chat", 1, true, true, (String[] variables) -> new WebSocketListener() {
+			// These are set by the validation completion (on another thread) so they are volatile.
+			private volatile UUID _user;
+			private volatile Session _session;
+			private volatile boolean _wantsAcks;
+			// Only accessed under monitor, to order the validation completion with the close.
+			private boolean _isClosed;
 			@Override
 			public void onWebSocketError(Throwable cause) {
 				// This is usually just a timeout closing the socket which is harmless but we want to log other errors.
@@ -48,22 +71,18 @@ public class ChatEntryPoints {
 				if (previousConsequence >= 0L) {
 					String binaryToken = _getBinaryTokenCookie(session.getUpgradeRequest().getCookies());
 					if (null != binaryToken) {
-						UUID uuid = BinaryToken.validateToken(key, System.currentTimeMillis(), binaryToken);
-						if (null != uuid) {
-							_user = uuid;
-							_session = session.getRemote();
-							
-							// We will send an initial message just so the client side knows the auth was accepted so it can start using the socket.
-							try {
-								_session.sendString("READY");
-							} catch (IOException e) {
-								// We will just end up closing this but we should see what this error is, for future analysis.
-								e.printStackTrace();
-							}
-							
-							chatStore.addConnectionAndSendBacklog(_session, previousConsequence);
+						CompletableFuture<UUID> validation = tokenValidator.submit(System.currentTimeMillis(), binaryToken);
+						if (null != validation) {
+							validation.whenComplete((UUID uuid, Throwable failure) -> {
+								if (null == failure) {
+									_tokenValidated(session, previousConsequence, uuid);
+								} else {
+									// The validator failed or is shutting down so let the client retry.
+									session.close(STATUS_BUSY, "Token validation failed");
+								}
+							});
 						} else {
-							session.close(STATUS_STALE_AUTH, "Stale/invalid BinaryToken");
+							session.close(STATUS_BUSY, "Busy validating other connections");
 						}
 					} else {
 						session.close(STATUS_MISSING_AUTH, "Missing BinaryToken");
@@ -74,7 +93,8 @@ public class ChatEntryPoints {
 			}
 			
 			@Override
-			public void onWebSocketClose(int statusCode, String reason) {
+			public synchronized void onWebSocketClose(int statusCode, String reason) {
+				_isClosed = true;
 				if (null != _session) {
 					chatStore.removeConnection(_session);
 				}
@@ -83,12 +103,59 @@ public class ChatEntryPoints {
 			@Override
 			public void onWebSocketText(String message) {
 				if (null != _user) {
-					chatWriter.post(_user, message);
+					_post(message);
 				}
 			}
 			
 			@Override
 			public void onWebSocketBinary(byte[] payload, int offset, int len) {
+				if (null != _user) {
+					if (len <= MAX_CONTENT_BYTES) {
+						_post(new String(payload, offset, len, StandardCharsets.UTF_8));
+					} else {
+						_session.close(STATUS_INVALID_ARGUMENTS, "Message too long");
+					}
+				}
+			}
+			
+			private synchronized void _tokenValidated(Session session, long previousConsequence, UUID uuid) {
+				// If the connection closed while we were validating, there is nothing to do.
+				if (!_isClosed) {
+					if (null != uuid) {
+						// The accepted sub-protocol is null if the client didn't offer one (which means "text").
+						boolean isBinary = PROTOCOL_BINARY.equals(session.getUpgradeResponse().getAcceptedSubProtocol());
+						Map<String, List<String>> options = session.getUpgradeRequest().getParameterMap();
+						boolean isBatched = options.containsKey(OPTION_BATCH);
+						_wantsAcks = options.containsKey(OPTION_ACK);
+						_session = session;
+						_user = uuid;
+						
+						// The ChatStore sends an initial "READY" message, ahead of the backlog, just so the client side knows the
+						// auth was accepted so it can start using the socket.  This runs on the validation thread so it must not
+						// block:  everything is sent asynchronously.
+						chatStore.addConnectionAndSendBacklog(_session, previousConsequence, isBatched, isBinary);
+					} else {
+						session.close(STATUS_STALE_AUTH, "Stale/invalid BinaryToken");
+					}
+				}
+			}
+			
+			private void _post(String message) {
+				if (message.length() <= ChatStore.MAX_CONTENT_CHARS) {
+					// The completion may run on another thread so capture what it needs.
+					Session session = _session;
+					boolean wantsAcks = _wantsAcks;
+					chatWriter.postAsync(_user, message).whenComplete((Long index, Throwable failure) -> {
+						if (null != failure) {
+							// The client will notice the missing message but we want to know why.
+							failure.printStackTrace();
+						} else if (wantsAcks) {
+							chatStore.sendAck(session, index);
+						}
+					});
+				} else {
+					_session.close(STATUS_INVALID_ARGUMENTS, "Message too long");
+				}
 			}
 			
 			private long _readLongVariable(String variable) {
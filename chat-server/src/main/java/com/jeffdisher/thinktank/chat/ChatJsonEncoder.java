@@ -0,0 +1,123 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+
+/**
+ * A purpose-built encoder for the chat message wire format:  {"sender":"&lt;UUID&gt;","content":"&lt;text&gt;","index":&lt;n&gt;}.
+ * The output is identical to what minimal-json produces for the same object but avoids building the intermediate
+ * JsonObject/JsonValue instances:  the frame is written directly into a reused buffer, content which needs no escaping
+ * (the common case) is copied in one step, and the string form of recent sender UUIDs is cached.
+ * 
+ * Note that this class is NOT thread-safe.
+ */
+public class ChatJsonEncoder {
+	private static final int SENDER_CACHE_SIZE = 1024;
+	private static final char[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+	private final StringBuilder _buffer;
+	private final Map<UUID, String> _senderStrings;
+
+	public ChatJsonEncoder() {
+		_buffer = new StringBuilder(256);
+		// An access-ordered map so we evict the least-recently active sender.
+		_senderStrings = new LinkedHashMap<UUID, String>(SENDER_CACHE_SIZE, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<UUID, String> eldest) {
+				return size() > SENDER_CACHE_SIZE;
+			}
+		};
+	}
+
+	/**
+	 * Encodes a single chat message as a JSON object.
+	 * 
+	 * @param sender The sender of the message.
+	 * @param content The message content.
+	 * @param index The index of the message.
+	 * @return The JSON encoding of the message.
+	 */
+	public String encode(UUID sender, String content, long index) {
+		_buffer.setLength(0);
+		_buffer.append("{\"sender\":\"");
+		_buffer.append(_senderString(sender));
+		_buffer.append("\",\"content\":\"");
+		_appendEscaped(content);
+		_buffer.append("\",\"index\":");
+		_buffer.append(index);
+		_buffer.append('}');
+		return _buffer.toString();
+	}
+
+
+	private String _senderString(UUID sender) {
+		String string = _senderStrings.get(sender);
+		if (null == string) {
+			string = sender.toString();
+			_senderStrings.put(sender, string);
+		}
+		return string;
+	}
+
+	private void _appendEscaped(String content) {
+		int length = content.length();
+		int firstEscape = -1;
+		for (int i = 0; (-1 == firstEscape) && (i < length); ++i) {
+			if (_needsEscape(content.charAt(i))) {
+				firstEscape = i;
+			}
+		}
+		if (-1 == firstEscape) {
+			// Fast path:  nothing to escape so copy it all at once.
+			_buffer.append(content);
+		} else {
+			_buffer.append(content, 0, firstEscape);
+			for (int i = firstEscape; i < length; ++i) {
+				char ch = content.charAt(i);
+				if (_needsEscape(ch)) {
+					_appendEscapedChar(ch);
+				} else {
+					_buffer.append(ch);
+				}
+			}
+		}
+	}
+
+	private static boolean _needsEscape(char ch) {
+		// These are the same rules minimal-json uses (U+2028 and U+2029 are line endings in JavaScript).
+		return (ch < 0x20) || ('"' == ch) || ('\\' == ch) || ('\u2028' == ch) || ('\u2029' == ch);
+	}
+
+	private void _appendEscapedChar(char ch) {
+		switch (ch) {
+		case '"':
+			_buffer.append("\\\"");
+			break;
+		case '\\':
+			_buffer.append("\\\\");
+			break;
+		case '\n':
+			_buffer.append("\\n");
+			break;
+		case '\r':
+			_buffer.append("\\r");
+			break;
+		case '\t':
+			_buffer.append("\\t");
+			break;
+		case '\u2028':
+			_buffer.append("\\u2028");
+			break;
+		case '\u2029':
+			_buffer.append("\\u2029");
+			break;
+		default:
+			_buffer.append("\\u00");
+			_buffer.append(HEX_DIGITS[(ch >> 4) & 0xf]);
+			_buffer.append(HEX_DIGITS[ch & 0xf]);
+		}
+	}
+}
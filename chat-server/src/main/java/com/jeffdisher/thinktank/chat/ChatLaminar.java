@@ -1,102 +1,627 @@
 package com.jeffdisher.thinktank.chat;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.jeffdisher.laminar.client.ClientConnection;
 import com.jeffdisher.laminar.types.TopicName;
 import com.jeffdisher.laminar.utils.Assert;
+import com.jeffdisher.thinktank.chat.support.ILaminarCluster;
 import com.jeffdisher.thinktank.chat.support.IListenerTopicShim;
 import com.jeffdisher.thinktank.chat.support.StringCodec;
+import com.jeffdisher.thinktank.chat.support.TopicCheckpoint;
+import com.jeffdisher.thinktank.chat.support.TopicCommit;
 import com.jeffdisher.thinktank.chat.support.TopicListener;
+import com.jeffdisher.thinktank.chat.support.TopicPut;
 import com.jeffdisher.thinktank.chat.support.UUIDCodec;
 
 
 /**
- * The real implementation of IChatWriter which is back-ended on a Laminar cluster via the topic name "chat".
+ * The real implementation of IChatWriter which is back-ended on a Laminar cluster via the topic name "chat".  The
+ * cluster is normally a NetworkLaminarCluster but can be a SimulatedLaminarCluster for testing.
+ * Posts are pipelined over the writing connections:  post() only sends the put and returns, while a committer thread
+ * per connection waits for each put to commit, in order.  At most writeWindow puts can be in flight on each connection
+ * so a caller only blocks once the window is full, meaning write throughput scales with the window instead of being
+ * limited to one put per round-trip.
+ * There is a pool of writing connections and each sender is assigned one by the hash of their UUID, so that a sender's
+ * posts commit in the order they were posted while different senders don't contend on one connection.  A connection is
+ * out of rotation while the put its committer is waiting on has been uncommitted for longer than the commit timeout
+ * (a dead or stalled connection never reports a failure, it just stops committing) and new senders use the next
+ * connection in the pool (unless no connection is in rotation).  A rejected put only fails its own post.
+ * To keep a sender's posts in order, a sender with posts in flight stays pinned to the connection they were sent on,
+ * even if it is out of rotation:  if its window doesn't free up within the commit timeout, the post fails instead of
+ * blocking forever.  It only moves to another connection once it has nothing in flight.
+ * The future returned by postAsync() completes with the consequence offset of the put.  The commit only tells us the
+ * intention offset so we match it to the consequence offset the listener observes for the same intention (these can
+ * arrive in either order).  Most observed puts are from other servers so never match:  since each connection's puts
+ * commit in order, an observation older than the last commit of every connection with puts still pending (or any
+ * observation, if none are pending) can't match a future commit so it is dropped.
+ * If given a checkpoint file, the listener keeps enough recent messages in it to refill the ChatStore backlog and
+ * resumes the topic from there on restart.
+ * With more than one partition, the messages are instead spread over the topics "chat-0".."chat-N" by the hash of the
+ * sender's UUID (so a sender's messages stay in order), each with its own listener (and checkpoint, if enabled, with
+ * the partition number appended to the file name).  A PartitionMerger merges them into one global order, using the
+ * intention offset of each message as its index (and as what the postAsync() future completes with).  To keep an idle
+ * partition from holding back the others, a timer sends "tick" puts (from TICK_KEY) to any partition which has been
+ * lagging for longer than this node's tick threshold.
+ * Ticks aren't free:  each one is a permanent put in the partition's topic (so it grows the topic history and what a
+ * listener without a checkpoint must replay) and a message can be held for up to the tick threshold while another
+ * partition is idle.  To keep every node from ticking the same partition, each node picks its threshold at random
+ * between TICK_AFTER_MILLIS and twice that:  the node with the lowest threshold usually ticks first and the others see
+ * the partition advance before their own threshold expires.  A node also waits that long before repeating a tick to a
+ * partition which still hasn't advanced.
+ * Since the indices are consequence offsets with one partition and intention offsets with more, the ChatStore must have
+ * the matching IndexMode (so its snapshot from a run in the other mode is rejected).  The checkpoint files of the two
+ * modes have different names so they can't be confused, but the number of partitions must otherwise not change while
+ * there is a checkpoint from a previous run.
  */
 public class ChatLaminar implements IChatWriter {
 	private static final TopicName TOPIC_NAME = TopicName.fromString("chat");
+	private static final String PARTITION_PREFIX = "chat-";
+	// The nil UUID is never a real user so we use it as the key of the ticks which advance lagging partitions.
+	private static final UUID TICK_KEY = new UUID(0L, 0L);
+	// How often the timer checks for lagging partitions.
+	private static final long TICK_CHECK_MILLIS = 50L;
+	// The minimum time a partition can hold back a message before we tick it (see the class comment).
+	private static final long TICK_AFTER_MILLIS = 250L;
+	public static final long DEFAULT_COMMIT_TIMEOUT_MILLIS = 5_000L;
 
 	private final ChatStore _chatStore;
 	private final UUIDCodec _keyCodec;
 	private final StringCodec _valueCodec;
-	private final ClientConnection _writer;
-	private final TopicListener<UUID, String> _listener;
+	private final TopicName[] _topics;
+	// Null if there is only one partition.
+	private final PartitionMerger _merger;
+	private final TopicListener<UUID, String>[] _listeners;
+	private final WriterLane[] _lanes;
+	private final long _commitTimeoutMillis;
+	// The lane each sender with posts in flight is pinned to (only accessed under its own monitor).
+	private final Map<UUID, PinnedSender> _pinnedSenders;
+	// Null if there is only one partition.
+	private final Timer _ticker;
+	// Only accessed under the _ticker monitor.
+	private boolean _isTicking;
+	private final long _tickAfterNanos;
+	private final long[] _lastTickNanos;
+	// The maps for matching intention offsets to consequence offsets are only accessed under their own monitors.
+	private final Map<Long, CompletableFuture<Long>> _committedAwaitingConsequence;
+	private final NavigableMap<Long, Long> _observedAwaitingCommit;
 
-	public ChatLaminar(ChatStore chatStore, InetSocketAddress laminarServer) throws IOException {
+	public ChatLaminar(ChatStore chatStore, ILaminarCluster cluster, int partitionCount, int writerCount, int writeWindow, File checkpointFile, int decodeThreads) throws IOException {
+		this(chatStore, cluster, partitionCount, writerCount, writeWindow, DEFAULT_COMMIT_TIMEOUT_MILLIS, checkpointFile, decodeThreads);
+	}
+
+	@SuppressWarnings("unchecked")
+	ChatLaminar(ChatStore chatStore, ILaminarCluster cluster, int partitionCount, int writerCount, int writeWindow, long commitTimeoutMillis, File checkpointFile, int decodeThreads) throws IOException {
+		Assert.assertTrue(partitionCount > 0);
+		Assert.assertTrue(writerCount > 0);
+		Assert.assertTrue(writeWindow > 0);
+		Assert.assertTrue(commitTimeoutMillis > 0L);
+		// The store's snapshot must have been loaded under the same kind of indices we will send it.
+		Assert.assertTrue(IndexMode.forLaminarPartitions(partitionCount) == chatStore.getIndexMode());
 		_chatStore = chatStore;
+		_commitTimeoutMillis = commitTimeoutMillis;
+		_pinnedSenders = new HashMap<>();
 		_keyCodec = new UUIDCodec();
 		_valueCodec = new StringCodec();
+		_committedAwaitingConsequence = new HashMap<>();
+		// Sorted by intention offset so we can drop the observations too old to match.
+		_observedAwaitingCommit = new TreeMap<>();
+		_topics = new TopicName[partitionCount];
+		if (1 == partitionCount) {
+			_topics[0] = TOPIC_NAME;
+		} else {
+			for (int i = 0; i < partitionCount; ++i) {
+				_topics[i] = TopicName.fromString(PARTITION_PREFIX + i);
+			}
+		}
+		_merger = (partitionCount > 1)
+				? new PartitionMerger(_chatStore, partitionCount, (long index) -> _putObserved(index, index))
+				: null;
 		
-		// Open the writing connection.
-		_writer = ClientConnection.open(laminarServer);
-		try {
-			_writer.waitForConnectionOrFailure();
-		} catch (IOException e) {
-			throw e;
-		} catch (InterruptedException e) {
-			// We don't use interruption.
-			throw Assert.unexpected(e);
+		// Open the writing connections.
+		ILaminarCluster.IWriter[] writers = new ILaminarCluster.IWriter[writerCount];
+		for (int i = 0; i < writerCount; ++i) {
+			writers[i] = cluster.openWriter();
+			try {
+				writers[i].waitForConnectionOrFailure();
+			} catch (IOException e) {
+				throw e;
+			} catch (InterruptedException e) {
+				// We don't use interruption.
+				throw Assert.unexpected(e);
+			}
 		}
 		
-		// Create chat topic (we don't care about whether it was accepted as this may already exist).
+		// Create the chat topics (we don't care about whether they were accepted as they may already exist).
+		List<ILaminarCluster.IPendingCommit> creates = new ArrayList<>();
+		for (TopicName topic : _topics) {
+			creates.add(writers[0].sendCreateTopic(topic));
+		}
 		try {
-			_writer.sendCreateTopic(TOPIC_NAME).waitForCommitted();
+			for (ILaminarCluster.IPendingCommit create : creates) {
+				create.waitForCommitted();
+			}
 		} catch (InterruptedException e) {
 			// We don't use interruption.
 			throw Assert.unexpected(e);
 		}
 		
-		// Open the listening connection.
-		_listener = new TopicListener<UUID, String>(laminarServer, TOPIC_NAME, new ChatListenerShim(), _keyCodec, _valueCodec);
-		try {
-			_listener.waitForConnectionOrFailure();
-		} catch (IOException e) {
-			throw e;
-		} catch (InterruptedException e) {
-			// We don't use interruption.
-			throw Assert.unexpected(e);
+		// Start the committers first since the listeners match observations against the lanes' pending puts.
+		_lanes = new WriterLane[writerCount];
+		for (int i = 0; i < writerCount; ++i) {
+			_lanes[i] = new WriterLane(i, writers[i], writeWindow);
+		}
+		
+		// Open the listening connections.
+		_listeners = new TopicListener[partitionCount];
+		for (int i = 0; i < partitionCount; ++i) {
+			File partitionFile = ((null != checkpointFile) && (partitionCount > 1))
+					? new File(checkpointFile.getPath() + "." + i)
+					: checkpointFile;
+			TopicCheckpoint<UUID, String> checkpoint = (null != partitionFile)
+					? new TopicCheckpoint<>(partitionFile, _chatStore.getBacklogSize(), _keyCodec, _valueCodec)
+					: null;
+			_listeners[i] = new TopicListener<UUID, String>(cluster, _topics[i], new ChatListenerShim(i), _keyCodec, _valueCodec, checkpoint, decodeThreads);
+			try {
+				_listeners[i].waitForConnectionOrFailure();
+			} catch (IOException e) {
+				throw e;
+			} catch (InterruptedException e) {
+				// We don't use interruption.
+				throw Assert.unexpected(e);
+			}
+		}
+		
+		// Start sending ticks, if partitioned.
+		if (null != _merger) {
+			_ticker = new Timer("ChatLaminar-ticker", true);
+			_isTicking = true;
+			_tickAfterNanos = TimeUnit.MILLISECONDS.toNanos(TICK_AFTER_MILLIS + ThreadLocalRandom.current().nextLong(TICK_AFTER_MILLIS));
+			_lastTickNanos = new long[partitionCount];
+			Arrays.fill(_lastTickNanos, System.nanoTime() - _tickAfterNanos);
+			_ticker.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					synchronized (_ticker) {
+						if (_isTicking) {
+							_sendTicks();
+						}
+					}
+				}
+			}, TICK_CHECK_MILLIS, TICK_CHECK_MILLIS);
+		} else {
+			_ticker = null;
+			_isTicking = false;
+			_tickAfterNanos = 0L;
+			_lastTickNanos = null;
 		}
 	}
 
+	/**
+	 * Sends the put without waiting for it to commit, only blocking if the in-flight window is full (and failing the
+	 * post if it stays full for longer than the commit timeout).
+	 */
 	@Override
-	public synchronized void post(UUID writer, String post) {
+	public CompletableFuture<Long> postAsync(UUID writer, String post) {
 		Assert.assertTrue(null != post);
-		// We will ignore the response, just waiting for it to commit.
+		byte[] key = _keyCodec.serialize(writer);
+		byte[] value = _valueCodec.serialize(post);
+		WriterLane lane = _pinSender(writer);
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		// We only block here if the window is full.
+		boolean didAcquire;
 		try {
-			_writer.sendPut(TOPIC_NAME, _keyCodec.serialize(writer), _valueCodec.serialize(post)).waitForCommitted();
+			didAcquire = lane.window.tryAcquire(_commitTimeoutMillis, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {
 			// We don't use interruption.
 			throw Assert.unexpected(e);
 		}
+		if (didAcquire) {
+			TopicName topic = _topics[Math.floorMod(writer.hashCode(), _topics.length)];
+			lane.send(writer, topic, key, value, future);
+		} else {
+			_unpinSender(writer);
+			future.completeExceptionally(new IOException("Laminar writer stalled"));
+		}
+		return future;
+	}
+
+	// Package-private for tests.
+	int getUnmatchedObservationCount() {
+		synchronized (_committedAwaitingConsequence) {
+			return _observedAwaitingCommit.size();
+		}
+	}
+
+	/**
+	 * @return The number of writing connections currently in rotation.
+	 */
+	public int getWritersInRotation() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		for (WriterLane lane : _lanes) {
+			if (lane.isInRotation(now)) {
+				count += 1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The metrics of the listeners' polling, decoding, and dispatching stages (summed over the partitions).
+	 */
+	public TopicListener.Metrics getListenerMetrics() {
+		long polled = 0L;
+		long decoded = 0L;
+		long dispatched = 0L;
+		int bufferedDepth = 0;
+		int decodingDepth = 0;
+		for (TopicListener<UUID, String> listener : _listeners) {
+			TopicListener.Metrics metrics = listener.getMetrics();
+			polled += metrics.polled;
+			decoded += metrics.decoded;
+			dispatched += metrics.dispatched;
+			bufferedDepth += metrics.bufferedDepth;
+			decodingDepth += metrics.decodingDepth;
+		}
+		return new TopicListener.Metrics(polled, decoded, dispatched, bufferedDepth, decodingDepth);
 	}
 
 	@Override
 	public void close() throws IOException {
-		_writer.close();
-		_listener.close();
+		if (null != _ticker) {
+			// A tick which is already running finishes before we stop the committers.
+			synchronized (_ticker) {
+				_isTicking = false;
+				_ticker.cancel();
+			}
+		}
+		// Let the committers drain everything already sent before we close the connections.
+		for (WriterLane lane : _lanes) {
+			synchronized (lane) {
+				lane.inFlight.add(InFlightPut.STOP);
+			}
+		}
+		// A stalled writer or failed listener is only reported once everything else is closed.
+		IOException closeFailure = null;
+		for (WriterLane lane : _lanes) {
+			try {
+				// A committer stuck on a stalled connection may never finish so we give up on it after the timeout.
+				lane.committer.join(_commitTimeoutMillis);
+			} catch (InterruptedException e) {
+				// We don't use interruption.
+				throw Assert.unexpected(e);
+			}
+			if (lane.committer.isAlive()) {
+				lane.failInFlight();
+				if (null == closeFailure) {
+					closeFailure = new IOException("Closed stalled Laminar writer " + lane.index + " with posts still in flight");
+				}
+			}
+			lane.writer.close();
+		}
+		for (TopicListener<UUID, String> listener : _listeners) {
+			try {
+				listener.close();
+			} catch (IOException e) {
+				if (null == closeFailure) {
+					closeFailure = e;
+				}
+			}
+		}
+		
+		// Anything still waiting for the listener will never see it.
+		synchronized (_committedAwaitingConsequence) {
+			for (CompletableFuture<Long> future : _committedAwaitingConsequence.values()) {
+				future.completeExceptionally(new IOException("Closed before the post was observed"));
+			}
+			_committedAwaitingConsequence.clear();
+		}
+		if (null != closeFailure) {
+			throw closeFailure;
+		}
+	}
+
+
+	private WriterLane _pinSender(UUID sender) {
+		synchronized (_pinnedSenders) {
+			// A sender with posts in flight stays on their lane so that their posts commit in order.
+			PinnedSender pinned = _pinnedSenders.get(sender);
+			if (null == pinned) {
+				pinned = new PinnedSender(_selectLane(sender));
+				_pinnedSenders.put(sender, pinned);
+			}
+			pinned.inFlightCount += 1;
+			return pinned.lane;
+		}
+	}
+
+	private void _unpinSender(UUID sender) {
+		synchronized (_pinnedSenders) {
+			PinnedSender pinned = _pinnedSenders.get(sender);
+			pinned.inFlightCount -= 1;
+			if (0 == pinned.inFlightCount) {
+				_pinnedSenders.remove(sender);
+			}
+		}
+	}
+
+	private WriterLane _selectLane(UUID sender) {
+		// Start at the sender's own lane, skipping any out of rotation (if they all are, we stay on the sender's lane).
+		int home = Math.floorMod(sender.hashCode(), _lanes.length);
+		long now = System.currentTimeMillis();
+		WriterLane selected = null;
+		for (int i = 0; (null == selected) && (i < _lanes.length); ++i) {
+			WriterLane lane = _lanes[(home + i) % _lanes.length];
+			if (lane.isInRotation(now)) {
+				selected = lane;
+			}
+		}
+		return (null != selected)
+				? selected
+				: _lanes[home];
+	}
+
+	private void _sendTicks() {
+		long now = System.nanoTime();
+		for (int partition : _merger.getLaggingPartitions(_tickAfterNanos)) {
+			WriterLane lane = _lanes[partition % _lanes.length];
+			// We don't repeat a tick which may still be in flight and, since ticks are only an optimization, we skip them
+			// (instead of blocking the timer) if the window is full.
+			if (((now - _lastTickNanos[partition]) >= _tickAfterNanos) && lane.window.tryAcquire()) {
+				lane.send(null, _topics[partition], _keyCodec.serialize(TICK_KEY), _valueCodec.serialize(""), null);
+				_lastTickNanos[partition] = now;
+			}
+		}
+	}
+
+	private void _commitObserved(long intentionOffset, CompletableFuture<Long> future) {
+		Long consequenceOffset;
+		synchronized (_committedAwaitingConsequence) {
+			consequenceOffset = _observedAwaitingCommit.remove(intentionOffset);
+			if (null == consequenceOffset) {
+				_committedAwaitingConsequence.put(intentionOffset, future);
+			}
+		}
+		// We complete outside of the monitor since this runs any dependent actions.
+		if (null != consequenceOffset) {
+			future.complete(consequenceOffset);
+		}
+	}
+
+	private void _putObserved(long intentionOffset, long consequenceOffset) {
+		CompletableFuture<Long> future;
+		synchronized (_committedAwaitingConsequence) {
+			future = _committedAwaitingConsequence.remove(intentionOffset);
+			if (null == future) {
+				_observedAwaitingCommit.put(intentionOffset, consequenceOffset);
+				_observedAwaitingCommit.headMap(_oldestMatchableIntention(), false).clear();
+			}
+		}
+		if (null != future) {
+			future.complete(consequenceOffset);
+		}
+	}
+
+
+	// Called under the _committedAwaitingConsequence monitor.  Returns the oldest intention offset a commit still to
+	// come could have.
+	private long _oldestMatchableIntention() {
+		long oldest = Long.MAX_VALUE;
+		for (WriterLane lane : _lanes) {
+			oldest = Math.min(oldest, lane.getOldestMatchableIntention());
+		}
+		return oldest;
 	}
 
 
 	private class ChatListenerShim implements IListenerTopicShim<UUID, String> {
+		private final int _partition;
+		
+		public ChatListenerShim(int partition) {
+			_partition = partition;
+		}
 		@Override
 		public void delete(UUID key, long intentionOffset, long consequenceOffset) {
 			throw Assert.unreachable("We don't delete keys");
 		}
 		@Override
 		public void put(UUID key, String value, long intentionOffset, long consequenceOffset) {
-			// We will send in the consequenceOffset since it is the dense and non-duplicated value.
-			_chatStore.newMessageArrived(key, value, consequenceOffset);
+			if (null != _merger) {
+				_merger.putsObserved(_partition, Collections.singletonList(new TopicPut<>(key, value, intentionOffset, consequenceOffset)), TICK_KEY);
+			} else {
+				// We will send in the consequenceOffset since it is the dense and non-duplicated value.
+				_chatStore.newMessageArrived(key, value, consequenceOffset);
+				_putObserved(intentionOffset, consequenceOffset);
+			}
+		}
+		@Override
+		public void putBatch(List<TopicPut<UUID, String>> puts) {
+			if (null != _merger) {
+				_merger.putsObserved(_partition, puts, TICK_KEY);
+			} else {
+				_putBatchUnpartitioned(puts);
+			}
 		}
 		@Override
 		public void create(long intentionOffset, long consequenceOffset) {
-			// No special action on create.
+			if (null != _merger) {
+				_merger.consequenceObserved(_partition, intentionOffset);
+			}
 		}
 		@Override
 		public void destroy(long intentionOffset, long consequenceOffset) {
 			throw Assert.unreachable("We don't destroy the topic");
 		}
+		
+		private void _putBatchUnpartitioned(List<TopicPut<UUID, String>> puts) {
+			// The consequence offsets of consecutive puts are contiguous so the store can take them as one batch (we
+			// still split the batch if there is ever a gap).
+			List<UUID> senders = new ArrayList<>();
+			List<String> contents = new ArrayList<>();
+			long firstIndex = puts.get(0).consequenceOffset;
+			for (TopicPut<UUID, String> put : puts) {
+				if (put.consequenceOffset != (firstIndex + senders.size())) {
+					_chatStore.newMessagesArrived(senders, contents, firstIndex);
+					senders.clear();
+					contents.clear();
+					firstIndex = put.consequenceOffset;
+				}
+				senders.add(put.key);
+				contents.add(put.value);
+			}
+			_chatStore.newMessagesArrived(senders, contents, firstIndex);
+			for (TopicPut<UUID, String> put : puts) {
+				_putObserved(put.intentionOffset, put.consequenceOffset);
+			}
+		}
+	}
+
+
+	private class WriterLane {
+		public final int index;
+		public final ILaminarCluster.IWriter writer;
+		// Permits for the puts which can be sent but not yet committed.
+		public final Semaphore window;
+		// The puts in flight, in the order they were sent.
+		public final BlockingQueue<InFlightPut> inFlight;
+		public final Thread committer;
+		// The put the committer is waiting on (null when idle), so we can see when the connection stops committing.
+		private volatile InFlightPut _waitingOn;
+		// The puts sent but not yet matched (or failed) and the intention offset of the last one matched.
+		private final AtomicInteger _pendingCount;
+		private volatile long _lastCommittedIntention;
+		
+		public WriterLane(int index, ILaminarCluster.IWriter writer, int writeWindow) {
+			this.index = index;
+			this.writer = writer;
+			this.window = new Semaphore(writeWindow);
+			this.inFlight = new LinkedBlockingQueue<>();
+			this.committer = new Thread(() -> _runCommitter(), "ChatLaminar-committer-" + index);
+			// A committer stuck on a stalled connection mustn't keep the process alive.
+			this.committer.setDaemon(true);
+			_waitingOn = null;
+			_pendingCount = new AtomicInteger();
+			_lastCommittedIntention = 0L;
+			this.committer.start();
+		}
+		
+		public void send(UUID sender, TopicName topic, byte[] key, byte[] value, CompletableFuture<Long> future) {
+			// Only sent under monitor so the in-flight order matches the sends.
+			synchronized (this) {
+				// This is counted before sending so the listener can't drop the observation before we match it.
+				_pendingCount.incrementAndGet();
+				this.inFlight.add(new InFlightPut(sender, this.writer.sendPut(topic, key, value), future));
+			}
+		}
+		
+		public long getOldestMatchableIntention() {
+			// We check the count first since the committer updates the offset before decrementing it.
+			return (_pendingCount.get() > 0)
+					? (_lastCommittedIntention + 1L)
+					: Long.MAX_VALUE;
+		}
+		
+		public boolean isInRotation(long nowMillis) {
+			InFlightPut waitingOn = _waitingOn;
+			return (null == waitingOn) || ((nowMillis - waitingOn.sentMillis) < _commitTimeoutMillis);
+		}
+		
+		public void failInFlight() {
+			List<InFlightPut> remaining = new ArrayList<>();
+			InFlightPut waitingOn = _waitingOn;
+			if (null != waitingOn) {
+				remaining.add(waitingOn);
+			}
+			this.inFlight.drainTo(remaining);
+			for (InFlightPut put : remaining) {
+				if (null != put.future) {
+					put.future.completeExceptionally(new IOException("Closed before the post was committed"));
+				}
+			}
+		}
+		
+		private void _runCommitter() {
+			boolean keepRunning = true;
+			while (keepRunning) {
+				try {
+					InFlightPut put = this.inFlight.take();
+					if (InFlightPut.STOP == put) {
+						keepRunning = false;
+					} else {
+						_waitingOn = put;
+						TopicCommit commit = put.result.waitForCommitted();
+						_waitingOn = null;
+						this.window.release();
+						// Ticks have no sender or future since nobody waits for them.
+						if (null != put.sender) {
+							_unpinSender(put.sender);
+						}
+						if (null != put.future) {
+							if (commit.isValid) {
+								_commitObserved(commit.intentionOffset, put.future);
+							} else {
+								put.future.completeExceptionally(new IOException("Post not committed: " + commit.effect));
+							}
+						}
+						// Only now that this is matched can its observation (and anything older) be dropped.
+						if (commit.isValid) {
+							_lastCommittedIntention = commit.intentionOffset;
+						}
+						_pendingCount.decrementAndGet();
+					}
+				} catch (InterruptedException e) {
+					// We don't use interruption.
+					throw Assert.unexpected(e);
+				}
+			}
+		}
+	}
+
+
+	private static class PinnedSender {
+		public final WriterLane lane;
+		public int inFlightCount;
+		
+		public PinnedSender(WriterLane lane) {
+			this.lane = lane;
+			this.inFlightCount = 0;
+		}
+	}
+
+
+	private static class InFlightPut {
+		// Sentinel used to tell the committer to stop.
+		public static final InFlightPut STOP = new InFlightPut(null, null, null);
+		
+		public final UUID sender;
+		public final ILaminarCluster.IPendingCommit result;
+		public final CompletableFuture<Long> future;
+		public final long sentMillis;
+		
+		public InFlightPut(UUID sender, ILaminarCluster.IPendingCommit result, CompletableFuture<Long> future) {
+			this.sender = sender;
+			this.result = result;
+			this.future = future;
+			this.sentMillis = System.currentTimeMillis();
+		}
 	}
 }
@@ -1,9 +1,13 @@
 package com.jeffdisher.thinktank.chat;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 import com.jeffdisher.laminar.utils.Assert;
 import com.jeffdisher.thinktank.chat.support.StringCodec;
@@ -15,78 +19,190 @@ import com.jeffdisher.thinktank.chat.support.UUIDCodec;
  * there is no Laminar cluster.
  * A background thread sends the messages out so the system still provides the same asynchronous behaviour as a real
  * back-end.
+ * The future returned by postAsync() completes once the background thread has assigned the message its index (or
+ * fails, if the writer is closed first).
+ * If given a MessageLog, each message is appended to it before it is sent out and, on start, the ChatStore backlog is
+ * refilled from the log and indices continue after the last logged message, so history survives a restart.
+ * Posting never takes a lock:  posts go into a lock-free queue and the background thread drains everything available
+ * in one pass, handing the ChatStore a single batch with contiguous indices.  When the queue is empty, the background
+ * thread spins (yielding) for a configurable number of checks before it parks, and posters only unpark it if it parked.
  */
 public class ChatLocal implements IChatWriter {
 	private static final UUIDCodec KEY_CODEC = new UUIDCodec();
 	private static final StringCodec VALUE_CODEC = new StringCodec();
+	// The most messages we drain into one batch (so a constant stream of posts still gets sent out).
+	private static final int MAX_DRAIN = 1024;
 
 	private final ChatStore _chatStore;
+	private final MessageLog _log;
+	private final int _spinCount;
 	private final Queue<MessageTuple> _messages;
 	private final Thread _background;
-	private boolean _keepRunning;
+	private volatile boolean _keepRunning;
+	// Set by the background thread just before it parks so posters know they need to unpark it.
+	private volatile boolean _isParked;
 
 	public ChatLocal(ChatStore chatStore) {
+		this(chatStore, null, 0);
+	}
+
+	/**
+	 * Creates the writer, refilling the store's backlog from the log.
+	 * 
+	 * @param chatStore The store to send messages to.
+	 * @param log The log to make messages durable (null if they should only be kept in memory).  This is closed when
+	 * the writer is closed.
+	 * @param spinCount The number of times the background thread checks an empty queue (yielding between checks) before
+	 * it parks.
+	 */
+	public ChatLocal(ChatStore chatStore, MessageLog log, int spinCount) {
+		Assert.assertTrue(spinCount >= 0);
+		Assert.assertTrue(IndexMode.LOCAL == chatStore.getIndexMode());
 		_chatStore = chatStore;
-		_messages = new LinkedList<>();
-		_background = new Thread(() -> {
-			long nextIndex = 1L;
-			MessageTuple message = _waitNextMessage();
-			while (null != message) {
-				_chatStore.newMessageArrived(message.sender, message.content, nextIndex);
-				nextIndex += 1L;
-				message = _waitNextMessage();
-			}
-		});
+		_log = log;
+		_spinCount = spinCount;
+		_messages = new ConcurrentLinkedQueue<>();
+		if (null != _log) {
+			// We only need enough to fill the backlog (the store ignores anything it already has from a snapshot).
+			long previousIndex = Math.max(0L, _log.getLastIndex() - _chatStore.getBacklogSize());
+			_log.forEachAfter(previousIndex, (UUID sender, String content, long index) -> _chatStore.newMessageArrived(sender, content, index));
+		}
+		_background = new Thread(() -> _runSequencer(), "ChatLocal-sequencer");
 		_keepRunning = true;
+		_isParked = false;
 		_background.start();
 	}
 
 	@Override
 	public void close() throws IOException {
-		synchronized (this) {
-			_keepRunning = false;
-			this.notify();
-		}
+		_keepRunning = false;
+		LockSupport.unpark(_background);
 		try {
 			_background.join();
 		} catch (InterruptedException e) {
 			// We don't use interruption.
 			throw Assert.unexpected(e);
 		}
+		if (null != _log) {
+			_log.close();
+		}
+		// Anything still queued will never be assigned an index.
+		_failQueued();
 	}
 
 	@Override
-	public synchronized void post(UUID uuid, String message) {
+	public CompletableFuture<Long> postAsync(UUID uuid, String message) {
 		// Fake serialization, to verify the codecs work as expected.
 		UUID key = KEY_CODEC.deserialize(KEY_CODEC.serialize(uuid));
 		String value = VALUE_CODEC.deserialize(VALUE_CODEC.serialize(message));
-		_messages.add(new MessageTuple(key, value));
-		this.notify();
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		if (_keepRunning) {
+			_messages.add(new MessageTuple(key, value, future));
+			// Only pay for the unpark if the background thread actually parked.
+			if (_isParked) {
+				LockSupport.unpark(_background);
+			}
+			// If close() started after our check, it may have already failed what was queued so we fail what is left.
+			if (!_keepRunning) {
+				_failQueued();
+			}
+		} else {
+			future.completeExceptionally(new IOException("Posted after close"));
+		}
+		return future;
 	}
 
 
-	private synchronized MessageTuple _waitNextMessage() {
+	private void _runSequencer() {
+		// The store may have been loaded from a snapshot (or the log) so continue after it.
+		long lastIndex = _chatStore.getLastIndex();
+		if (null != _log) {
+			lastIndex = Math.max(lastIndex, _log.getLastIndex());
+		}
+		long nextIndex = lastIndex + 1L;
+		List<MessageTuple> accepted = new ArrayList<>();
+		List<UUID> senders = new ArrayList<>();
+		List<String> contents = new ArrayList<>();
+		while (_waitForMessages()) {
+			// Drain everything available, assigning contiguous indices to everything we accept.
+			long firstIndex = nextIndex;
+			int drained = 0;
+			MessageTuple message = _messages.poll();
+			while (null != message) {
+				drained += 1;
+				boolean isDurable = true;
+				if (null != _log) {
+					try {
+						_log.append(message.sender, message.content, nextIndex);
+					} catch (IOException e) {
+						// The message wasn't written so it doesn't get an index.
+						message.future.completeExceptionally(e);
+						isDurable = false;
+					}
+				}
+				if (isDurable) {
+					accepted.add(message);
+					senders.add(message.sender);
+					contents.add(message.content);
+					nextIndex += 1L;
+				}
+				message = (drained < MAX_DRAIN)
+						? _messages.poll()
+						: null;
+			}
+			
+			if (!accepted.isEmpty()) {
+				_chatStore.newMessagesArrived(senders, contents, firstIndex);
+				long index = firstIndex;
+				for (MessageTuple tuple : accepted) {
+					tuple.future.complete(index);
+					index += 1L;
+				}
+				accepted.clear();
+				senders.clear();
+				contents.clear();
+			}
+		}
+	}
+
+	// Returns true when there are messages to drain or false if we should stop.
+	private boolean _waitForMessages() {
+		int spins = 0;
 		while (_keepRunning && _messages.isEmpty()) {
-			try {
-				this.wait();
-			} catch (InterruptedException e) {
-				// We don't use interruption.
-				throw Assert.unexpected(e);
+			if (spins < _spinCount) {
+				Thread.yield();
+				spins += 1;
+			} else {
+				_isParked = true;
+				// We re-check after publishing _isParked since a poster may have missed it.
+				if (_keepRunning && _messages.isEmpty()) {
+					LockSupport.park(this);
+				}
+				_isParked = false;
 			}
 		}
-		return _keepRunning
-				? _messages.remove()
-				: null;
+		return _keepRunning;
+	}
+
+	private void _failQueued() {
+		// Called once the background thread is stopping so nothing polled here would be sent.
+		MessageTuple message = _messages.poll();
+		while (null != message) {
+			message.future.completeExceptionally(new IOException("Closed before the post was written"));
+			message = _messages.poll();
+		}
 	}
 
 
 	private static class MessageTuple {
 		public final UUID sender;
 		public final String content;
+		public final CompletableFuture<Long> future;
 		
-		public MessageTuple(UUID sender, String content) {
+		public MessageTuple(UUID sender, String content, CompletableFuture<Long> future) {
 			this.sender = sender;
 			this.content = content;
+			this.future = future;
 		}
 	}
 }
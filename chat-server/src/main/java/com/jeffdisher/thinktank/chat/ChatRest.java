@@ -1,18 +1,24 @@
 package com.jeffdisher.thinktank.chat;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.security.PublicKey;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.concurrent.CountDownLatch;
 
 import org.eclipse.jetty.util.resource.ResourceCollection;
 
 import com.jeffdisher.breakwater.RestServer;
 import com.jeffdisher.laminar.utils.Assert;
+import com.jeffdisher.thinktank.chat.support.NetworkLaminarCluster;
 import com.jeffdisher.thinktank.crypto.CryptoHelpers;
+import com.jeffdisher.thinktank.crypto.TokenBatchValidator;
+import com.jeffdisher.thinktank.crypto.TokenCache;
+import com.jeffdisher.thinktank.crypto.TokenKeys;
 import com.jeffdisher.thinktank.exit.ExitEntryPoints;
 import com.jeffdisher.thinktank.utilities.MainHelpers;
 import com.jeffdisher.thinktank.utilities.ResourceHelpers;
@@ -23,6 +29,58 @@ public class ChatRest {
 	private static final String ARG_PORT = "port";
 	private static final String ARG_LOCAL_ONLY = "local_only";
 	private static final String ARG_PUBLIC_KEY = "key";
+	private static final String ARG_BACKLOG_SIZE = "backlog_size";
+	private static final String ARG_SHARD_COUNT = "fanout_shards";
+	private static final String ARG_HIGH_WATER_MARK = "high_water_mark";
+	private static final String ARG_BATCH_WINDOW_MILLIS = "batch_window_millis";
+	private static final String ARG_MAX_BATCH_SIZE = "max_batch_size";
+	private static final String ARG_SLOW_CONSUMER_POLICY = "slow_consumer_policy";
+	private static final String ARG_WRITE_WINDOW = "write_window";
+	private static final String ARG_CHECKPOINT_FILE = "checkpoint_file";
+	private static final String ARG_SNAPSHOT_FILE = "snapshot_file";
+	private static final String ARG_SNAPSHOT_INTERVAL_SECONDS = "snapshot_interval_seconds";
+	private static final String ARG_LOG_DIRECTORY = "log_dir";
+	private static final String ARG_LOG_SEGMENT_MIB = "log_segment_mib";
+	private static final String ARG_LOG_RETAINED_SEGMENTS = "log_retained_segments";
+	private static final String ARG_SEQUENCER_SPINS = "sequencer_spins";
+	private static final String ARG_DECODE_THREADS = "decode_threads";
+	private static final String ARG_WRITER_COUNT = "writer_count";
+	private static final String ARG_PARTITION_COUNT = "partition_count";
+	private static final int DEFAULT_BACKLOG_SIZE = 10_000;
+	private static final int DEFAULT_HIGH_WATER_MARK = 1000;
+	private static final SlowConsumerPolicy DEFAULT_SLOW_CONSUMER_POLICY = SlowConsumerPolicy.DISCONNECT;
+	private static final long DEFAULT_BATCH_WINDOW_MILLIS = 10L;
+	private static final int DEFAULT_MAX_BATCH_SIZE = 500;
+	private static final int DEFAULT_WRITE_WINDOW = 64;
+	private static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 60L;
+	private static final int DEFAULT_LOG_SEGMENT_MIB = 64;
+	private static final int DEFAULT_LOG_RETAINED_SEGMENTS = 16;
+	private static final int DEFAULT_SEQUENCER_SPINS = 100;
+	private static final int DEFAULT_DECODE_THREADS = 1;
+	private static final int DEFAULT_WRITER_COUNT = 1;
+	private static final int DEFAULT_PARTITION_COUNT = 1;
+	// Only the original options have a short form.  The chat options are also accepted by ThinkTankRest (which embeds
+	// the chat server) so they are public for its usage text.
+	public static final String OPTIONS_USAGE = "Chat options:"
+			+ "\n  --backlog_size <count>                  Messages kept for clients resuming from an earlier index (default " + DEFAULT_BACKLOG_SIZE + ")"
+			+ "\n  --fanout_shards <count>                 Threads the connections are split across for fan-out (default: one per core)"
+			+ "\n  --high_water_mark <frames>              Frames pending for a connection before it is a slow consumer (default " + DEFAULT_HIGH_WATER_MARK + ")"
+			+ "\n  --slow_consumer_policy <policy>         What to do with a slow consumer:  disconnect, resync, or conflate (default disconnect)"
+			+ "\n  --batch_window_millis <millis>          How long to collect messages for \"batch\" connections (default " + DEFAULT_BATCH_WINDOW_MILLIS + ")"
+			+ "\n  --max_batch_size <count>                The most messages in one \"batch\" frame (default " + DEFAULT_MAX_BATCH_SIZE + ")"
+			+ "\n  --snapshot_file <file>                  Backlog snapshot loaded on start and rewritten periodically (default: none)"
+			+ "\n  --snapshot_interval_seconds <seconds>   Time between snapshot rewrites (default " + DEFAULT_SNAPSHOT_INTERVAL_SECONDS + ")"
+			+ "\n  --log_dir <directory>                   With --local_only:  directory of the message log (default: messages are only in memory)"
+			+ "\n  --log_segment_mib <MiB>                 With --local_only:  size of each log segment, at most 1024 (default " + DEFAULT_LOG_SEGMENT_MIB + ")"
+			+ "\n  --log_retained_segments <count>         With --local_only:  log segments kept before the oldest is deleted (default " + DEFAULT_LOG_RETAINED_SEGMENTS + ")"
+			+ "\n  --sequencer_spins <count>               With --local_only:  empty checks before the sequencer parks (default " + DEFAULT_SEQUENCER_SPINS + ")"
+			+ "\n  --write_window <count>                  With Laminar:  puts in flight on each writer connection (default " + DEFAULT_WRITE_WINDOW + ")"
+			+ "\n  --writer_count <count>                  With Laminar:  writer connections (default " + DEFAULT_WRITER_COUNT + ")"
+			+ "\n  --partition_count <count>               With Laminar:  chat topic partitions (default " + DEFAULT_PARTITION_COUNT + ")"
+			+ "\n  --checkpoint_file <file>                With Laminar:  listener checkpoint to resume the topic from (default: replay the whole topic)"
+			+ "\n  --decode_threads <count>                With Laminar:  threads decoding consequences, 0 to decode inline (default " + DEFAULT_DECODE_THREADS + ")";
+	private static final String USAGE = "Usage: ChatRest (--hostname|-h <hostname> --port|-p <port>)|--local_only|-l --key|-k <base64 public key>\n"
+			+ OPTIONS_USAGE;
 
 	public static void main(String[] args) {
 		// The normal entry-point doesn't care about the latch so just create anything.
@@ -35,33 +93,44 @@ public class ChatRest {
 	}
 
 	// Public since this is used by external utilities when being embedded.
-	public static IChatWriter buildChatWriter(ChatStore chatStore, String hostname, String portString, boolean localOnly) {
-		return _buildChatWriter(chatStore, hostname, portString, localOnly);
+	public static ChatStore buildChatStore(String[] args) {
+		return _buildChatStore(args);
+	}
+
+	// Public since this is used by external utilities when being embedded.  Returns null if snapshots aren't enabled.
+	public static ChatSnapshotter buildChatSnapshotter(ChatStore chatStore, String[] args) {
+		return _buildChatSnapshotter(chatStore, args);
+	}
+
+	// Public since this is used by external utilities when being embedded.
+	public static IChatWriter buildChatWriter(ChatStore chatStore, String hostname, String portString, boolean localOnly, String[] args) {
+		return _buildChatWriter(chatStore, hostname, portString, localOnly, args);
 	}
 
 	private static void _main(CountDownLatch bindLatch, String[] args) {
 		// Parse arguments.
-		String hostname = MainHelpers.getArgument(args, ARG_HOSTNAME);
-		String portString = MainHelpers.getArgument(args, ARG_PORT);
-		boolean localOnly = MainHelpers.getFlag(args, ARG_LOCAL_ONLY);
+		String hostname = MainHelpers.getArgument(args, ARG_HOSTNAME, 'h');
+		String portString = MainHelpers.getArgument(args, ARG_PORT, 'p');
+		boolean localOnly = MainHelpers.getFlag(args, ARG_LOCAL_ONLY, 'l');
 		if (!localOnly && (null == hostname)) {
-			MainHelpers.failStart("Missing hostname");
+			MainHelpers.failStart(USAGE, "Missing hostname");
 		}
 		if (!localOnly && (null == portString)) {
-			MainHelpers.failStart("Missing port");
+			MainHelpers.failStart(USAGE, "Missing port");
 		}
-		String publicKeyString = MainHelpers.getArgument(args, ARG_PUBLIC_KEY);
+		String publicKeyString = MainHelpers.getArgument(args, ARG_PUBLIC_KEY, 'k');
 		if (null == publicKeyString) {
-			throw MainHelpers.failStart("Missing public key");
+			throw MainHelpers.failStart(USAGE, "Missing public key");
 		}
 		PublicKey publicKey = CryptoHelpers.deserializePublic(Base64.getDecoder().decode(publicKeyString));
 		if (null == publicKey) {
-			throw MainHelpers.failStart("Invalid public key");
+			throw MainHelpers.failStart(USAGE, "Invalid public key");
 		}
 		
 		// Start the chat container (owns the Laminar connection).
-		ChatStore chatStore = new ChatStore();
-		IChatWriter chatWriter = _buildChatWriter(chatStore, hostname, portString, localOnly);
+		ChatStore chatStore = _buildChatStore(args);
+		IChatWriter chatWriter = _buildChatWriter(chatStore, hostname, portString, localOnly, args);
+		ChatSnapshotter snapshotter = _buildChatSnapshotter(chatStore, args);
 		
 		// Create the server and start it.
 		ResourceCollection combinedCollection;
@@ -78,7 +147,9 @@ public class ChatRest {
 		CountDownLatch stopLatch = new CountDownLatch(1);
 		// -install the exit entry-point.
 		ExitEntryPoints.registerEntryPoints(stopLatch, server);
-		ChatEntryPoints.registerEntryPoints(server, chatStore, chatWriter, publicKey);
+		// Token validation gets a thread per core.
+		TokenBatchValidator tokenValidator = new TokenBatchValidator(new TokenCache(new TokenKeys(publicKey, Collections.emptyMap()), TokenCache.DEFAULT_MAX_ENTRIES), Runtime.getRuntime().availableProcessors(), TokenBatchValidator.DEFAULT_MAX_PENDING);
+		ChatEntryPoints.registerEntryPoints(server, chatStore, chatWriter, tokenValidator);
 		server.start();
 		
 		// Count-down the latch in case we are part of a testing environment.
@@ -92,36 +163,170 @@ public class ChatRest {
 			throw Assert.unexpected(e);
 		}
 		server.stop();
+		tokenValidator.close();
 		try {
 			chatWriter.close();
 		} catch (IOException e) {
 			// If this happens on shutdown, just print it.
 			e.printStackTrace();
 		}
+		// The final snapshot is written after the writer is closed so it includes everything which was posted.
+		if (null != snapshotter) {
+			snapshotter.close();
+		}
+		chatStore.close();
 	}
 
-	private static IChatWriter _buildChatWriter(ChatStore chatStore, String hostname, String portString, boolean localOnly) {
+	private static ChatStore _buildChatStore(String[] args) {
+		int backlogSize = _readPositiveInt(args, ARG_BACKLOG_SIZE, DEFAULT_BACKLOG_SIZE, "Backlog size");
+		// By default, we use a shard per core.
+		int shardCount = _readPositiveInt(args, ARG_SHARD_COUNT, Runtime.getRuntime().availableProcessors(), "Fan-out shard count");
+		int highWaterMark = _readPositiveInt(args, ARG_HIGH_WATER_MARK, DEFAULT_HIGH_WATER_MARK, "High-water mark");
+		String policyString = MainHelpers.getArgument(args, ARG_SLOW_CONSUMER_POLICY);
+		SlowConsumerPolicy policy = DEFAULT_SLOW_CONSUMER_POLICY;
+		if (null != policyString) {
+			policy = SlowConsumerPolicy.fromName(policyString);
+			if (null == policy) {
+				throw MainHelpers.failStart(USAGE, "Unknown slow consumer policy (expected disconnect, resync, or conflate): \"" + policyString + "\"");
+			}
+		}
+		long batchWindowMillis = _readNonNegativeLong(args, ARG_BATCH_WINDOW_MILLIS, DEFAULT_BATCH_WINDOW_MILLIS, "Batch window");
+		int maxBatchSize = _readPositiveInt(args, ARG_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_SIZE, "Maximum batch size");
+		File snapshotFile = _getSnapshotFile(args);
+		// The indices depend on the back-end so the snapshot records the mode and is ignored if it doesn't match.
+		IndexMode indexMode = MainHelpers.getFlag(args, ARG_LOCAL_ONLY, 'l')
+				? IndexMode.LOCAL
+				: IndexMode.forLaminarPartitions(_readPositiveInt(args, ARG_PARTITION_COUNT, DEFAULT_PARTITION_COUNT, "Topic partition count"));
+		ChatStore chatStore = new ChatStore(backlogSize, shardCount, highWaterMark, policy, batchWindowMillis, maxBatchSize, indexMode);
+		if ((null != snapshotFile) && snapshotFile.exists()) {
+			try {
+				chatStore.loadSnapshot(snapshotFile);
+			} catch (IOException e) {
+				// The snapshot is only an optimization so start over with an empty store (this one may be partially loaded).
+				System.err.println("Ignoring unreadable chat snapshot: " + e.getLocalizedMessage());
+				chatStore.close();
+				chatStore = new ChatStore(backlogSize, shardCount, highWaterMark, policy, batchWindowMillis, maxBatchSize, indexMode);
+			}
+		}
+		return chatStore;
+	}
+
+	private static ChatSnapshotter _buildChatSnapshotter(ChatStore chatStore, String[] args) {
+		File snapshotFile = _getSnapshotFile(args);
+		ChatSnapshotter snapshotter = null;
+		if (null != snapshotFile) {
+			long intervalSeconds = _readPositiveLong(args, ARG_SNAPSHOT_INTERVAL_SECONDS, DEFAULT_SNAPSHOT_INTERVAL_SECONDS, "Snapshot interval");
+			snapshotter = new ChatSnapshotter(chatStore, snapshotFile, intervalSeconds * 1000L);
+		}
+		return snapshotter;
+	}
+
+	private static MessageLog _buildMessageLog(String[] args) {
+		String directoryString = MainHelpers.getArgument(args, ARG_LOG_DIRECTORY);
+		MessageLog log = null;
+		if (null != directoryString) {
+			File directory = new File(directoryString);
+			if (!directory.isDirectory()) {
+				throw MainHelpers.failStart(USAGE, "Log directory does not exist: \"" + directoryString + "\"");
+			}
+			// Segments are mapped as a single buffer so they must fit in an int.
+			int segmentMib = (int)_readLong(args, ARG_LOG_SEGMENT_MIB, DEFAULT_LOG_SEGMENT_MIB, 1L, 1024L, "Log segment size (MiB)");
+			int retainedSegments = _readPositiveInt(args, ARG_LOG_RETAINED_SEGMENTS, DEFAULT_LOG_RETAINED_SEGMENTS, "Retained log segment count");
+			try {
+				log = new MessageLog(directory, segmentMib * 1024 * 1024, retainedSegments);
+			} catch (IOException e) {
+				throw MainHelpers.failStart(USAGE, "Error opening message log: " + e.getLocalizedMessage());
+			}
+		}
+		return log;
+	}
+
+	private static int _readPositiveInt(String[] args, String name, int defaultValue, String description) {
+		return (int)_readLong(args, name, defaultValue, 1L, Integer.MAX_VALUE, description);
+	}
+
+	private static int _readNonNegativeInt(String[] args, String name, int defaultValue, String description) {
+		return (int)_readLong(args, name, defaultValue, 0L, Integer.MAX_VALUE, description);
+	}
+
+	private static long _readPositiveLong(String[] args, String name, long defaultValue, String description) {
+		return _readLong(args, name, defaultValue, 1L, Long.MAX_VALUE, description);
+	}
+
+	private static long _readNonNegativeLong(String[] args, String name, long defaultValue, String description) {
+		return _readLong(args, name, defaultValue, 0L, Long.MAX_VALUE, description);
+	}
+
+	private static long _readLong(String[] args, String name, long defaultValue, long minimum, long maximum, String description) {
+		String string = MainHelpers.getArgument(args, name);
+		return (null != string)
+				? _parseLong(string, minimum, maximum, description)
+				: defaultValue;
+	}
+
+	private static long _parseLong(String string, long minimum, long maximum, String description) {
+		long value;
+		try {
+			value = Long.parseLong(string);
+		} catch (NumberFormatException e) {
+			throw MainHelpers.failStart(USAGE, description + " not a number: \"" + string + "\"");
+		}
+		if (value < minimum) {
+			throw MainHelpers.failStart(USAGE, description + ((minimum > 0L) ? " must be positive: \"" : " must not be negative: \"") + string + "\"");
+		}
+		if (value > maximum) {
+			throw MainHelpers.failStart(USAGE, description + " must be at most " + maximum + ": \"" + string + "\"");
+		}
+		return value;
+	}
+
+	private static File _getSnapshotFile(String[] args) {
+		String snapshotString = MainHelpers.getArgument(args, ARG_SNAPSHOT_FILE);
+		File snapshotFile = null;
+		if (null != snapshotString) {
+			snapshotFile = new File(snapshotString);
+			File directory = snapshotFile.getAbsoluteFile().getParentFile();
+			if (!directory.isDirectory()) {
+				throw MainHelpers.failStart(USAGE, "Snapshot directory does not exist: \"" + directory + "\"");
+			}
+		}
+		return snapshotFile;
+	}
+
+	private static IChatWriter _buildChatWriter(ChatStore chatStore, String hostname, String portString, boolean localOnly, String[] args) {
 		IChatWriter chatContainer;
 		if (localOnly) {
-			chatContainer = new ChatLocal(chatStore);
+			int spinCount = _readNonNegativeInt(args, ARG_SEQUENCER_SPINS, DEFAULT_SEQUENCER_SPINS, "Sequencer spin count");
+			chatContainer = new ChatLocal(chatStore, _buildMessageLog(args), spinCount);
 		} else {
-			int port;
-			try {
-				port = Integer.parseInt(portString);
-			} catch (NumberFormatException e) {
-				throw MainHelpers.failStart("Port not a number: \"" + portString + "\"");
-			}
+			int port = (int)_parseLong(portString, 1L, 65535L, "Port");
 			InetSocketAddress laminarServer;
 			try{
 				laminarServer = _parseIpAndPort(hostname, port);
 			} catch (UnknownHostException e) {
-				throw MainHelpers.failStart("Unknown host: \"" + hostname + "\"");
+				throw MainHelpers.failStart(USAGE, "Unknown host: \"" + hostname + "\"");
 			}
+			int writeWindow = _readPositiveInt(args, ARG_WRITE_WINDOW, DEFAULT_WRITE_WINDOW, "In-flight write window");
+			
+			// The checkpoint is optional:  without it, the whole topic is replayed on start.
+			String checkpointString = MainHelpers.getArgument(args, ARG_CHECKPOINT_FILE);
+			File checkpointFile = null;
+			if (null != checkpointString) {
+				checkpointFile = new File(checkpointString);
+				File directory = checkpointFile.getAbsoluteFile().getParentFile();
+				if (!directory.isDirectory()) {
+					throw MainHelpers.failStart(USAGE, "Checkpoint directory does not exist: \"" + directory + "\"");
+				}
+			}
+			
+			int partitionCount = _readPositiveInt(args, ARG_PARTITION_COUNT, DEFAULT_PARTITION_COUNT, "Topic partition count");
+			int writerCount = _readPositiveInt(args, ARG_WRITER_COUNT, DEFAULT_WRITER_COUNT, "Writer connection count");
+			int decodeThreads = _readNonNegativeInt(args, ARG_DECODE_THREADS, DEFAULT_DECODE_THREADS, "Decode thread count");
 			
 			try {
-				chatContainer = new ChatLaminar(chatStore, laminarServer);
+				chatContainer = new ChatLaminar(chatStore, new NetworkLaminarCluster(laminarServer), partitionCount, writerCount, writeWindow, checkpointFile, decodeThreads);
 			} catch (IOException e) {
-				throw MainHelpers.failStart("Error connecting to Laimar: " + e.getLocalizedMessage());
+				throw MainHelpers.failStart(USAGE, "Error connecting to Laimar: " + e.getLocalizedMessage());
 			}
 		}
 		return chatContainer;
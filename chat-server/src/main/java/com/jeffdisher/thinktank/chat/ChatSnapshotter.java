@@ -0,0 +1,53 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.jeffdisher.laminar.utils.Assert;
+
+
+/**
+ * Periodically writes the ChatStore snapshot so that a node which doesn't shut down cleanly still has a recent one.
+ * Closing the snapshotter writes a final snapshot, so it should be closed after the IChatWriter (so that everything
+ * already posted is included) but before the ChatStore.
+ */
+public class ChatSnapshotter implements Closeable {
+	private final ChatStore _chatStore;
+	private final File _file;
+	private final Timer _timer;
+
+	public ChatSnapshotter(ChatStore chatStore, File file, long intervalMillis) {
+		Assert.assertTrue(null != chatStore);
+		Assert.assertTrue(null != file);
+		Assert.assertTrue(intervalMillis > 0L);
+		_chatStore = chatStore;
+		_file = file;
+		_timer = new Timer("ChatSnapshotter", true);
+		_timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				_writeSnapshot();
+			}
+		}, intervalMillis, intervalMillis);
+	}
+
+	@Override
+	public void close() {
+		_timer.cancel();
+		_writeSnapshot();
+	}
+
+
+	// Synchronized since close() can race with a timer write which is already running.
+	private synchronized void _writeSnapshot() {
+		try {
+			_chatStore.writeSnapshot(_file);
+		} catch (IOException e) {
+			// The snapshot is only an optimization so we will keep running (the previous snapshot is still valid).
+			e.printStackTrace();
+		}
+	}
+}
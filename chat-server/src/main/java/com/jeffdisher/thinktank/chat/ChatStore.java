@@ -1,29 +1,102 @@
 package com.jeffdisher.thinktank.chat;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Set;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.function.Consumer;
 
-import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
 
-import com.eclipsesource.json.JsonObject;
 import com.jeffdisher.laminar.utils.Assert;
+import com.jeffdisher.thinktank.chat.support.StringCodec;
+import com.jeffdisher.thinktank.chat.support.UUIDCodec;
 
 
 /**
  * Data structure which represents what the server knows about the state of the chatroom and all the connected users.
+ * Connections are split across a number of FanOutShard instances, each with its own worker thread, so a new message is
+ * fanned out on all of them in parallel.  Each connection has its own OutboundQueue so delivering a message only
+ * enqueues it for each connection and never waits on the network.
+ * The backlog of recent messages is kept in a preallocated MessageRing so reconnecting clients can resume from any
+ * index still in the ring.
+ * The backlog can be written to a snapshot file and loaded back on start so that a restarted node can serve reconnecting
+ * clients immediately.  The snapshot is the last index followed by the pre-encoded binary frames of the backlog.
+ * The snapshot also records the IndexMode of the store so a snapshot of indices from a different source (for example,
+ * after changing the number of Laminar partitions) is rejected instead of silently mixing incomparable indices.
  */
-public class ChatStore {
-	private static final int CACHE_SIZE = 10;
-	private final Set<RemoteEndpoint> _connections = new HashSet<>();
-	private final Queue<MessageTuple> _cache = new LinkedList<>();
+public class ChatStore implements Closeable {
+	/**
+	 * The longest message content (in chars) we will accept, which bounds the memory used by each backlog entry.
+	 */
+	public static final int MAX_CONTENT_CHARS = 1024;
+	// A conservative estimate of the fixed heap cost of a backlog entry (tuple, UUID, String and array headers).
+	private static final long ENTRY_OVERHEAD_BYTES = 128L;
+	// The JSON framing around the content:  {"sender":"<36-char UUID>","content":"","index":<up to 19 digits>}.
+	private static final int FRAME_OVERHEAD_CHARS = 96;
+	// The binary framing around the content:  2 varints, a 16-byte UUID and the ByteBuffer headers.
+	private static final int BINARY_OVERHEAD_BYTES = 64;
+	// Identifies the snapshot format (changed if the layout ever changes).
+	private static final int SNAPSHOT_MAGIC = 0x54544332;
+	// The magic, index mode, last index, and message count.
+	private static final int SNAPSHOT_HEADER_BYTES = Integer.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+	private final IndexMode _indexMode;
+	private final FanOutShard[] _shards;
+	// The ring and encoders are only used under monitor.
+	private final MessageRing<MessageTuple> _cache;
+	private final ChatJsonEncoder _encoder;
+	private final ChatBinaryEncoder _binaryEncoder;
+	private long _approximateCacheBytes;
+
+	/**
+	 * Creates the store.
+	 * 
+	 * @param backlogSize The number of recent messages to keep for clients resuming from an earlier index.
+	 * @param shardCount The number of fan-out shards (each with its own thread) to split the connections across.
+	 * @param highWaterMark The number of frames which can be pending for a single connection before it is considered
+	 * a slow consumer.
+	 * @param slowConsumerPolicy What to do with a connection once it reaches the high-water mark.
+	 * @param batchWindowMillis How long to collect messages into a single frame for batched connections.
+	 * @param maxBatchSize The most messages to put in a single frame for batched connections.
+	 * @param indexMode Where the message indices come from.
+	 */
+	public ChatStore(int backlogSize, int shardCount, int highWaterMark, SlowConsumerPolicy slowConsumerPolicy, long batchWindowMillis, int maxBatchSize, IndexMode indexMode) {
+		Assert.assertTrue(backlogSize > 0);
+		Assert.assertTrue(shardCount > 0);
+		Assert.assertTrue(highWaterMark > 0);
+		Assert.assertTrue(null != slowConsumerPolicy);
+		Assert.assertTrue(null != indexMode);
+		_indexMode = indexMode;
+		_cache = new MessageRing<>(backlogSize);
+		_encoder = new ChatJsonEncoder();
+		_binaryEncoder = new ChatBinaryEncoder();
+		_approximateCacheBytes = 0L;
+		_shards = new FanOutShard[shardCount];
+		for (int i = 0; i < shardCount; ++i) {
+			_shards[i] = new FanOutShard(this, i, highWaterMark, slowConsumerPolicy, batchWindowMillis, maxBatchSize);
+		}
+	}
 
+	/**
+	 * @return Where the message indices come from.
+	 */
+	public IndexMode getIndexMode() {
+		return _indexMode;
+	}
 
 	/**
 	 * Tells the store that a new message has arrived which should be relayed to the connected users.
+	 * Note that this only adds the message to the backlog and hands it to the shards so it doesn't block on fan-out.
 	 * 
 	 * @param sender The sender of the message.
 	 * @param content The message content.
@@ -31,64 +104,267 @@ public class ChatStore {
 	 * index).
 	 */
 	public synchronized void newMessageArrived(UUID sender, String content, long index) {
-		MessageTuple tuple = new MessageTuple(sender, content, index);
-		_cache.add(tuple);
-		if (_cache.size() > CACHE_SIZE) {
-			_cache.remove();
+		// After loading a snapshot, the back-end may replay messages we already have so we ignore them.
+		if (index <= _cache.getLastIndex()) {
+			return;
+		}
+		MessageTuple tuple = _addToCache(sender, content, index);
+		// We hand these off under monitor so every shard sees the messages in the same order.
+		for (FanOutShard shard : _shards) {
+			shard.messageArrived(tuple);
+		}
+	}
+
+	/**
+	 * Tells the store that a batch of new messages, with contiguous indices, has arrived.  This is the same as calling
+	 * newMessageArrived() for each message but only acquires the monitor once and hands the shards the whole batch.
+	 * 
+	 * @param senders The senders of the messages.
+	 * @param contents The message contents (in the same order as the senders).
+	 * @param firstIndex The index of the first message (the others follow it, in order).
+	 */
+	public synchronized void newMessagesArrived(List<UUID> senders, List<String> contents, long firstIndex) {
+		Assert.assertTrue(senders.size() == contents.size());
+		List<MessageTuple> batch = new ArrayList<>(senders.size());
+		for (int i = 0; i < senders.size(); ++i) {
+			long index = firstIndex + i;
+			// After loading a snapshot, the back-end may replay messages we already have so we ignore them.
+			if (index > _cache.getLastIndex()) {
+				batch.add(_addToCache(senders.get(i), contents.get(i), index));
+			}
+		}
+		if (!batch.isEmpty()) {
+			for (FanOutShard shard : _shards) {
+				shard.messagesArrived(batch);
+			}
+		}
+	}
+
+	/**
+	 * The same as newMessagesArrived() but for a batch whose indices are increasing but not necessarily contiguous (as
+	 * when merging partitioned topics).
+	 * 
+	 * @param senders The senders of the messages.
+	 * @param contents The message contents (in the same order as the senders).
+	 * @param indices The indices of the messages (in the same order as the senders).
+	 */
+	public synchronized void newMessagesArrived(List<UUID> senders, List<String> contents, List<Long> indices) {
+		Assert.assertTrue(senders.size() == contents.size());
+		Assert.assertTrue(senders.size() == indices.size());
+		List<MessageTuple> batch = new ArrayList<>(senders.size());
+		for (int i = 0; i < senders.size(); ++i) {
+			long index = indices.get(i);
+			// After loading a snapshot, the back-end may replay messages we already have so we ignore them.
+			if (index > _cache.getLastIndex()) {
+				batch.add(_addToCache(senders.get(i), contents.get(i), index));
+			}
 		}
-		String message = tuple.toJson();
-		for (RemoteEndpoint endpoint : _connections) {
-			try {
-				endpoint.sendString(message);
-			} catch (IOException e) {
-				// This is fatal since we don't have handling for it.
-				throw Assert.unimplemented(e.getLocalizedMessage());
+		if (!batch.isEmpty()) {
+			for (FanOutShard shard : _shards) {
+				shard.messagesArrived(batch);
 			}
 		}
 	}
 
-	public synchronized void addConnectionAndSendBacklog(RemoteEndpoint session, long previousIndex) {
+	/**
+	 * Adds a new connection, sending it "READY" and then any messages in the backlog after previousIndex before any new
+	 * messages.  This never blocks on the network.
+	 * 
+	 * @param session The new connection.
+	 * @param previousIndex The index of the last message the client already has.
+	 * @param isBatched True if the connection asked for the "batch" option (messages are sent as JSON arrays).
+	 * @param isBinary True if the connection negotiated the "binary" protocol (messages are sent as binary frames).
+	 */
+	public void addConnectionAndSendBacklog(Session session, long previousIndex, boolean isBatched, boolean isBinary) {
 		Assert.assertTrue(null != session);
-		boolean didAdd = _connections.add(session);
-		Assert.assertTrue(didAdd);
-		
-		// Send off anything in the cache which is after this index.
-		try {
-			for (MessageTuple tuple : _cache) {
-				if (tuple.index > previousIndex) {
-					session.sendString(tuple.toJson());
+		_shardFor(session).addConnectionAndSendBacklog(session, previousIndex, isBatched, isBinary);
+	}
+
+	/**
+	 * Tells a connection the index assigned to one of its own posts, in order with the other frames sent to it.
+	 * 
+	 * @param session The connection which posted the message.
+	 * @param index The index assigned to the post.
+	 */
+	public void sendAck(Session session, long index) {
+		Assert.assertTrue(null != session);
+		_shardFor(session).sendAck(session, index);
+	}
+
+	public void removeConnection(Session session) {
+		Assert.assertTrue(null != session);
+		_shardFor(session).removeConnection(session);
+	}
+
+	/**
+	 * @return The most messages the backlog can hold.
+	 */
+	public int getBacklogSize() {
+		// The capacity never changes so this doesn't need the monitor.
+		return _cache.capacity();
+	}
+
+	/**
+	 * @return The index of the newest message (0 if there have been no messages).
+	 */
+	public synchronized long getLastIndex() {
+		return _cache.getLastIndex();
+	}
+
+	/**
+	 * @return The approximate number of heap bytes currently used by the backlog entries.
+	 */
+	public synchronized long getApproximateBacklogBytes() {
+		return _approximateCacheBytes;
+	}
+
+	/**
+	 * Atomically replaces the snapshot file with the current backlog.
+	 * The backlog is only copied (as references to the immutable binary frames) under monitor so this doesn't block new
+	 * messages while writing.
+	 * 
+	 * @param file The snapshot file.
+	 * @throws IOException The snapshot couldn't be written (the previous snapshot is still intact).
+	 */
+	public void writeSnapshot(File file) throws IOException {
+		List<ByteBuffer> buffers = new ArrayList<>();
+		ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_BYTES);
+		buffers.add(header);
+		synchronized (this) {
+			header.putInt(SNAPSHOT_MAGIC);
+			header.putInt(_indexMode.ordinal());
+			header.putLong(_cache.getLastIndex());
+			header.putInt(_cache.size());
+			_cache.forEachAfter(0L, (MessageTuple tuple) -> buffers.add(tuple.binaryFrame.duplicate()));
+		}
+		header.flip();
+		ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// A gathering write may be partial so continue until the last buffer is drained.
+			while (array[array.length - 1].hasRemaining()) {
+				channel.write(array);
+			}
+			// Make sure the data is on disk before the rename makes it visible.
+			channel.force(true);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads a snapshot written by writeSnapshot() into the backlog.  This must be called before any connections are
+	 * added or messages arrive.
+	 * 
+	 * @param file The snapshot file.
+	 * @throws IOException The snapshot couldn't be read, is corrupt, or was written under a different IndexMode (the
+	 * backlog may be partially loaded).
+	 */
+	public void loadSnapshot(File file) throws IOException {
+		UUIDCodec uuidCodec = new UUIDCodec();
+		StringCodec stringCodec = new StringCodec();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+			if ((buffer.remaining() < SNAPSHOT_HEADER_BYTES) || (SNAPSHOT_MAGIC != buffer.getInt())) {
+				throw new IOException("Not a chat snapshot: " + file);
+			}
+			int modeOrdinal = buffer.getInt();
+			if (_indexMode.ordinal() != modeOrdinal) {
+				String written = ((modeOrdinal >= 0) && (modeOrdinal < IndexMode.values().length))
+						? IndexMode.values()[modeOrdinal].name()
+						: Integer.toString(modeOrdinal);
+				throw new IOException("Chat snapshot indices are " + written + ", not " + _indexMode + ": " + file);
+			}
+			long lastIndex = buffer.getLong();
+			int count = buffer.getInt();
+			if (count < 0) {
+				throw new IOException("Corrupt message count " + count + " in chat snapshot: " + file);
+			}
+			for (int i = 0; i < count; ++i) {
+				long index = ChatBinaryEncoder.readVarint(buffer);
+				UUID sender = uuidCodec.deserializeFrom(buffer);
+				// A corrupt length must not make us allocate (or read) beyond the end of the file.
+				long length = ChatBinaryEncoder.readVarint(buffer);
+				if ((length < 0L) || (length > buffer.remaining())) {
+					throw new IOException("Corrupt length " + length + " with " + buffer.remaining() + " bytes left in chat snapshot: " + file);
 				}
+				String content = stringCodec.deserializeFrom(buffer, (int)length);
+				// We go through the normal path so the frames are rebuilt and the shards see the messages.
+				newMessageArrived(sender, content, index);
+			}
+			if (lastIndex != getLastIndex()) {
+				throw new IOException("Inconsistent chat snapshot: " + file);
 			}
-		} catch (IOException e) {
-			// This is fatal since we don't have handling for it.
-			throw Assert.unimplemented(e.getLocalizedMessage());
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated chat snapshot: " + file, e);
 		}
 	}
 
-	public synchronized void removeConnection(RemoteEndpoint session) {
-		Assert.assertTrue(null != session);
-		boolean didRemove = _connections.remove(session);
-		Assert.assertTrue(didRemove);
+	@Override
+	public void close() {
+		for (FanOutShard shard : _shards) {
+			shard.close();
+		}
+	}
+
+	/**
+	 * Passes every message in the backlog in the range (previousIndex, lastIndex] to the consumer, in order.
+	 * Only used by FanOutShard to build the backlog for a new connection.
+	 * 
+	 * @param previousIndex The last index the client already has.
+	 * @param lastIndex The last index to pass to the consumer.
+	 * @param consumer Receives the messages.
+	 */
+	synchronized void forEachInBacklog(long previousIndex, long lastIndex, Consumer<MessageTuple> consumer) {
+		_cache.forEachAfter(previousIndex, (MessageTuple tuple) -> {
+			if (tuple.index <= lastIndex) {
+				consumer.accept(tuple);
+			}
+		});
+	}
+
+
+	// Must be called under monitor.
+	private MessageTuple _addToCache(UUID sender, String content, long index) {
+		MessageTuple tuple = new MessageTuple(sender, content, index, _encoder.encode(sender, content, index), _binaryEncoder.encode(sender, content, index));
+		MessageTuple evicted = _cache.add(index, tuple);
+		_approximateCacheBytes += _approximateEntryBytes(content.length());
+		if (null != evicted) {
+			_approximateCacheBytes -= _approximateEntryBytes(evicted.content.length());
+		}
+		return tuple;
 	}
 
+	private FanOutShard _shardFor(Session session) {
+		return _shards[(session.hashCode() & Integer.MAX_VALUE) % _shards.length];
+	}
+
+	private static long _approximateEntryBytes(int contentChars) {
+		// Strings are stored as UTF-16 in the worst case and each entry holds the content, its encoded JSON frame and its
+		// binary frame (up to 3 UTF-8 bytes per char).
+		return ENTRY_OVERHEAD_BYTES
+				+ (2L * (contentChars + FRAME_OVERHEAD_CHARS + (6 * contentChars)))
+				+ (BINARY_OVERHEAD_BYTES + (3L * contentChars));
+	}
 
-	private static class MessageTuple {
+
+	/**
+	 * A message in the backlog.  The wire frames (JSON and binary) are encoded once, when the message arrives, and the
+	 * same instances are then used for the live broadcast and for every backlog replay.
+	 */
+	static class MessageTuple {
 		public final UUID sender;
 		public final String content;
 		public final long index;
+		public final String frame;
+		// Read-only and shared so users must duplicate() it.
+		public final ByteBuffer binaryFrame;
 		
-		public MessageTuple(UUID sender, String content, long index) {
+		public MessageTuple(UUID sender, String content, long index, String frame, ByteBuffer binaryFrame) {
 			this.sender = sender;
 			this.content = content;
 			this.index = index;
-		}
-		
-		public String toJson() {
-			JsonObject object = new JsonObject();
-			object.add("sender", this.sender.toString());
-			object.add("content", this.content);
-			object.add("index", this.index);
-			return object.toString();
+			this.frame = frame;
+			this.binaryFrame = binaryFrame;
 		}
 	}
 }
@@ -0,0 +1,312 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import com.jeffdisher.laminar.utils.Assert;
+
+
+/**
+ * One shard of the connections managed by the ChatStore.
+ * Each shard has its own worker thread and its own set of connections so a new message is fanned out by all the shards
+ * in parallel and adding or removing a connection only locks the shard which owns it.
+ * The worker records the last index it delivered so that a new connection is sent exactly the backlog it is missing:
+ * everything up to that index comes from the ChatStore's backlog and everything after it comes from the worker.  The
+ * backlog is exempt from the connection's high-water mark so replaying it can't make a new connection a slow consumer.
+ * A client reconnecting (possibly to a different server) may already have messages this shard hasn't delivered yet so
+ * the worker skips any message at or before the index the client connected with.
+ * 
+ * Connections which asked for the "batch" option receive JSON arrays of messages instead of individual messages:  the
+ * worker collects the messages arriving within a short window (or up to a maximum count) and sends them to all batched
+ * connections as a single frame.  Their backlog is also sent as a single array frame (or one per maximum count).
+ * Connections which negotiated the "binary" protocol receive the pre-encoded binary frames instead of the JSON frames
+ * and a binary batch is just the concatenation of its messages.  Shared batch frames are only built for the formats
+ * which some connection actually needs.
+ */
+public class FanOutShard {
+	// Sentinel used to tell the worker to stop.
+	private static final ChatStore.MessageTuple STOP = new ChatStore.MessageTuple(null, null, 0L, null, null);
+
+	private final ChatStore _store;
+	private final int _highWaterMark;
+	private final SlowConsumerPolicy _slowConsumerPolicy;
+	private final long _batchWindowNanos;
+	private final int _maxBatchSize;
+	private final BlockingQueue<ChatStore.MessageTuple> _incoming;
+	private final Map<Session, OutboundQueue> _singleConnections;
+	private final Map<Session, OutboundQueue> _batchConnections;
+	// Copies of the connection map values, rebuilt on add/remove, so delivery doesn't iterate the maps (closing a slow
+	// consumer can re-enter removeConnection on the same thread).
+	private OutboundQueue[] _singleQueues;
+	private OutboundQueue[] _batchQueues;
+	private final Thread _worker;
+	private long _lastDeliveredIndex;
+	private long _lastBatchedIndex;
+
+	public FanOutShard(ChatStore store, int shardNumber, int highWaterMark, SlowConsumerPolicy slowConsumerPolicy, long batchWindowMillis, int maxBatchSize) {
+		Assert.assertTrue(batchWindowMillis >= 0L);
+		Assert.assertTrue(maxBatchSize > 0);
+		_store = store;
+		_highWaterMark = highWaterMark;
+		_slowConsumerPolicy = slowConsumerPolicy;
+		_batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+		_maxBatchSize = maxBatchSize;
+		_incoming = new LinkedBlockingQueue<>();
+		_singleConnections = new HashMap<>();
+		_batchConnections = new HashMap<>();
+		_singleQueues = new OutboundQueue[0];
+		_batchQueues = new OutboundQueue[0];
+		_worker = new Thread(() -> _runWorker(), "FanOutShard-" + shardNumber);
+		_lastDeliveredIndex = 0L;
+		_lastBatchedIndex = 0L;
+		_worker.start();
+	}
+
+	/**
+	 * Hands a new message to the shard's worker to be enqueued for all of its connections.  This doesn't block.
+	 * 
+	 * @param tuple The message.
+	 */
+	public void messageArrived(ChatStore.MessageTuple tuple) {
+		_incoming.add(tuple);
+	}
+
+	/**
+	 * Hands a batch of new messages to the shard's worker to be enqueued for all of its connections.  This doesn't
+	 * block.
+	 * 
+	 * @param tuples The messages, in order.
+	 */
+	public void messagesArrived(List<ChatStore.MessageTuple> tuples) {
+		_incoming.addAll(tuples);
+	}
+
+	public synchronized void addConnectionAndSendBacklog(Session session, long previousIndex, boolean isBatched, boolean isBinary) {
+		OutboundQueue queue = new OutboundQueue(session, previousIndex, _highWaterMark, _slowConsumerPolicy, isBinary);
+		queue.startBacklog();
+		queue.enqueueReady();
+		if (isBatched) {
+			OutboundQueue previous = _batchConnections.put(session, queue);
+			Assert.assertTrue(null == previous);
+			_batchQueues = _toArray(_batchConnections);
+			
+			// Anything after _lastBatchedIndex will be delivered by the worker's next batch.
+			List<ChatStore.MessageTuple> backlog = new ArrayList<>();
+			_store.forEachInBacklog(previousIndex, _lastBatchedIndex, (ChatStore.MessageTuple tuple) -> {
+				backlog.add(tuple);
+				if (backlog.size() >= _maxBatchSize) {
+					_enqueueBatch(queue, backlog);
+					backlog.clear();
+				}
+			});
+			if (!backlog.isEmpty()) {
+				_enqueueBatch(queue, backlog);
+			}
+		} else {
+			OutboundQueue previous = _singleConnections.put(session, queue);
+			Assert.assertTrue(null == previous);
+			_singleQueues = _toArray(_singleConnections);
+			
+			// Anything after _lastDeliveredIndex will be delivered by the worker once we release the monitor.
+			_store.forEachInBacklog(previousIndex, _lastDeliveredIndex, (ChatStore.MessageTuple tuple) -> _enqueueSingle(queue, tuple));
+		}
+		queue.finishBacklog();
+	}
+
+	public synchronized void sendAck(Session session, long index) {
+		OutboundQueue queue = _singleConnections.get(session);
+		if (null == queue) {
+			queue = _batchConnections.get(session);
+		}
+		// The connection may have closed before its post committed.
+		if (null != queue) {
+			queue.enqueueAck(index);
+		}
+	}
+
+	public synchronized void removeConnection(Session session) {
+		OutboundQueue queue = _singleConnections.remove(session);
+		if (null != queue) {
+			_singleQueues = _toArray(_singleConnections);
+		} else {
+			queue = _batchConnections.remove(session);
+			Assert.assertTrue(null != queue);
+			_batchQueues = _toArray(_batchConnections);
+		}
+		queue.close();
+	}
+
+	/**
+	 * Stops the worker, waiting for it to deliver anything already handed to it.
+	 */
+	public void close() {
+		_incoming.add(STOP);
+		try {
+			_worker.join();
+		} catch (InterruptedException e) {
+			// We don't use interruption.
+			throw Assert.unexpected(e);
+		}
+	}
+
+
+	private void _runWorker() {
+		// Messages delivered to the single connections but not yet to the batched connections.
+		List<ChatStore.MessageTuple> batch = new ArrayList<>();
+		long flushDeadlineNanos = 0L;
+		boolean keepRunning = true;
+		while (keepRunning) {
+			// If we have a batch started, only wait until its window closes.
+			ChatStore.MessageTuple tuple = batch.isEmpty()
+					? _takeNext()
+					: _pollNext(flushDeadlineNanos - System.nanoTime());
+			if (STOP == tuple) {
+				keepRunning = false;
+			} else if (null != tuple) {
+				_deliver(tuple);
+				if (batch.isEmpty()) {
+					flushDeadlineNanos = System.nanoTime() + _batchWindowNanos;
+				}
+				batch.add(tuple);
+			}
+			boolean shouldFlush = !keepRunning
+					|| (null == tuple)
+					|| (batch.size() >= _maxBatchSize)
+					|| ((flushDeadlineNanos - System.nanoTime()) <= 0L);
+			if (shouldFlush && !batch.isEmpty()) {
+				_deliverBatch(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private ChatStore.MessageTuple _takeNext() {
+		try {
+			return _incoming.take();
+		} catch (InterruptedException e) {
+			// We don't use interruption.
+			throw Assert.unexpected(e);
+		}
+	}
+
+	private ChatStore.MessageTuple _pollNext(long timeoutNanos) {
+		try {
+			return _incoming.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			// We don't use interruption.
+			throw Assert.unexpected(e);
+		}
+	}
+
+	private synchronized void _deliver(ChatStore.MessageTuple tuple) {
+		for (OutboundQueue queue : _singleQueues) {
+			_enqueueSingle(queue, tuple);
+		}
+		_lastDeliveredIndex = tuple.index;
+	}
+
+	private synchronized void _deliverBatch(List<ChatStore.MessageTuple> batch) {
+		if (_batchQueues.length > 0) {
+			// Each format's frame is built once, only if needed, and shared by all of the batched connections using it.
+			String frame = null;
+			ByteBuffer binaryFrame = null;
+			long firstIndex = batch.get(0).index;
+			long lastIndex = batch.get(batch.size() - 1).index;
+			for (OutboundQueue queue : _batchQueues) {
+				long previousIndex = queue.getPreviousIndex();
+				if (previousIndex >= lastIndex) {
+					// The client already has all of these.
+				} else if (previousIndex >= firstIndex) {
+					// The client already has some of these so it needs its own frame of the rest.
+					_enqueueBatch(queue, _after(batch, previousIndex));
+				} else if (queue.isBinary()) {
+					if (null == binaryFrame) {
+						binaryFrame = _buildBinaryFrame(batch);
+					}
+					queue.enqueue(binaryFrame, firstIndex, lastIndex);
+				} else {
+					if (null == frame) {
+						frame = _buildArrayFrame(batch);
+					}
+					queue.enqueue(frame, firstIndex, lastIndex);
+				}
+			}
+		}
+		_lastBatchedIndex = batch.get(batch.size() - 1).index;
+	}
+
+	private static void _enqueueSingle(OutboundQueue queue, ChatStore.MessageTuple tuple) {
+		// The client may already have this if it reconnected from further ahead than this shard has delivered.
+		if (tuple.index <= queue.getPreviousIndex()) {
+			// Skip it.
+		} else if (queue.isBinary()) {
+			queue.enqueue(tuple.binaryFrame, tuple.index, tuple.index);
+		} else {
+			queue.enqueue(tuple.frame, tuple.index);
+		}
+	}
+
+	private static List<ChatStore.MessageTuple> _after(List<ChatStore.MessageTuple> batch, long previousIndex) {
+		int start = 0;
+		while (batch.get(start).index <= previousIndex) {
+			start += 1;
+		}
+		return batch.subList(start, batch.size());
+	}
+
+	private static void _enqueueBatch(OutboundQueue queue, List<ChatStore.MessageTuple> batch) {
+		long firstIndex = batch.get(0).index;
+		long lastIndex = batch.get(batch.size() - 1).index;
+		if (queue.isBinary()) {
+			queue.enqueue(_buildBinaryFrame(batch), firstIndex, lastIndex);
+		} else {
+			queue.enqueue(_buildArrayFrame(batch), firstIndex, lastIndex);
+		}
+	}
+
+	private static ByteBuffer _buildBinaryFrame(List<ChatStore.MessageTuple> batch) {
+		// A view over the tuples' binary frames avoids copying the list just to concatenate them.
+		return ChatBinaryEncoder.concatenate(new AbstractList<ByteBuffer>() {
+			@Override
+			public ByteBuffer get(int index) {
+				return batch.get(index).binaryFrame;
+			}
+			@Override
+			public int size() {
+				return batch.size();
+			}
+		});
+	}
+
+	private static String _buildArrayFrame(List<ChatStore.MessageTuple> batch) {
+		int length = 1 + batch.size();
+		for (ChatStore.MessageTuple tuple : batch) {
+			length += tuple.frame.length();
+		}
+		StringBuilder builder = new StringBuilder(length);
+		builder.append('[');
+		boolean isFirst = true;
+		for (ChatStore.MessageTuple tuple : batch) {
+			if (!isFirst) {
+				builder.append(',');
+			}
+			builder.append(tuple.frame);
+			isFirst = false;
+		}
+		builder.append(']');
+		return builder.toString();
+	}
+
+	private static OutboundQueue[] _toArray(Map<Session, OutboundQueue> connections) {
+		return connections.values().toArray(new OutboundQueue[connections.size()]);
+	}
+}
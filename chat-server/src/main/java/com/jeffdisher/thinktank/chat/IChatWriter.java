@@ -2,6 +2,7 @@ package com.jeffdisher.thinktank.chat;
 
 import java.io.Closeable;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 
 /**
@@ -15,5 +16,18 @@ public interface IChatWriter extends Closeable {
 	 * @param uuid The UUID of the user posting the message.
 	 * @param message The message posted.
 	 */
-	void post(UUID uuid, String message);
+	default void post(UUID uuid, String message) {
+		postAsync(uuid, message);
+	}
+
+	/**
+	 * Posts a message to the chat room which will be asynchronously sent to all attached listeners, returning a future
+	 * which completes once the message is durable.
+	 * 
+	 * @param uuid The UUID of the user posting the message.
+	 * @param message The message posted.
+	 * @return A future which completes with the index assigned to the message (or exceptionally if it was not
+	 * accepted).
+	 */
+	CompletableFuture<Long> postAsync(UUID uuid, String message);
 }
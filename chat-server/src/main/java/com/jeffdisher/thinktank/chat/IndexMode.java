@@ -0,0 +1,33 @@
+package com.jeffdisher.thinktank.chat;
+
+
+/**
+ * Describes where the message indices in a ChatStore come from.  Indices from different modes aren't comparable so a
+ * snapshot written under one mode is rejected when loaded under another.
+ */
+public enum IndexMode {
+	/**
+	 * Indices are assigned by ChatLocal (and its MessageLog, if there is one).
+	 */
+	LOCAL,
+	/**
+	 * Indices are the consequence offsets of a single Laminar topic.
+	 */
+	CONSEQUENCE_OFFSET,
+	/**
+	 * Indices are the intention offsets of the puts to a partitioned set of Laminar topics (merged by the
+	 * PartitionMerger).
+	 */
+	INTENTION_OFFSET,
+	;
+
+	/**
+	 * @param partitionCount The number of topic partitions ChatLaminar is using.
+	 * @return The mode of the indices ChatLaminar will send to its ChatStore.
+	 */
+	public static IndexMode forLaminarPartitions(int partitionCount) {
+		return (partitionCount > 1)
+				? INTENTION_OFFSET
+				: CONSEQUENCE_OFFSET;
+	}
+}
@@ -0,0 +1,264 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import com.jeffdisher.laminar.utils.Assert;
+import com.jeffdisher.thinktank.chat.support.StringCodec;
+import com.jeffdisher.thinktank.chat.support.UUIDCodec;
+
+
+/**
+ * An append-only log of chat messages, used by ChatLocal to make the stand-alone mode durable.
+ * The log is split into fixed-size segment files, each memory-mapped and named for the index of its first message.
+ * When a message doesn't fit in the current segment, a new segment is started and the oldest segments beyond the
+ * retention count are deleted.
+ * Each record is the length and CRC32 of the message, followed by the message in the ChatBinaryEncoder layout.  An
+ * unused part of a segment is zeroes so a zero length marks the end of the segment.
+ * Each segment has a sparse index (every SPARSE_INDEX_INTERVAL records) from message index to file position so reading
+ * from a given index only scans a few records.
+ * On start, every segment is scanned and validated, stopping at the first torn or corrupt record (which is where the
+ * next append will go).
+ * Note that the mapped pages are written back by the OS so a process crash loses nothing but only rollover and close()
+ * force the data to disk.
+ */
+public class MessageLog implements Closeable {
+	private static final String SEGMENT_SUFFIX = ".log";
+	// The length and CRC32 before each record.
+	private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+	private static final int SPARSE_INDEX_INTERVAL = 64;
+
+	private final File _directory;
+	private final int _segmentBytes;
+	private final int _retainedSegments;
+	private final ChatBinaryEncoder _encoder;
+	private final UUIDCodec _uuidCodec;
+	private final StringCodec _stringCodec;
+	// Segments keyed by the index of their first message.
+	private final TreeMap<Long, Segment> _segments;
+	private Segment _current;
+	private long _lastIndex;
+
+	/**
+	 * Opens the log in the given directory, recovering any segments already there.
+	 * 
+	 * @param directory The directory holding the segment files.
+	 * @param segmentBytes The size of each new segment file.
+	 * @param retainedSegments The most segments to keep (older segments are deleted).
+	 * @throws IOException There was an error reading the existing segments.
+	 */
+	public MessageLog(File directory, int segmentBytes, int retainedSegments) throws IOException {
+		Assert.assertTrue(directory.isDirectory());
+		// Make sure the largest possible message always fits in a segment.
+		Assert.assertTrue(segmentBytes >= (RECORD_HEADER_BYTES + 64 + (3 * ChatStore.MAX_CONTENT_CHARS)));
+		Assert.assertTrue(retainedSegments > 0);
+		_directory = directory;
+		_segmentBytes = segmentBytes;
+		_retainedSegments = retainedSegments;
+		_encoder = new ChatBinaryEncoder();
+		_uuidCodec = new UUIDCodec();
+		_stringCodec = new StringCodec();
+		_segments = new TreeMap<>();
+		_current = null;
+		_lastIndex = 0L;
+		
+		File[] files = directory.listFiles((File dir, String name) -> name.endsWith(SEGMENT_SUFFIX));
+		// The names are zero-padded so they sort in index order.
+		Arrays.sort(files);
+		for (File file : files) {
+			Segment segment = _recoverSegment(file);
+			_segments.put(segment.firstIndex, segment);
+			_current = segment;
+		}
+	}
+
+	/**
+	 * Appends a message to the log.
+	 * 
+	 * @param sender The sender of the message.
+	 * @param content The message content.
+	 * @param index The index of the message (must be greater than any index already in the log).
+	 * @throws IOException There was an error starting a new segment.
+	 */
+	public synchronized void append(UUID sender, String content, long index) throws IOException {
+		Assert.assertTrue(index > _lastIndex);
+		ByteBuffer frame = _encoder.encode(sender, content, index);
+		int length = frame.remaining();
+		if ((null == _current) || ((_current.end + RECORD_HEADER_BYTES + length) > _current.buffer.capacity())) {
+			_rollTo(index);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(frame.duplicate());
+		
+		int position = _current.end;
+		ByteBuffer writer = _current.buffer.duplicate();
+		writer.position(position + RECORD_HEADER_BYTES);
+		writer.put(frame);
+		writer.putInt(position + Integer.BYTES, (int)crc.getValue());
+		// We write the length last since a non-zero length is what makes the record visible to recovery.
+		writer.putInt(position, length);
+		_current.recordAppended(index, position, RECORD_HEADER_BYTES + length);
+		_lastIndex = index;
+	}
+
+	/**
+	 * Passes every message in the log with an index greater than previousIndex to the consumer, in order.
+	 * 
+	 * @param previousIndex The last index the caller already has.
+	 * @param consumer Receives the messages.
+	 */
+	public synchronized void forEachAfter(long previousIndex, IEntryConsumer consumer) {
+		// Start in the segment which could contain the next index (or the oldest, if it is older than the log).
+		Long startKey = _segments.floorKey(previousIndex + 1L);
+		Map<Long, Segment> candidates = (null != startKey)
+				? _segments.tailMap(startKey, true)
+				: _segments;
+		for (Segment segment : candidates.values()) {
+			Map.Entry<Long, Integer> hint = segment.sparseIndex.floorEntry(previousIndex + 1L);
+			int position = (null != hint)
+					? hint.getValue()
+					: 0;
+			ByteBuffer reader = segment.buffer.duplicate();
+			while (position < segment.end) {
+				int length = reader.getInt(position);
+				reader.position(position + RECORD_HEADER_BYTES);
+				long index = ChatBinaryEncoder.readVarint(reader);
+				if (index > previousIndex) {
+					UUID sender = _uuidCodec.deserializeFrom(reader);
+					String content = _stringCodec.deserializeFrom(reader, (int)ChatBinaryEncoder.readVarint(reader));
+					consumer.message(sender, content, index);
+				}
+				position += RECORD_HEADER_BYTES + length;
+			}
+		}
+	}
+
+	/**
+	 * @return The index of the newest message in the log (0 if the log is empty).
+	 */
+	public synchronized long getLastIndex() {
+		return _lastIndex;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (null != _current) {
+			_current.buffer.force();
+		}
+	}
+
+
+	private void _rollTo(long firstIndex) throws IOException {
+		if (null != _current) {
+			_current.buffer.force();
+		}
+		File file = new File(_directory, String.format("%020d", firstIndex) + SEGMENT_SUFFIX);
+		_current = new Segment(firstIndex, file, _map(file, _segmentBytes));
+		_segments.put(firstIndex, _current);
+		while (_segments.size() > _retainedSegments) {
+			Segment oldest = _segments.pollFirstEntry().getValue();
+			// The mapping stays valid until collected, even once the file is deleted.
+			if (!oldest.file.delete()) {
+				System.err.println("Failed to delete old log segment: " + oldest.file);
+			}
+		}
+	}
+
+	private Segment _recoverSegment(File file) throws IOException {
+		String name = file.getName();
+		long firstIndex;
+		try {
+			firstIndex = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			throw new IOException("Unexpected file in log directory: " + file);
+		}
+		// Existing segments keep their own size, even if the configured size has changed.
+		Segment segment = new Segment(firstIndex, file, _map(file, (int)file.length()));
+		MappedByteBuffer buffer = segment.buffer;
+		ByteBuffer reader = buffer.duplicate();
+		int position = 0;
+		boolean isValid = true;
+		while (isValid && ((position + RECORD_HEADER_BYTES) <= buffer.capacity())) {
+			int length = buffer.getInt(position);
+			isValid = (length > 0) && ((position + RECORD_HEADER_BYTES + length) <= buffer.capacity());
+			if (isValid) {
+				ByteBuffer record = buffer.duplicate();
+				record.position(position + RECORD_HEADER_BYTES);
+				record.limit(position + RECORD_HEADER_BYTES + length);
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				isValid = ((int)crc.getValue() == buffer.getInt(position + Integer.BYTES));
+			}
+			if (isValid) {
+				reader.position(position + RECORD_HEADER_BYTES);
+				long index = ChatBinaryEncoder.readVarint(reader);
+				isValid = (index > _lastIndex);
+				if (isValid) {
+					segment.recordAppended(index, position, RECORD_HEADER_BYTES + length);
+					_lastIndex = index;
+					position += RECORD_HEADER_BYTES + length;
+				}
+			}
+		}
+		// Clear anything after the last valid record (a torn write) so it can't be mistaken for a record later.
+		if ((position < buffer.capacity()) && (0 != buffer.get(position))) {
+			for (int i = position; i < buffer.capacity(); ++i) {
+				buffer.put(i, (byte)0);
+			}
+		}
+		return segment;
+	}
+
+	private static MappedByteBuffer _map(File file, int size) throws IOException {
+		// The mapping outlives the channel.
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+		}
+	}
+
+
+	/**
+	 * Receives messages read from the log.
+	 */
+	public interface IEntryConsumer {
+		void message(UUID sender, String content, long index);
+	}
+
+
+	private static class Segment {
+		public final long firstIndex;
+		public final File file;
+		public final MappedByteBuffer buffer;
+		// Maps every SPARSE_INDEX_INTERVAL-th message index to the position of its record.
+		public final TreeMap<Long, Integer> sparseIndex;
+		public int end;
+		public int records;
+		
+		public Segment(long firstIndex, File file, MappedByteBuffer buffer) {
+			this.firstIndex = firstIndex;
+			this.file = file;
+			this.buffer = buffer;
+			this.sparseIndex = new TreeMap<>();
+			this.end = 0;
+			this.records = 0;
+		}
+		
+		public void recordAppended(long index, int position, int size) {
+			if (0 == (this.records % SPARSE_INDEX_INTERVAL)) {
+				this.sparseIndex.put(index, position);
+			}
+			this.records += 1;
+			this.end = position + size;
+		}
+	}
+}
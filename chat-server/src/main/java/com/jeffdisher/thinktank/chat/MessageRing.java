@@ -0,0 +1,126 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.util.function.Consumer;
+
+import com.jeffdisher.laminar.utils.Assert;
+
+
+/**
+ * A fixed-capacity ring of the most recent messages, keyed by their message index.
+ * The storage is allocated once, up-front, and the oldest entry is overwritten once the ring is full.
+ * Since indices are added in strictly increasing order, the first message after a given index is found by binary search
+ * over the ring (with constant-time short-cuts for the common "nothing new" and "everything" cases).
+ * 
+ * Note that this class is NOT thread-safe.
+ * 
+ * @param <T> The type of value stored in the ring.
+ */
+public class MessageRing<T> {
+	private final long[] _indices;
+	private final Object[] _values;
+	// The physical position of the oldest entry.
+	private int _head;
+	private int _size;
+
+	public MessageRing(int capacity) {
+		Assert.assertTrue(capacity > 0);
+		_indices = new long[capacity];
+		_values = new Object[capacity];
+		_head = 0;
+		_size = 0;
+	}
+
+	/**
+	 * Adds a new value to the ring, evicting the oldest if the ring is full.
+	 * 
+	 * @param index The index of the value (must be greater than any index already in the ring).
+	 * @param value The value to add.
+	 * @return The evicted value or null if nothing was evicted.
+	 */
+	public T add(long index, T value) {
+		Assert.assertTrue((0 == _size) || (index > getLastIndex()));
+		T evicted = null;
+		int position;
+		if (_size < _indices.length) {
+			position = _physical(_size);
+			_size += 1;
+		} else {
+			position = _head;
+			evicted = _valueAt(position);
+			_head = _physical(1);
+		}
+		_indices[position] = index;
+		_values[position] = value;
+		return evicted;
+	}
+
+	/**
+	 * Passes every value with an index greater than previousIndex to the given consumer, in index order.
+	 * 
+	 * @param previousIndex The last index the caller already has.
+	 * @param consumer Receives every value after previousIndex.
+	 */
+	public void forEachAfter(long previousIndex, Consumer<T> consumer) {
+		for (int i = _firstLogicalAfter(previousIndex); i < _size; ++i) {
+			consumer.accept(_valueAt(_physical(i)));
+		}
+	}
+
+	/**
+	 * @return The index of the newest value in the ring (0 if the ring is empty).
+	 */
+	public long getLastIndex() {
+		return (_size > 0)
+				? _indices[_physical(_size - 1)]
+				: 0L;
+	}
+
+	/**
+	 * @return The number of values currently in the ring.
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * @return The maximum number of values the ring can hold.
+	 */
+	public int capacity() {
+		return _indices.length;
+	}
+
+
+	private int _firstLogicalAfter(long previousIndex) {
+		int found;
+		if ((0 == _size) || (previousIndex >= getLastIndex())) {
+			// Nothing new (the common case for an up-to-date client).
+			found = _size;
+		} else if (previousIndex < _indices[_head]) {
+			// Everything in the ring is newer (includes the case of a new client).
+			found = 0;
+		} else {
+			// Binary search for the first logical position whose index is greater than previousIndex.
+			int low = 0;
+			int high = _size - 1;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (_indices[_physical(mid)] > previousIndex) {
+					high = mid;
+				} else {
+					low = mid + 1;
+				}
+			}
+			found = low;
+		}
+		return found;
+	}
+
+	private int _physical(int logical) {
+		return (_head + logical) % _indices.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T _valueAt(int position) {
+		return (T) _values[position];
+	}
+}
@@ -0,0 +1,343 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import com.eclipsesource.json.JsonObject;
+import com.jeffdisher.laminar.utils.Assert;
+
+
+/**
+ * The queue of frames waiting to be sent to a single connected WebSocket.
+ * Frames are sent asynchronously, one at a time, with the completion callback of each send starting the next one.  This
+ * means that the thread enqueuing a frame never blocks on the network and a slow client only delays its own queue.
+ * A queue for a connection which negotiated the "binary" protocol sends messages as binary frames but control messages
+ * (resync, gap, and ack) are still sent as text frames.
+ * The initial "READY" is queued like any other frame, ahead of the backlog.
+ * Acks don't count as a message for resync.  When the queue is conflated, only the message frames are replaced so the
+ * control frames (READY and acks) are still sent, in their original order.
+ * A resync tells the client the last index whose send completed (starting from the index the client connected with)
+ * and the connection is closed once the resync frame itself has been sent.
+ * The queue has a high-water mark:  if the client falls so far behind that the number of pending frames reaches it, the
+ * SlowConsumerPolicy decides what happens to the connection.  The backlog replayed to a new connection (between
+ * startBacklog() and finishBacklog()) doesn't count toward the high-water mark, since it can be much larger than the
+ * mark and the client hasn't had a chance to fall behind yet, so only what is queued behind it is limited.
+ */
+public class OutboundQueue implements WriteCallback {
+	// The index range used for frames which don't contain messages (READY and acks).
+	private static final long NO_INDEX = 0L;
+
+	private final Session _session;
+	private final RemoteEndpoint _remote;
+	private final int _highWaterMark;
+	private final SlowConsumerPolicy _policy;
+	private final boolean _isBinary;
+	private final long _previousIndex;
+	private final Queue<Frame> _pending;
+	private boolean _isSending;
+	private boolean _isClosed;
+	private boolean _isReplayingBacklog;
+	// The number of backlog frames at the head of _pending (these don't count toward the high-water mark).
+	private int _pendingBacklog;
+	// The frame whose send is in progress (null if none).
+	private Frame _sending;
+	// The last message index whose send completed (used to tell the client where to resync from).
+	private long _lastSentIndex;
+
+	/**
+	 * Creates the queue for a new connection.
+	 * 
+	 * @param session The connection.
+	 * @param previousIndex The index of the last message the client already has.
+	 * @param highWaterMark The number of pending frames at which the SlowConsumerPolicy is applied.
+	 * @param policy What to do with a slow consumer.
+	 * @param isBinary True if the connection negotiated the "binary" protocol.
+	 */
+	public OutboundQueue(Session session, long previousIndex, int highWaterMark, SlowConsumerPolicy policy, boolean isBinary) {
+		Assert.assertTrue(null != session);
+		Assert.assertTrue(highWaterMark > 0);
+		Assert.assertTrue(null != policy);
+		_session = session;
+		_remote = session.getRemote();
+		_highWaterMark = highWaterMark;
+		_policy = policy;
+		_isBinary = isBinary;
+		_previousIndex = previousIndex;
+		_pending = new LinkedList<>();
+		_isSending = false;
+		_isClosed = false;
+		_isReplayingBacklog = false;
+		_pendingBacklog = 0;
+		_sending = null;
+		_lastSentIndex = previousIndex;
+	}
+
+	/**
+	 * Adds a frame to the end of the queue, starting an asynchronous send if one isn't already in progress.
+	 * This never blocks on the network.
+	 * 
+	 * @param frame The text frame to send.
+	 * @param index The index of the message in the frame.
+	 */
+	public void enqueue(String frame, long index) {
+		enqueue(frame, index, index);
+	}
+
+	/**
+	 * Adds a frame containing a range of messages to the end of the queue, starting an asynchronous send if one isn't
+	 * already in progress.
+	 * This never blocks on the network.
+	 * 
+	 * @param frame The text frame to send.
+	 * @param firstIndex The index of the first message in the frame.
+	 * @param lastIndex The index of the last message in the frame.
+	 */
+	public void enqueue(String frame, long firstIndex, long lastIndex) {
+		Assert.assertTrue(null != frame);
+		_enqueue(new Frame(frame, null, firstIndex, lastIndex, false));
+	}
+
+	/**
+	 * Adds a binary frame containing a range of messages to the end of the queue, starting an asynchronous send if one
+	 * isn't already in progress.
+	 * This never blocks on the network.
+	 * 
+	 * @param frame The binary frame to send (this may be shared with other queues so it will not be modified).
+	 * @param firstIndex The index of the first message in the frame.
+	 * @param lastIndex The index of the last message in the frame.
+	 */
+	public void enqueue(ByteBuffer frame, long firstIndex, long lastIndex) {
+		Assert.assertTrue(null != frame);
+		_enqueue(new Frame(null, frame, firstIndex, lastIndex, false));
+	}
+
+	/**
+	 * Adds the "READY" message, telling the client its token was accepted, to the end of the queue.
+	 * This never blocks on the network.
+	 */
+	public void enqueueReady() {
+		_enqueue(new Frame("READY", null, NO_INDEX, NO_INDEX, false));
+	}
+
+	/**
+	 * Adds an ack, telling the client the index assigned to one of its own posts, to the end of the queue.
+	 * This never blocks on the network.
+	 * 
+	 * @param index The index assigned to the client's post.
+	 */
+	public void enqueueAck(long index) {
+		JsonObject object = new JsonObject();
+		object.add("ack", index);
+		_enqueue(new Frame(object.toString(), null, NO_INDEX, NO_INDEX, false));
+	}
+
+	/**
+	 * Starts replaying the backlog:  frames enqueued until finishBacklog() is called don't count toward the high-water
+	 * mark.
+	 */
+	public synchronized void startBacklog() {
+		Assert.assertTrue(!_isReplayingBacklog);
+		_isReplayingBacklog = true;
+	}
+
+	/**
+	 * Finishes replaying the backlog:  frames enqueued after this count toward the high-water mark.
+	 */
+	public synchronized void finishBacklog() {
+		Assert.assertTrue(_isReplayingBacklog);
+		_isReplayingBacklog = false;
+	}
+
+	/**
+	 * @return The index of the last message the client already had when it connected.
+	 */
+	public long getPreviousIndex() {
+		return _previousIndex;
+	}
+
+	/**
+	 * @return True if this connection negotiated the "binary" protocol.
+	 */
+	public boolean isBinary() {
+		return _isBinary;
+	}
+
+	/**
+	 * Discards anything still pending and stops any further sends.  Called once the connection has been removed.
+	 */
+	public synchronized void close() {
+		_isClosed = true;
+		_pending.clear();
+		_pendingBacklog = 0;
+	}
+
+	@Override
+	public void writeSuccess() {
+		boolean shouldClose;
+		synchronized (this) {
+			if (NO_INDEX != _sending.lastIndex) {
+				_lastSentIndex = _sending.lastIndex;
+			}
+			shouldClose = _sending.isFinal;
+			if (shouldClose) {
+				_isSending = false;
+				_sending = null;
+				_pending.clear();
+			}
+		}
+		if (shouldClose) {
+			_session.close(ChatEntryPoints.STATUS_SLOW_CONSUMER, "Resync");
+		} else {
+			_sendNext();
+		}
+	}
+
+	@Override
+	public void writeFailed(Throwable x) {
+		// We can't recover a connection once a write has failed so drop everything and close it.
+		synchronized (this) {
+			_isClosed = true;
+			_isSending = false;
+			_sending = null;
+			_pending.clear();
+			_pendingBacklog = 0;
+		}
+		_session.close();
+	}
+
+
+	private void _enqueue(Frame toAdd) {
+		boolean shouldSend = false;
+		boolean shouldClose = false;
+		synchronized (this) {
+			if (!_isClosed) {
+				if (_isReplayingBacklog) {
+					_pendingBacklog += 1;
+				} else if ((_pending.size() - _pendingBacklog) >= _highWaterMark) {
+					shouldClose = _handleSlowConsumer();
+				}
+				if (!_isClosed) {
+					_pending.add(toAdd);
+				}
+				// Note that a resync can leave a final frame to send even though the queue is now closed.
+				if (!_isSending && !_pending.isEmpty()) {
+					_isSending = true;
+					shouldSend = true;
+				}
+			}
+		}
+		if (shouldSend) {
+			_sendNext();
+		}
+		if (shouldClose) {
+			_session.close(ChatEntryPoints.STATUS_SLOW_CONSUMER, "Slow consumer");
+		}
+	}
+
+	// Must be called under monitor.  Returns true if the caller must close the session.
+	private boolean _handleSlowConsumer() {
+		boolean shouldClose = false;
+		// Every policy discards whatever is pending, including any backlog not yet sent.
+		_pendingBacklog = 0;
+		switch (_policy) {
+		case DISCONNECT:
+			_isClosed = true;
+			_pending.clear();
+			shouldClose = true;
+			break;
+		case RESYNC: {
+			// Drop everything and tell the client to come back from the last index it actually received.  Nothing more
+			// will be queued and the connection is closed once this has been sent since the client must reconnect.
+			_pending.clear();
+			JsonObject object = new JsonObject();
+			object.add("resync", _lastSentIndex);
+			_pending.add(new Frame(object.toString(), null, NO_INDEX, NO_INDEX, true));
+			_isClosed = true;
+		}
+			break;
+		case CONFLATE: {
+			// Replace the pending message frames with a single gap marker (absorbing any earlier gap marker still
+			// pending), where the first of them was.  The control frames are kept, in order, around it.
+			List<Frame> kept = new ArrayList<>();
+			int gapPosition = -1;
+			long from = NO_INDEX;
+			long to = NO_INDEX;
+			for (Frame frame : _pending) {
+				if (NO_INDEX != frame.lastIndex) {
+					if (NO_INDEX == from) {
+						from = frame.firstIndex;
+						gapPosition = kept.size();
+					}
+					to = frame.lastIndex;
+				} else {
+					kept.add(frame);
+				}
+			}
+			if (NO_INDEX != from) {
+				JsonObject range = new JsonObject();
+				range.add("from", from);
+				range.add("to", to);
+				JsonObject object = new JsonObject();
+				object.add("gap", range);
+				kept.add(gapPosition, new Frame(object.toString(), null, from, to, false));
+			}
+			_pending.clear();
+			_pending.addAll(kept);
+		}
+			break;
+		default:
+			throw Assert.unreachable("Unknown policy");
+		}
+		return shouldClose;
+	}
+
+	private void _sendNext() {
+		Frame next;
+		synchronized (this) {
+			// Note that a closed queue may still have a final frame (the resync message) to send.
+			next = _pending.poll();
+			if ((null != next) && (_pendingBacklog > 0)) {
+				_pendingBacklog -= 1;
+			}
+			if (null == next) {
+				_isSending = false;
+			}
+			_sending = next;
+		}
+		// We issue the send outside of the monitor since the callback may be invoked on this thread.
+		if (null != next) {
+			if (null != next.text) {
+				_remote.sendString(next.text, this);
+			} else {
+				// The buffer may be shared with other connections so send a duplicate with its own position.
+				_remote.sendBytes(next.binary.duplicate(), this);
+			}
+		}
+	}
+
+
+	private static class Frame {
+		// Exactly one of text or binary is non-null.
+		public final String text;
+		public final ByteBuffer binary;
+		public final long firstIndex;
+		public final long lastIndex;
+		// True if the connection is closed once this frame has been sent.
+		public final boolean isFinal;
+		
+		public Frame(String text, ByteBuffer binary, long firstIndex, long lastIndex, boolean isFinal) {
+			this.text = text;
+			this.binary = binary;
+			this.firstIndex = firstIndex;
+			this.lastIndex = lastIndex;
+			this.isFinal = isFinal;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.function.LongConsumer;
+
+import com.jeffdisher.laminar.utils.Assert;
+import com.jeffdisher.thinktank.chat.support.TopicPut;
+
+
+/**
+ * Merges the messages from the partitioned chat topics into one global order for the ChatStore.
+ * Laminar's intention offsets are global across all topics and each topic's consequences arrive in intention offset
+ * order so, once every partition has been observed up to a given intention offset, no message with an earlier one can
+ * still arrive.  The merger holds each message until that is true and then releases it to the ChatStore with its
+ * intention offset as its index.  This means every node delivers the messages in the same order, with the same
+ * indices, so a client can resume from an index on any node.
+ * A partition with no new messages would hold everything back so ChatLaminar sends "tick" puts to lagging partitions,
+ * which only advance that partition's watermark (see getLaggingPartitions()).
+ */
+public class PartitionMerger {
+	private final ChatStore _chatStore;
+	private final LongConsumer _released;
+	// The highest intention offset observed on each partition.
+	private final long[] _watermarks;
+	private final PriorityQueue<HeldMessage> _held;
+
+	/**
+	 * Creates the merger.
+	 * 
+	 * @param chatStore The store which receives the merged messages.
+	 * @param partitionCount The number of partitions being merged.
+	 * @param released Called with the index of each message after it is released to the store.
+	 */
+	public PartitionMerger(ChatStore chatStore, int partitionCount, LongConsumer released) {
+		Assert.assertTrue(partitionCount > 0);
+		_chatStore = chatStore;
+		_released = released;
+		_watermarks = new long[partitionCount];
+		_held = new PriorityQueue<>((HeldMessage one, HeldMessage two) -> Long.compare(one.intentionOffset, two.intentionOffset));
+	}
+
+	/**
+	 * Adds a batch of puts observed on a partition, releasing any messages which are now in order.
+	 * 
+	 * @param partition The partition the puts were observed on.
+	 * @param puts The puts, in consequence order.
+	 * @param tickKey The key of puts which only advance the watermark.
+	 */
+	public synchronized void putsObserved(int partition, List<TopicPut<UUID, String>> puts, UUID tickKey) {
+		long now = System.nanoTime();
+		for (TopicPut<UUID, String> put : puts) {
+			_advance(partition, put.intentionOffset);
+			if (!tickKey.equals(put.key)) {
+				_held.add(new HeldMessage(put.key, put.value, put.intentionOffset, now));
+			}
+		}
+		_release();
+	}
+
+	/**
+	 * Advances a partition's watermark for a consequence which isn't a put (such as its TOPIC_CREATE).
+	 * 
+	 * @param partition The partition the consequence was observed on.
+	 * @param intentionOffset The intention offset of the consequence.
+	 */
+	public synchronized void consequenceObserved(int partition, long intentionOffset) {
+		_advance(partition, intentionOffset);
+		_release();
+	}
+
+	/**
+	 * Finds the partitions holding back the oldest held message, if it has been held for at least the given time.
+	 * 
+	 * @param heldNanos How long the oldest message must have been held for before we consider it stuck.
+	 * @return The partitions which haven't been observed up to the oldest held message (often empty).
+	 */
+	public synchronized List<Integer> getLaggingPartitions(long heldNanos) {
+		List<Integer> lagging = new ArrayList<>();
+		HeldMessage oldest = _held.peek();
+		if ((null != oldest) && ((System.nanoTime() - oldest.heldSinceNanos) >= heldNanos)) {
+			for (int i = 0; i < _watermarks.length; ++i) {
+				if (_watermarks[i] < oldest.intentionOffset) {
+					lagging.add(i);
+				}
+			}
+		}
+		return lagging;
+	}
+
+	/**
+	 * @return The number of messages waiting for the other partitions.
+	 */
+	public synchronized int getHeldCount() {
+		return _held.size();
+	}
+
+
+	private void _advance(int partition, long intentionOffset) {
+		_watermarks[partition] = Math.max(_watermarks[partition], intentionOffset);
+	}
+
+	private void _release() {
+		long safe = Long.MAX_VALUE;
+		for (long watermark : _watermarks) {
+			safe = Math.min(safe, watermark);
+		}
+		List<UUID> senders = new ArrayList<>();
+		List<String> contents = new ArrayList<>();
+		List<Long> indices = new ArrayList<>();
+		while (!_held.isEmpty() && (_held.peek().intentionOffset <= safe)) {
+			HeldMessage message = _held.remove();
+			senders.add(message.sender);
+			contents.add(message.content);
+			indices.add(message.intentionOffset);
+		}
+		if (!indices.isEmpty()) {
+			// We release under monitor so the store sees the messages in order.
+			_chatStore.newMessagesArrived(senders, contents, indices);
+			for (long index : indices) {
+				_released.accept(index);
+			}
+		}
+	}
+
+
+	private static class HeldMessage {
+		public final UUID sender;
+		public final String content;
+		public final long intentionOffset;
+		public final long heldSinceNanos;
+		
+		public HeldMessage(UUID sender, String content, long intentionOffset, long heldSinceNanos) {
+			this.sender = sender;
+			this.content = content;
+			this.intentionOffset = intentionOffset;
+			this.heldSinceNanos = heldSinceNanos;
+		}
+	}
+}
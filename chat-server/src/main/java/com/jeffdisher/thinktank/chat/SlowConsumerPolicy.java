@@ -0,0 +1,41 @@
+package com.jeffdisher.thinktank.chat;
+
+
+/**
+ * Describes what an OutboundQueue does when its connection falls behind by more than the high-water mark.
+ */
+public enum SlowConsumerPolicy {
+	/**
+	 * The connection is closed with ChatEntryPoints.STATUS_SLOW_CONSUMER so the client reconnects and resumes from the
+	 * last index it saw.
+	 */
+	DISCONNECT,
+	/**
+	 * The pending messages are dropped and the client is sent a "resync" message, after which nothing more is queued
+	 * and the connection is closed.  The client is expected to reconnect from the last index it saw.
+	 */
+	RESYNC,
+	/**
+	 * The pending messages are replaced by a single "gap" message describing the range of indices which were skipped
+	 * and delivery continues after it.
+	 */
+	CONFLATE,
+	;
+
+	/**
+	 * Parses a policy from its command-line name (case-insensitive).
+	 * 
+	 * @param name The name of the policy.
+	 * @return The matching policy or null if there isn't one.
+	 */
+	public static SlowConsumerPolicy fromName(String name) {
+		SlowConsumerPolicy match = null;
+		for (SlowConsumerPolicy policy : values()) {
+			if (policy.name().equalsIgnoreCase(name)) {
+				match = policy;
+				break;
+			}
+		}
+		return match;
+	}
+}
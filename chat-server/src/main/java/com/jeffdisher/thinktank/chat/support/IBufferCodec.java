@@ -0,0 +1,49 @@
+package com.jeffdisher.thinktank.chat.support;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * An ICodec which can also serialize into, and deserialize from, a part of an existing buffer or array, so that callers
+ * building a larger frame (or reading one) don't need an intermediate array for each object.
+ * The layout is the same as the ICodec methods so the two can be mixed freely.
+ * 
+ * @param <T> The high-level type being serialized/deserialized.
+ */
+public interface IBufferCodec <T> extends ICodec<T> {
+	/**
+	 * Returns the number of bytes serializeInto() will write for the given object.
+	 * 
+	 * @param object The object instance to measure.
+	 * @return The serialized size, in bytes.
+	 */
+	int serializedSize(T object);
+
+	/**
+	 * Serializes the given object into the buffer, at its current position, advancing the position.
+	 * 
+	 * @param object The object instance to serialize.
+	 * @param buffer The buffer to write into (must have at least serializedSize(object) bytes remaining).
+	 */
+	void serializeInto(T object, ByteBuffer buffer);
+
+	/**
+	 * Creates a new instance of type T from the given length of bytes in the buffer, at its current position, advancing
+	 * the position.
+	 * 
+	 * @param buffer The buffer to read from.
+	 * @param length The number of bytes of the serialized object.
+	 * @return The new instance of T.
+	 */
+	T deserializeFrom(ByteBuffer buffer, int length);
+
+	/**
+	 * Creates a new instance of type T from part of an array, without copying it.
+	 * 
+	 * @param bytes The array containing the serialized object.
+	 * @param offset The offset of the first byte of the serialized object.
+	 * @param length The number of bytes of the serialized object.
+	 * @return The new instance of T.
+	 */
+	T deserialize(byte[] bytes, int offset, int length);
+}
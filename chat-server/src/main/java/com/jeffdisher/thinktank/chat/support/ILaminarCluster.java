@@ -0,0 +1,75 @@
+package com.jeffdisher.thinktank.chat.support;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.jeffdisher.laminar.types.TopicName;
+
+
+/**
+ * The connections ChatLaminar and TopicListener need from a Laminar cluster.  NetworkLaminarCluster connects to a real
+ * cluster through the Laminar client library while SimulatedLaminarCluster is an in-process stand-in for load and
+ * regression testing.
+ * The interfaces follow the semantics of the Laminar client:  each writer's intentions commit in the order they were
+ * sent and listeners see each topic's consequences in order, resuming after the last one returned if the connection
+ * drops.
+ */
+public interface ILaminarCluster {
+	/**
+	 * Opens a new writing connection.
+	 * 
+	 * @return The connection (the caller must close it).
+	 * @throws IOException There was an error opening the connection.
+	 */
+	IWriter openWriter() throws IOException;
+
+	/**
+	 * Opens a new listening connection to a single topic.
+	 * 
+	 * @param topic The topic to listen to.
+	 * @param previousOffset The consequence offset to resume after (0 to start at the beginning of the topic).
+	 * @return The connection (the caller must close it).
+	 * @throws IOException There was an error opening the connection.
+	 */
+	IListener openListener(TopicName topic, long previousOffset) throws IOException;
+
+
+	/**
+	 * A connection for sending intentions.
+	 */
+	public interface IWriter extends Closeable {
+		void waitForConnectionOrFailure() throws IOException, InterruptedException;
+		IPendingCommit sendCreateTopic(TopicName topic);
+		IPendingCommit sendPut(TopicName topic, byte[] key, byte[] value);
+	}
+
+
+	/**
+	 * An intention which was sent but may not yet be committed.
+	 */
+	public interface IPendingCommit {
+		/**
+		 * Blocks until the intention is committed.
+		 * 
+		 * @return The result of the commit.
+		 * @throws InterruptedException The thread was interrupted while waiting.
+		 */
+		TopicCommit waitForCommitted() throws InterruptedException;
+	}
+
+
+	/**
+	 * A connection for listening to a topic.
+	 */
+	public interface IListener extends Closeable {
+		void waitForConnectionOrFailure() throws IOException, InterruptedException;
+		
+		/**
+		 * Blocks until the next consequence on the topic is available.
+		 * 
+		 * @return The next consequence or null if the connection was closed.
+		 * @throws InterruptedException The thread was interrupted while waiting.
+		 */
+		TopicConsequence pollForNextConsequence() throws InterruptedException;
+	}
+}
@@ -1,5 +1,7 @@
 package com.jeffdisher.thinktank.chat.support;
 
+import java.util.List;
+
 
 /**
  * The target of decoded Laminar messages found by the TopicListener.
@@ -27,6 +29,19 @@ public interface IListenerTopicShim<K, V> {
 	 */
 	void put(K key, V value, long intentionOffset, long consequenceOffset);
 
+	/**
+	 * Puts a batch of consecutive values in the data store.  The default implementation just calls put() for each but
+	 * implementations can override this to apply the whole batch at once.
+	 * Note that the list is reused by the caller so it must not be retained.
+	 * 
+	 * @param puts The puts, in consequence order.
+	 */
+	default void putBatch(List<TopicPut<K, V>> puts) {
+		for (TopicPut<K, V> put : puts) {
+			put(put.key, put.value, put.intentionOffset, put.consequenceOffset);
+		}
+	}
+
 	/**
 	 * Creates the topic.
 	 * 
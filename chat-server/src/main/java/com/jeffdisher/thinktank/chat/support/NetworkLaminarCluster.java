@@ -0,0 +1,133 @@
+package com.jeffdisher.thinktank.chat.support;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import com.jeffdisher.laminar.client.ClientConnection;
+import com.jeffdisher.laminar.client.ClientResult;
+import com.jeffdisher.laminar.client.ListenerConnection;
+import com.jeffdisher.laminar.types.CommitInfo;
+import com.jeffdisher.laminar.types.Consequence;
+import com.jeffdisher.laminar.types.TopicName;
+import com.jeffdisher.laminar.types.payload.Payload_KeyDelete;
+import com.jeffdisher.laminar.types.payload.Payload_KeyPut;
+import com.jeffdisher.laminar.utils.Assert;
+
+
+/**
+ * The real ILaminarCluster, connecting to a Laminar cluster over the network through the Laminar client library.
+ */
+public class NetworkLaminarCluster implements ILaminarCluster {
+	private final InetSocketAddress _server;
+
+	public NetworkLaminarCluster(InetSocketAddress server) {
+		_server = server;
+	}
+
+	@Override
+	public IWriter openWriter() throws IOException {
+		return new NetworkWriter(ClientConnection.open(_server));
+	}
+
+	@Override
+	public IListener openListener(TopicName topic, long previousOffset) throws IOException {
+		return new NetworkListener(ListenerConnection.open(_server, topic, previousOffset));
+	}
+
+
+	private static class NetworkWriter implements IWriter {
+		private final ClientConnection _connection;
+		
+		public NetworkWriter(ClientConnection connection) {
+			_connection = connection;
+		}
+		@Override
+		public void waitForConnectionOrFailure() throws IOException, InterruptedException {
+			_connection.waitForConnectionOrFailure();
+		}
+		@Override
+		public IPendingCommit sendCreateTopic(TopicName topic) {
+			return new NetworkPendingCommit(_connection.sendCreateTopic(topic));
+		}
+		@Override
+		public IPendingCommit sendPut(TopicName topic, byte[] key, byte[] value) {
+			return new NetworkPendingCommit(_connection.sendPut(topic, key, value));
+		}
+		@Override
+		public void close() throws IOException {
+			_connection.close();
+		}
+	}
+
+
+	private static class NetworkPendingCommit implements IPendingCommit {
+		private final ClientResult _result;
+		
+		public NetworkPendingCommit(ClientResult result) {
+			_result = result;
+		}
+		@Override
+		public TopicCommit waitForCommitted() throws InterruptedException {
+			CommitInfo info = _result.waitForCommitted();
+			return new TopicCommit(CommitInfo.Effect.VALID == info.effect, String.valueOf(info.effect), info.intentionOffset);
+		}
+	}
+
+
+	private static class NetworkListener implements IListener {
+		private final ListenerConnection _connection;
+		
+		public NetworkListener(ListenerConnection connection) {
+			_connection = connection;
+		}
+		@Override
+		public void waitForConnectionOrFailure() throws IOException, InterruptedException {
+			_connection.waitForConnectionOrFailure();
+		}
+		@Override
+		public TopicConsequence pollForNextConsequence() throws InterruptedException {
+			Consequence consequence = _connection.pollForNextConsequence();
+			return (null != consequence)
+					? _convert(consequence)
+					: null;
+		}
+		@Override
+		public void close() throws IOException {
+			_connection.close();
+		}
+		
+		private static TopicConsequence _convert(Consequence consequence) {
+			TopicConsequence.Type type;
+			byte[] key = null;
+			byte[] value = null;
+			switch (consequence.type) {
+			case CONFIG_CHANGE:
+				type = TopicConsequence.Type.CONFIG_CHANGE;
+				break;
+			case INVALID:
+				type = TopicConsequence.Type.INVALID;
+				break;
+			case KEY_DELETE:
+				type = TopicConsequence.Type.KEY_DELETE;
+				key = ((Payload_KeyDelete)consequence.payload).key;
+				break;
+			case KEY_PUT: {
+				type = TopicConsequence.Type.KEY_PUT;
+				Payload_KeyPut payload = (Payload_KeyPut)consequence.payload;
+				key = payload.key;
+				value = payload.value;
+			}
+				break;
+			case TOPIC_CREATE:
+				type = TopicConsequence.Type.TOPIC_CREATE;
+				break;
+			case TOPIC_DESTROY:
+				type = TopicConsequence.Type.TOPIC_DESTROY;
+				break;
+			default:
+				throw Assert.unreachable("Unknown consequence type");
+			}
+			return new TopicConsequence(type, consequence.intentionOffset, consequence.consequenceOffset, key, value);
+		}
+	}
+}
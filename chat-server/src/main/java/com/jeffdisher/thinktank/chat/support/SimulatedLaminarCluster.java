@@ -0,0 +1,383 @@
+package com.jeffdisher.thinktank.chat.support;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.jeffdisher.laminar.types.TopicName;
+import com.jeffdisher.laminar.utils.Assert;
+
+
+/**
+ * An in-process stand-in for a Laminar cluster so that ChatLaminar and TopicListener (including their codecs, commit
+ * waits, and consequence decoding) can be load-tested and regression-tested without a real cluster.
+ * Each intention commits after the configured latency plus a uniformly random jitter, but never before an intention
+ * sent earlier on the same writer (as with Laminar, each writer's intentions commit in order).  If a throughput cap is
+ * given, commits are also spaced out so the cluster never commits more than that many intentions per second.
+ * Intention offsets are assigned in commit order, across all topics, and consequence offsets are per-topic, starting
+ * at 1 with the TOPIC_CREATE.  A put to a topic which doesn't exist (or the creation of a topic which already does) is
+ * committed as invalid, without a consequence.
+ * Disconnects are simulated as outages, either on demand via disconnect() or periodically:  the Laminar client
+ * reconnects, re-sends, and resumes listening on its own so the only thing its users see is that nothing commits and
+ * no consequences arrive until the outage ends.
+ * A single writer can also be stalled via setWriterStalled() (writers are numbered in the order they were opened, from
+ * 0):  its intentions are held, without committing, until it is un-stalled, as with a connection which silently stops
+ * making progress.
+ * Topics are matched with TopicName.equals().
+ */
+public class SimulatedLaminarCluster implements ILaminarCluster, Closeable {
+	private static final String EFFECT_VALID = "VALID";
+	private static final String EFFECT_INVALID = "INVALID";
+	private static final String EFFECT_ERROR = "ERROR";
+
+	private final long _commitLatencyNanos;
+	private final long _jitterNanos;
+	// 0 if the throughput isn't capped.
+	private final long _commitIntervalNanos;
+	// Null if there are no periodic outages.
+	private final Timer _disconnectTimer;
+	private final Thread _committer;
+	// Everything below is only accessed under the monitor (which is also what listeners and the committer wait on).
+	private final Random _random;
+	private final Map<TopicName, List<TopicConsequence>> _topics;
+	private final PriorityQueue<Intention> _scheduled;
+	private final List<SimulatedWriter> _writers;
+	private final Set<Integer> _stalledWriters;
+	private long _nextSequence;
+	private long _nextIntentionOffset;
+	private long _nextCommitSlotNanos;
+	private long _outageEndNanos;
+	private boolean _isClosed;
+
+	/**
+	 * Creates the cluster and starts its committer.
+	 * 
+	 * @param commitLatencyMillis The time from sending an intention until it commits.
+	 * @param jitterMillis The most random extra time added to each commit's latency.
+	 * @param maxCommitsPerSecond The most intentions committed per second (0 for no cap).
+	 * @param disconnectIntervalMillis The time between periodic outages (0 for none).
+	 * @param outageMillis The length of each periodic outage.
+	 */
+	public SimulatedLaminarCluster(long commitLatencyMillis, long jitterMillis, int maxCommitsPerSecond, long disconnectIntervalMillis, long outageMillis) {
+		Assert.assertTrue(commitLatencyMillis >= 0L);
+		Assert.assertTrue(jitterMillis >= 0L);
+		Assert.assertTrue(maxCommitsPerSecond >= 0);
+		Assert.assertTrue(disconnectIntervalMillis >= 0L);
+		Assert.assertTrue(outageMillis >= 0L);
+		_commitLatencyNanos = TimeUnit.MILLISECONDS.toNanos(commitLatencyMillis);
+		_jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+		_commitIntervalNanos = (maxCommitsPerSecond > 0)
+				? (TimeUnit.SECONDS.toNanos(1L) / maxCommitsPerSecond)
+				: 0L;
+		_random = new Random();
+		_topics = new HashMap<>();
+		_scheduled = new PriorityQueue<>((Intention one, Intention two) -> {
+			int compare = Long.compare(one.dueNanos, two.dueNanos);
+			return (0 != compare)
+					? compare
+					: Long.compare(one.sequence, two.sequence);
+		});
+		_writers = new ArrayList<>();
+		_stalledWriters = new HashSet<>();
+		_nextSequence = 0L;
+		_nextIntentionOffset = 1L;
+		_nextCommitSlotNanos = System.nanoTime();
+		_outageEndNanos = _nextCommitSlotNanos;
+		_isClosed = false;
+		
+		_committer = new Thread(() -> _runCommitter(), "SimulatedLaminarCluster-committer");
+		_committer.setDaemon(true);
+		_committer.start();
+		if (disconnectIntervalMillis > 0L) {
+			_disconnectTimer = new Timer("SimulatedLaminarCluster-disconnect", true);
+			_disconnectTimer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					disconnect(outageMillis);
+				}
+			}, disconnectIntervalMillis, disconnectIntervalMillis);
+		} else {
+			_disconnectTimer = null;
+		}
+	}
+
+	@Override
+	public synchronized IWriter openWriter() throws IOException {
+		SimulatedWriter writer = new SimulatedWriter(_writers.size());
+		_writers.add(writer);
+		return writer;
+	}
+
+	@Override
+	public IListener openListener(TopicName topic, long previousOffset) throws IOException {
+		Assert.assertTrue(previousOffset >= 0L);
+		return new SimulatedListener(topic, previousOffset);
+	}
+
+	/**
+	 * Starts an outage (or extends the current one):  until it ends, nothing commits and listeners receive nothing.
+	 * 
+	 * @param outageMillis The length of the outage.
+	 */
+	public synchronized void disconnect(long outageMillis) {
+		_outageEndNanos = Math.max(_outageEndNanos, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(outageMillis));
+		this.notifyAll();
+	}
+
+	/**
+	 * Stalls or un-stalls a writer (which may not be open, yet).  While stalled, nothing the writer sends commits.
+	 * 
+	 * @param writerIndex The writer, numbered in the order they were opened (from 0).
+	 * @param isStalled True to stall the writer, false to let everything it sent commit.
+	 */
+	public synchronized void setWriterStalled(int writerIndex, boolean isStalled) {
+		if (isStalled) {
+			_stalledWriters.add(writerIndex);
+		} else {
+			_stalledWriters.remove(writerIndex);
+			if (writerIndex < _writers.size()) {
+				SimulatedWriter writer = _writers.get(writerIndex);
+				for (Intention intention : writer.held) {
+					_schedule(writer, intention);
+				}
+				writer.held.clear();
+			}
+		}
+	}
+
+	/**
+	 * Stops the cluster.  Any intentions not yet committed fail with an error and listeners are closed.
+	 */
+	@Override
+	public void close() {
+		if (null != _disconnectTimer) {
+			_disconnectTimer.cancel();
+		}
+		synchronized (this) {
+			_isClosed = true;
+			this.notifyAll();
+		}
+		try {
+			_committer.join();
+		} catch (InterruptedException e) {
+			// We don't use interruption.
+			throw Assert.unexpected(e);
+		}
+		synchronized (this) {
+			for (Intention intention : _scheduled) {
+				intention.commit.complete(new TopicCommit(false, EFFECT_ERROR, 0L));
+			}
+			_scheduled.clear();
+			for (SimulatedWriter writer : _writers) {
+				for (Intention intention : writer.held) {
+					intention.commit.complete(new TopicCommit(false, EFFECT_ERROR, 0L));
+				}
+				writer.held.clear();
+			}
+		}
+	}
+
+
+	private synchronized IPendingCommit _send(SimulatedWriter writer, TopicName topic, byte[] key, byte[] value) {
+		Assert.assertTrue(!writer.isClosed);
+		Intention intention = new Intention(topic, key, value);
+		if (_isClosed) {
+			intention.commit.complete(new TopicCommit(false, EFFECT_ERROR, 0L));
+		} else if (_stalledWriters.contains(writer.index)) {
+			writer.held.add(intention);
+		} else {
+			_schedule(writer, intention);
+		}
+		return () -> {
+			try {
+				return intention.commit.get();
+			} catch (ExecutionException e) {
+				// We never complete exceptionally.
+				throw Assert.unexpected(e);
+			}
+		};
+	}
+
+	private void _schedule(SimulatedWriter writer, Intention intention) {
+		long jitter = (_jitterNanos > 0L)
+				? (long)(_random.nextDouble() * _jitterNanos)
+				: 0L;
+		long due = Math.max(System.nanoTime() + _commitLatencyNanos + jitter, writer.lastDueNanos);
+		writer.lastDueNanos = due;
+		intention.dueNanos = due;
+		intention.sequence = _nextSequence;
+		_nextSequence += 1L;
+		_scheduled.add(intention);
+		this.notifyAll();
+	}
+
+	private synchronized void _runCommitter() {
+		try {
+			while (!_isClosed) {
+				Intention next = _scheduled.peek();
+				if (null == next) {
+					this.wait();
+				} else {
+					// The throughput cap is applied here, not when sending, so an outage doesn't release a burst of commits.
+					long now = System.nanoTime();
+					long waitNanos = Math.max(Math.max(next.dueNanos, _outageEndNanos), _nextCommitSlotNanos) - now;
+					if (waitNanos > 0L) {
+						TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+					} else {
+						_scheduled.remove();
+						_apply(next);
+						_nextCommitSlotNanos = now + _commitIntervalNanos;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// We don't use interruption.
+			throw Assert.unexpected(e);
+		}
+	}
+
+	private void _apply(Intention intention) {
+		long intentionOffset = _nextIntentionOffset;
+		_nextIntentionOffset += 1L;
+		List<TopicConsequence> log = _topics.get(intention.topic);
+		boolean isCreate = (null == intention.key);
+		boolean isValid = isCreate
+				? (null == log)
+				: (null != log);
+		if (isValid) {
+			if (isCreate) {
+				log = new ArrayList<>();
+				_topics.put(intention.topic, log);
+			}
+			long consequenceOffset = log.size() + 1L;
+			log.add(isCreate
+					? new TopicConsequence(TopicConsequence.Type.TOPIC_CREATE, intentionOffset, consequenceOffset, null, null)
+					: new TopicConsequence(TopicConsequence.Type.KEY_PUT, intentionOffset, consequenceOffset, intention.key, intention.value));
+			// Wake the listeners.
+			this.notifyAll();
+		}
+		// Nobody chains actions on these futures so it is safe to complete them under the monitor.
+		intention.commit.complete(new TopicCommit(isValid, isValid ? EFFECT_VALID : EFFECT_INVALID, intentionOffset));
+	}
+
+	private synchronized void _waitForOutageEnd() throws InterruptedException {
+		long waitNanos = _outageEndNanos - System.nanoTime();
+		while (!_isClosed && (waitNanos > 0L)) {
+			TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+			waitNanos = _outageEndNanos - System.nanoTime();
+		}
+	}
+
+	private synchronized TopicConsequence _poll(SimulatedListener listener) throws InterruptedException {
+		TopicConsequence next = null;
+		while (!_isClosed && !listener.isClosed && (null == next)) {
+			long outageNanos = _outageEndNanos - System.nanoTime();
+			List<TopicConsequence> log = _topics.get(listener.topic);
+			if (outageNanos > 0L) {
+				TimeUnit.NANOSECONDS.timedWait(this, outageNanos);
+			} else if ((null != log) && (log.size() > listener.previousOffset)) {
+				next = log.get((int)listener.previousOffset);
+				listener.previousOffset = next.consequenceOffset;
+			} else {
+				this.wait();
+			}
+		}
+		return next;
+	}
+
+	private synchronized void _closeListener(SimulatedListener listener) {
+		listener.isClosed = true;
+		this.notifyAll();
+	}
+
+
+	private class SimulatedWriter implements IWriter {
+		public final int index;
+		// Only accessed under the cluster's monitor.
+		public final List<Intention> held;
+		public long lastDueNanos;
+		public boolean isClosed;
+		
+		public SimulatedWriter(int index) {
+			this.index = index;
+			this.held = new ArrayList<>();
+		}
+		
+		@Override
+		public void waitForConnectionOrFailure() throws IOException, InterruptedException {
+			_waitForOutageEnd();
+		}
+		@Override
+		public IPendingCommit sendCreateTopic(TopicName topic) {
+			return _send(this, topic, null, null);
+		}
+		@Override
+		public IPendingCommit sendPut(TopicName topic, byte[] key, byte[] value) {
+			Assert.assertTrue(null != key);
+			Assert.assertTrue(null != value);
+			return _send(this, topic, key, value);
+		}
+		@Override
+		public void close() throws IOException {
+			// Anything already sent still commits.
+			synchronized (SimulatedLaminarCluster.this) {
+				this.isClosed = true;
+			}
+		}
+	}
+
+
+	private class SimulatedListener implements IListener {
+		public final TopicName topic;
+		// Only accessed under the cluster's monitor.
+		public long previousOffset;
+		public boolean isClosed;
+		
+		public SimulatedListener(TopicName topic, long previousOffset) {
+			this.topic = topic;
+			this.previousOffset = previousOffset;
+		}
+		@Override
+		public void waitForConnectionOrFailure() throws IOException, InterruptedException {
+			_waitForOutageEnd();
+		}
+		@Override
+		public TopicConsequence pollForNextConsequence() throws InterruptedException {
+			return _poll(this);
+		}
+		@Override
+		public void close() throws IOException {
+			_closeListener(this);
+		}
+	}
+
+
+	private static class Intention {
+		public final TopicName topic;
+		// Null for a topic create.
+		public final byte[] key;
+		public final byte[] value;
+		public final CompletableFuture<TopicCommit> commit;
+		public long dueNanos;
+		public long sequence;
+		
+		public Intention(TopicName topic, byte[] key, byte[] value) {
+			this.topic = topic;
+			this.key = key;
+			this.value = value;
+			this.commit = new CompletableFuture<>();
+		}
+	}
+}
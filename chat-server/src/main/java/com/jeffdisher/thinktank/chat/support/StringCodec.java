@@ -1,12 +1,17 @@
 package com.jeffdisher.thinktank.chat.support;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 
 /**
- * Serializes/deserializes Strings for Laminar.
+ * Serializes/deserializes Strings for Laminar, as UTF-8.
+ * serializeInto() encodes directly into the buffer, without an intermediate array, and writes the same bytes as
+ * String.getBytes() (including replacing unpaired surrogates with '?').
  */
-public class StringCodec implements ICodec<String> {
+public class StringCodec implements IBufferCodec<String> {
+	private static final byte REPLACEMENT = (byte)'?';
+
 	@Override
 	public String deserialize(byte[] bytes) {
 		return new String(bytes, StandardCharsets.UTF_8);
@@ -16,4 +21,81 @@ public class StringCodec implements ICodec<String> {
 	public byte[] serialize(String object) {
 		return object.getBytes(StandardCharsets.UTF_8);
 	}
+
+	@Override
+	public int serializedSize(String object) {
+		int size = 0;
+		int length = object.length();
+		for (int i = 0; i < length; ++i) {
+			char c = object.charAt(i);
+			if (c < 0x80) {
+				size += 1;
+			} else if (c < 0x800) {
+				size += 2;
+			} else if (_isSurrogatePairAt(object, i)) {
+				size += 4;
+				i += 1;
+			} else if (Character.isSurrogate(c)) {
+				size += 1;
+			} else {
+				size += 3;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void serializeInto(String object, ByteBuffer buffer) {
+		int length = object.length();
+		for (int i = 0; i < length; ++i) {
+			char c = object.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte)c);
+			} else if (c < 0x800) {
+				buffer.put((byte)(0xC0 | (c >> 6)));
+				buffer.put((byte)(0x80 | (c & 0x3F)));
+			} else if (_isSurrogatePairAt(object, i)) {
+				int codePoint = Character.toCodePoint(c, object.charAt(i + 1));
+				buffer.put((byte)(0xF0 | (codePoint >> 18)));
+				buffer.put((byte)(0x80 | ((codePoint >> 12) & 0x3F)));
+				buffer.put((byte)(0x80 | ((codePoint >> 6) & 0x3F)));
+				buffer.put((byte)(0x80 | (codePoint & 0x3F)));
+				i += 1;
+			} else if (Character.isSurrogate(c)) {
+				buffer.put(REPLACEMENT);
+			} else {
+				buffer.put((byte)(0xE0 | (c >> 12)));
+				buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte)(0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	@Override
+	public String deserializeFrom(ByteBuffer buffer, int length) {
+		String result;
+		if (buffer.hasArray()) {
+			// Decode straight from the backing array.
+			result = deserialize(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+			buffer.position(buffer.position() + length);
+		} else {
+			// Direct and mapped buffers need to be copied out first.
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			result = deserialize(bytes);
+		}
+		return result;
+	}
+
+	@Override
+	public String deserialize(byte[] bytes, int offset, int length) {
+		return new String(bytes, offset, length, StandardCharsets.UTF_8);
+	}
+
+
+	private static boolean _isSurrogatePairAt(String string, int index) {
+		return Character.isHighSurrogate(string.charAt(index))
+				&& ((index + 1) < string.length())
+				&& Character.isLowSurrogate(string.charAt(index + 1));
+	}
 }
@@ -0,0 +1,220 @@
+package com.jeffdisher.thinktank.chat.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.jeffdisher.laminar.utils.Assert;
+
+
+/**
+ * The local checkpoint of a TopicListener:  the last consequence offset it applied and the most recent puts (enough to
+ * refill a backlog), so a restarted listener can resume from the checkpoint instead of replaying the whole topic.
+ * The file is replaced atomically (written to a temporary file and then renamed over the old one) so a crash during a
+ * write leaves the previous checkpoint intact.
+ * Note that only puts are retained (this is meant for append-style topics where keys aren't deleted).
+ * 
+ * Note that this class is NOT thread-safe.  However, the State returned by capture() is immutable so it can be written
+ * on another thread (as long as only one thread writes at a time), which keeps the fsync off the listener's thread.
+ * 
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class TopicCheckpoint<K, V> {
+	// Identifies the file format (changed if the layout ever changes).
+	private static final int MAGIC = 0x54544331;
+	// The magic, last consequence offset, and put count.
+	private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+	private final File _file;
+	private final int _retainedPuts;
+	private final ICodec<K> _keyCodec;
+	private final ICodec<V> _valueCodec;
+	private final Deque<TopicPut<K, V>> _recentPuts;
+	private long _lastConsequenceOffset;
+
+	public TopicCheckpoint(File file, int retainedPuts, ICodec<K> keyCodec, ICodec<V> valueCodec) {
+		Assert.assertTrue(null != file);
+		Assert.assertTrue(retainedPuts >= 0);
+		_file = file;
+		_retainedPuts = retainedPuts;
+		_keyCodec = keyCodec;
+		_valueCodec = valueCodec;
+		_recentPuts = new ArrayDeque<>();
+		_lastConsequenceOffset = 0L;
+	}
+
+	/**
+	 * Loads the checkpoint from the file, if there is one.  If the file is missing or unreadable, the checkpoint is
+	 * empty (so the topic will be replayed from the beginning).
+	 * 
+	 * @return The last consequence offset in the checkpoint (0 if there was no checkpoint).
+	 */
+	public long load() {
+		_recentPuts.clear();
+		_lastConsequenceOffset = 0L;
+		if (_file.exists()) {
+			try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)))) {
+				if (MAGIC != input.readInt()) {
+					throw new IOException("Not a checkpoint file");
+				}
+				long lastConsequenceOffset = input.readLong();
+				int count = input.readInt();
+				// We track what is left of the file so a corrupt length can't make us allocate a huge array.
+				long remaining = _file.length() - HEADER_BYTES;
+				for (int i = 0; i < count; ++i) {
+					long intentionOffset = input.readLong();
+					long consequenceOffset = input.readLong();
+					remaining -= 2 * Long.BYTES;
+					byte[] keyBytes = _readBytes(input, remaining);
+					remaining -= Integer.BYTES + keyBytes.length;
+					byte[] valueBytes = _readBytes(input, remaining);
+					remaining -= Integer.BYTES + valueBytes.length;
+					recordPut(_keyCodec.deserialize(keyBytes), _valueCodec.deserialize(valueBytes), intentionOffset, consequenceOffset);
+				}
+				_lastConsequenceOffset = lastConsequenceOffset;
+			} catch (IOException e) {
+				// The checkpoint is only an optimization so we can just start over.
+				System.err.println("Ignoring unreadable checkpoint " + _file + ": " + e.getLocalizedMessage());
+				_recentPuts.clear();
+				_lastConsequenceOffset = 0L;
+			}
+		}
+		return _lastConsequenceOffset;
+	}
+
+	/**
+	 * Passes every put in the checkpoint to the consumer, oldest first.
+	 * 
+	 * @param consumer Receives the puts.
+	 */
+	public void forEachPut(Consumer<TopicPut<K, V>> consumer) {
+		for (TopicPut<K, V> put : _recentPuts) {
+			consumer.accept(put);
+		}
+	}
+
+	/**
+	 * Records a put, evicting the oldest if we are already retaining as many as requested.
+	 * 
+	 * @param key The key which was put.
+	 * @param value The value which was put.
+	 * @param intentionOffset The intention responsible for the put.
+	 * @param consequenceOffset The offset of this consequence.
+	 */
+	public void recordPut(K key, V value, long intentionOffset, long consequenceOffset) {
+		if (_retainedPuts > 0) {
+			if (_recentPuts.size() == _retainedPuts) {
+				_recentPuts.removeFirst();
+			}
+			_recentPuts.addLast(new TopicPut<>(key, value, intentionOffset, consequenceOffset));
+		}
+		_lastConsequenceOffset = consequenceOffset;
+	}
+
+	/**
+	 * Records that a consequence, other than a put, was applied.
+	 * 
+	 * @param consequenceOffset The offset of this consequence.
+	 */
+	public void recordConsequence(long consequenceOffset) {
+		_lastConsequenceOffset = consequenceOffset;
+	}
+
+	/**
+	 * @return The last consequence offset recorded.
+	 */
+	public long getLastConsequenceOffset() {
+		return _lastConsequenceOffset;
+	}
+
+	/**
+	 * Captures the current state so it can be written later (possibly on another thread).  This only copies the
+	 * references to the retained puts so it is cheap.
+	 * 
+	 * @return The immutable state to pass to write().
+	 */
+	public State<K, V> capture() {
+		return new State<>(_lastConsequenceOffset, new ArrayList<>(_recentPuts));
+	}
+
+	/**
+	 * Atomically replaces the checkpoint file with the current state.
+	 * 
+	 * @throws IOException The checkpoint couldn't be written (the previous checkpoint is still intact).
+	 */
+	public void write() throws IOException {
+		write(capture());
+	}
+
+	/**
+	 * Atomically replaces the checkpoint file with a previously captured state.
+	 * 
+	 * @param state The state returned by capture().
+	 * @throws IOException The checkpoint couldn't be written (the previous checkpoint is still intact).
+	 */
+	public void write(State<K, V> state) throws IOException {
+		File temp = new File(_file.getPath() + ".tmp");
+		try (FileOutputStream stream = new FileOutputStream(temp)) {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+			output.writeInt(MAGIC);
+			output.writeLong(state.lastConsequenceOffset);
+			output.writeInt(state.puts.size());
+			for (TopicPut<K, V> put : state.puts) {
+				output.writeLong(put.intentionOffset);
+				output.writeLong(put.consequenceOffset);
+				_writeBytes(output, _keyCodec.serialize(put.key));
+				_writeBytes(output, _valueCodec.serialize(put.value));
+			}
+			output.flush();
+			// Make sure the data is on disk before the rename makes it visible.
+			stream.getFD().sync();
+		}
+		Files.move(temp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	private static byte[] _readBytes(DataInputStream input, long remaining) throws IOException {
+		int length = input.readInt();
+		if ((length < 0) || (length > (remaining - Integer.BYTES))) {
+			throw new IOException("Corrupt length " + length + " with " + remaining + " bytes left");
+		}
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return bytes;
+	}
+
+	private static void _writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+
+	/**
+	 * The state of a checkpoint at the time it was captured.
+	 * 
+	 * @param <K> The key type.
+	 * @param <V> The value type.
+	 */
+	public static class State<K, V> {
+		public final long lastConsequenceOffset;
+		public final List<TopicPut<K, V>> puts;
+		
+		private State(long lastConsequenceOffset, List<TopicPut<K, V>> puts) {
+			this.lastConsequenceOffset = lastConsequenceOffset;
+			this.puts = puts;
+		}
+	}
+}
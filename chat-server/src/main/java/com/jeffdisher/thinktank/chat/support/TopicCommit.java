@@ -0,0 +1,23 @@
+package com.jeffdisher.thinktank.chat.support;
+
+
+/**
+ * The result of an intention being committed, as returned by ILaminarCluster.IPendingCommit.
+ */
+public class TopicCommit {
+	/**
+	 * True if the intention was committed and applied (false if it was rejected, as with a put to a missing topic).
+	 */
+	public final boolean isValid;
+	/**
+	 * A description of the commit effect, for error messages.
+	 */
+	public final String effect;
+	public final long intentionOffset;
+
+	public TopicCommit(boolean isValid, String effect, long intentionOffset) {
+		this.isValid = isValid;
+		this.effect = effect;
+		this.intentionOffset = intentionOffset;
+	}
+}
@@ -0,0 +1,36 @@
+package com.jeffdisher.thinktank.chat.support;
+
+
+/**
+ * A consequence observed on a topic, as returned by ILaminarCluster.IListener.  This is independent of the cluster
+ * implementation so the same TopicListener code runs against a real cluster or a simulated one.
+ * The key is only set for KEY_PUT and KEY_DELETE and the value is only set for KEY_PUT.
+ */
+public class TopicConsequence {
+	public final Type type;
+	public final long intentionOffset;
+	public final long consequenceOffset;
+	public final byte[] key;
+	public final byte[] value;
+
+	public TopicConsequence(Type type, long intentionOffset, long consequenceOffset, byte[] key, byte[] value) {
+		this.type = type;
+		this.intentionOffset = intentionOffset;
+		this.consequenceOffset = consequenceOffset;
+		this.key = key;
+		this.value = value;
+	}
+
+
+	/**
+	 * The types of consequences (the same as Laminar's).
+	 */
+	public enum Type {
+		INVALID,
+		TOPIC_CREATE,
+		TOPIC_DESTROY,
+		KEY_PUT,
+		KEY_DELETE,
+		CONFIG_CHANGE,
+	}
+}
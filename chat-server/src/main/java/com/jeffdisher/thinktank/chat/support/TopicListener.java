@@ -2,13 +2,20 @@ package com.jeffdisher.thinktank.chat.support;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-import com.jeffdisher.laminar.client.ListenerConnection;
-import com.jeffdisher.laminar.types.Consequence;
 import com.jeffdisher.laminar.types.TopicName;
-import com.jeffdisher.laminar.types.payload.Payload_KeyDelete;
-import com.jeffdisher.laminar.types.payload.Payload_KeyPut;
 import com.jeffdisher.laminar.utils.Assert;
 
 
@@ -16,85 +23,437 @@ import com.jeffdisher.laminar.utils.Assert;
  * Listens to updates from Laminar on the requested topic.
  * Internally decodes the key and value data in each consequence and sends their decoded meaning to the given
  * IListenerTopicShim.
+ * If given a TopicCheckpoint, the listener first replays the puts saved in the checkpoint to the shim and then resumes
+ * the topic after the checkpoint's offset, instead of replaying the whole topic.  The checkpoint is rewritten every
+ * CHECKPOINT_INTERVAL consequences and when the listener is closed.  The periodic rewrites (and their fsync) happen on
+ * a checkpoint-writing thread, so they don't stall dispatching:  the dispatcher only captures the state and, if the
+ * writer is still busy with an earlier one, the newer state replaces the one waiting to be written.  Note that the
+ * ListenerConnection reconnects on its own, resuming after the last consequence it returned, so a reconnect doesn't
+ * replay anything either.
+ * Consequences go through a pipeline of stages:
+ * -polling - a thread which only polls raw consequences into a bounded buffer (so a slow shim eventually stops it).
+ * -decoding - the dispatching thread takes everything already buffered (up to MAX_BATCH), splits it into chunks, and
+ *  submits those to a pool of decoding threads (or decodes inline, if there are no decoding threads).  It keeps up to
+ *  MAX_BATCH consequences (or 2 chunks per decoding thread, if that is more) in flight so decoding later chunks
+ *  overlaps with dispatching earlier ones.
+ * -dispatching - the dispatching thread waits for the chunks in submission order, so the consequence order is kept,
+ *  passing each run of consecutive puts to the shim's putBatch() so the shim can apply them together.  This makes
+ *  catching up after falling behind much cheaper.
+ * The depth of each stage and the total consequences through each stage are exposed by getMetrics().
+ * If decoding or dispatching fails, the dispatching thread stops, the polling thread stops as soon as it notices (it
+ * never stays blocked on the full buffer), and close() reports the failure (without rewriting the checkpoint).
  * 
  * @param <K> The key type.
  * @param <V> The value type.
  */
 public class TopicListener<K, V> implements Closeable {
+	private static final int CHECKPOINT_INTERVAL = 1000;
+	private static final int MAX_BATCH = 1000;
+	private static final int POLL_BUFFER_SIZE = 10 * MAX_BATCH;
+	private static final int DECODE_CHUNK_SIZE = 100;
+	// How long the polling thread waits for room in the buffer before checking if the dispatcher has failed.
+	private static final long OFFER_TIMEOUT_MILLIS = 100L;
+
 	private final TopicName _topic;
 	private final IListenerTopicShim<K, V> _shim;
 	private final ICodec<K> _keyCodec;
 	private final ICodec<V> _valueCodec;
+	// Only used by the dispatching thread (and by close() once that thread has stopped).
+	private final TopicCheckpoint<K, V> _checkpoint;
+	// Null if there is no checkpoint.  Only writes the captured states, one at a time.
+	private final ExecutorService _checkpointWriter;
+	// The captured state waiting for the checkpoint writer (null if it has nothing waiting).
+	private final AtomicReference<TopicCheckpoint.State<K, V>> _pendingCheckpoint;
 
-	private final ListenerConnection _listener;
-	private final Thread _listenerThread;
+	private final ILaminarCluster.IListener _listener;
+	private final BlockingQueue<Polled> _polled;
+	private final Thread _pollingThread;
+	private final Thread _dispatchingThread;
+	// Null if we decode on the dispatching thread.
+	private final ExecutorService _decodePool;
+	private final int _maxChunksInFlight;
+	private final AtomicLong _polledCount;
+	private final AtomicLong _takenCount;
+	private final AtomicLong _decodedCount;
+	private final AtomicLong _dispatchedCount;
+	// Set if the dispatching thread failed (null while it is healthy).
+	private volatile Throwable _failure;
 
-	public TopicListener(InetSocketAddress server, TopicName topic, IListenerTopicShim<K, V> shim, ICodec<K> keyCodec, ICodec<V> valueCodec) throws IOException {
+	/**
+	 * Creates the listener and starts listening.
+	 * 
+	 * @param cluster The Laminar cluster.
+	 * @param topic The topic to listen to.
+	 * @param shim Receives the decoded consequences.
+	 * @param keyCodec The codec for keys.
+	 * @param valueCodec The codec for values.
+	 * @param checkpoint The checkpoint to resume from and maintain (null if we should always replay the whole topic).
+	 * @param decodeThreads The number of threads to decode keys and values on (0 to decode on the dispatching thread).
+	 * @throws IOException There was an error opening the connection.
+	 */
+	public TopicListener(ILaminarCluster cluster, TopicName topic, IListenerTopicShim<K, V> shim, ICodec<K> keyCodec, ICodec<V> valueCodec, TopicCheckpoint<K, V> checkpoint, int decodeThreads) throws IOException {
+		Assert.assertTrue(decodeThreads >= 0);
 		_topic = topic;
 		_shim = shim;
 		_keyCodec = keyCodec;
 		_valueCodec = valueCodec;
+		_checkpoint = checkpoint;
+		_checkpointWriter = (null != checkpoint)
+				? Executors.newSingleThreadExecutor((Runnable runnable) -> {
+					Thread thread = new Thread(runnable, "TopicListener-checkpoint-" + topic);
+					thread.setDaemon(true);
+					return thread;
+				})
+				: null;
+		_pendingCheckpoint = new AtomicReference<>();
+		_decodePool = (decodeThreads > 0)
+				? Executors.newFixedThreadPool(decodeThreads, (Runnable runnable) -> {
+					Thread thread = new Thread(runnable, "TopicListener-decode-" + topic);
+					thread.setDaemon(true);
+					return thread;
+				})
+				: null;
+		_maxChunksInFlight = Math.max(MAX_BATCH / DECODE_CHUNK_SIZE, 2 * decodeThreads);
+		_polledCount = new AtomicLong();
+		_takenCount = new AtomicLong();
+		_decodedCount = new AtomicLong();
+		_dispatchedCount = new AtomicLong();
 		
-		_listener = ListenerConnection.open(server, _topic, 0L);
-		_listenerThread = new Thread(() -> {
+		long previousOffset = 0L;
+		if (null != _checkpoint) {
+			// Refill the shim from the checkpoint before we start listening after it.
+			previousOffset = _checkpoint.load();
+			List<TopicPut<K, V>> puts = new ArrayList<>();
+			_checkpoint.forEachPut((TopicPut<K, V> put) -> puts.add(put));
+			if (!puts.isEmpty()) {
+				_shim.putBatch(puts);
+			}
+		}
+		_listener = cluster.openListener(_topic, previousOffset);
+		_polled = new LinkedBlockingQueue<>(POLL_BUFFER_SIZE);
+		_pollingThread = new Thread(() -> {
 			try {
-				Consequence consequence = _listener.pollForNextConsequence();
-				while (null != consequence) {
-					switch (consequence.type) {
-					case CONFIG_CHANGE:
-						// Ignore.
-						break;
-					case INVALID:
-						throw Assert.unreachable("INVALID consequence");
-					case KEY_DELETE: {
-						// Decode the key.
-						K key = _keyCodec.deserialize(((Payload_KeyDelete)consequence.payload).key);
-						// Pass the command to the shim.
-						_shim.delete(key, consequence.intentionOffset, consequence.consequenceOffset);
-					}
-						break;
-					case KEY_PUT: {
-						// Decode the key and value.
-						Payload_KeyPut payload = (Payload_KeyPut)consequence.payload;
-						K key = _keyCodec.deserialize(payload.key);
-						V value = _valueCodec.deserialize(payload.value);
-						// Pass the command to the shim.
-						_shim.put(key, value, consequence.intentionOffset, consequence.consequenceOffset);
-					}
-						break;
-					case TOPIC_CREATE:
-						// Pass the command to the shim.
-						_shim.create(consequence.intentionOffset, consequence.consequenceOffset);
-						break;
-					case TOPIC_DESTROY:
-						// Pass the command to the shim.
-						_shim.destroy(consequence.intentionOffset, consequence.consequenceOffset);
-						break;
-					default:
-						throw Assert.unreachable("Unknown consequence type");
+				// We stop early if the dispatcher fails since nothing will drain the buffer.
+				boolean keepPolling = true;
+				while (keepPolling) {
+					TopicConsequence consequence = _listener.pollForNextConsequence();
+					if (null != consequence) {
+						keepPolling = _offerPolled(new Polled(consequence));
+						if (keepPolling) {
+							_polledCount.incrementAndGet();
+						}
+					} else {
+						_offerPolled(Polled.END);
+						keepPolling = false;
 					}
-					consequence = _listener.pollForNextConsequence();
 				}
 			} catch (InterruptedException e) {
 				// We don't use interruption.
 				throw Assert.unexpected(e);
 			}
-		});
-		_listenerThread.start();
+		}, "TopicListener-poll-" + topic);
+		_dispatchingThread = new Thread(() -> {
+			try {
+				_runDispatcher();
+			} catch (Throwable t) {
+				// Stop the polling thread and let close() report this (it is still thrown so the thread logs it).
+				_failure = t;
+				throw t;
+			}
+		}, "TopicListener-dispatch-" + topic);
+		_pollingThread.start();
+		_dispatchingThread.start();
 	}
 
 	public void waitForConnectionOrFailure() throws IOException, InterruptedException {
 		_listener.waitForConnectionOrFailure();
 	}
 
+	/**
+	 * Note that the totals are cumulative so throughput is found by sampling them over time.
+	 * 
+	 * @return A snapshot of the pipeline's metrics.
+	 */
+	public Metrics getMetrics() {
+		// We read the later stages first so a racing update can't make a depth negative.
+		long dispatched = _dispatchedCount.get();
+		long decoded = _decodedCount.get();
+		long taken = _takenCount.get();
+		long polled = _polledCount.get();
+		return new Metrics(polled, decoded, dispatched, _polled.size(), (int)(taken - dispatched));
+	}
+
+	/**
+	 * Stops listening and writes the checkpoint, if there is one.
+	 * 
+	 * @throws IOException Decoding or dispatching failed, so the listener had stopped.
+	 */
 	@Override
 	public void close() throws IOException {
 		_listener.close();
 		try {
-			_listenerThread.join();
+			_pollingThread.join();
+			_dispatchingThread.join();
 		} catch (InterruptedException e) {
 			// We don't use interruption.
 			throw Assert.unexpected(e);
 		}
+		if (null != _decodePool) {
+			_decodePool.shutdown();
+		}
+		if (null != _checkpointWriter) {
+			// Let any periodic write finish so it can't replace the final one.
+			_checkpointWriter.shutdown();
+			try {
+				_checkpointWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// We don't use interruption.
+				throw Assert.unexpected(e);
+			}
+		}
+		Throwable failure = _failure;
+		if (null != failure) {
+			// The shim may not have seen everything recorded in the checkpoint so we leave the previous one.
+			throw new IOException("Listener for " + _topic + " failed", failure);
+		}
+		if (null != _checkpoint) {
+			_writeCheckpoint(_checkpoint.capture());
+		}
+	}
+
+
+	private void _runDispatcher() {
+		// The chunks being decoded, in consequence order.
+		Deque<CompletableFuture<List<Decoded<K, V>>>> inFlight = new ArrayDeque<>();
+		List<TopicConsequence> raw = new ArrayList<>();
+		List<TopicPut<K, V>> puts = new ArrayList<>();
+		int sinceCheckpoint = 0;
+		boolean isEnd = false;
+		while (!isEnd || !inFlight.isEmpty()) {
+			// Submit more chunks for decoding, only blocking for more consequences if there is nothing else to do.
+			boolean canTakeMore = true;
+			while (!isEnd && canTakeMore && (inFlight.size() < _maxChunksInFlight)) {
+				int limit = Math.min(MAX_BATCH, (_maxChunksInFlight - inFlight.size()) * DECODE_CHUNK_SIZE);
+				isEnd = _takeRaw(raw, limit, inFlight.isEmpty());
+				_takenCount.addAndGet(raw.size());
+				for (int start = 0; start < raw.size(); start += DECODE_CHUNK_SIZE) {
+					List<TopicConsequence> chunk = new ArrayList<>(raw.subList(start, Math.min(raw.size(), start + DECODE_CHUNK_SIZE)));
+					inFlight.addLast((null != _decodePool)
+							? CompletableFuture.supplyAsync(() -> _decode(chunk), _decodePool)
+							: CompletableFuture.completedFuture(_decode(chunk)));
+				}
+				canTakeMore = !raw.isEmpty();
+				raw.clear();
+			}
+			
+			// Dispatch the oldest chunk.
+			if (!inFlight.isEmpty()) {
+				List<Decoded<K, V>> decoded = inFlight.removeFirst().join();
+				for (Decoded<K, V> one : decoded) {
+					if (null != one.put) {
+						puts.add(one.put);
+					} else {
+						// Anything else must be applied after the puts before it.
+						_flushPuts(puts);
+						_dispatchOther(one);
+					}
+				}
+				// Keep collecting puts across chunks unless there is nothing else ready or the batch is full.
+				if (inFlight.isEmpty() || (puts.size() >= MAX_BATCH)) {
+					_flushPuts(puts);
+				}
+				_dispatchedCount.addAndGet(decoded.size());
+				if (null != _checkpoint) {
+					sinceCheckpoint += decoded.size();
+					if (sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+						// The checkpoint only includes the puts already given to the shim.
+						_flushPuts(puts);
+						if (null == _pendingCheckpoint.getAndSet(_checkpoint.capture())) {
+							_checkpointWriter.execute(() -> _writeCheckpoint(_pendingCheckpoint.getAndSet(null)));
+						}
+						sinceCheckpoint = 0;
+					}
+				}
+			}
+		}
+	}
+
+	// Called on the polling thread.  Returns false if the dispatcher failed, instead of waiting for room forever.
+	private boolean _offerPolled(Polled polled) throws InterruptedException {
+		boolean didOffer = false;
+		while (!didOffer && (null == _failure)) {
+			didOffer = _polled.offer(polled, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		return didOffer;
+	}
+
+	// Takes everything already buffered (up to limit) into raw, returning true if the end of the stream was reached.
+	private boolean _takeRaw(List<TopicConsequence> raw, int limit, boolean shouldBlock) {
+		List<Polled> batch = new ArrayList<>();
+		if (shouldBlock) {
+			try {
+				batch.add(_polled.take());
+			} catch (InterruptedException e) {
+				// We don't use interruption.
+				throw Assert.unexpected(e);
+			}
+		}
+		_polled.drainTo(batch, limit - batch.size());
+		boolean isEnd = false;
+		for (Polled polled : batch) {
+			if (Polled.END == polled) {
+				isEnd = true;
+			} else {
+				raw.add(polled.consequence);
+			}
+		}
+		return isEnd;
+	}
+
+	// Called on the decoding threads.
+	private List<Decoded<K, V>> _decode(List<TopicConsequence> chunk) {
+		List<Decoded<K, V>> decoded = new ArrayList<>(chunk.size());
+		for (TopicConsequence consequence : chunk) {
+			switch (consequence.type) {
+			case KEY_PUT: {
+				// Decode the key and value.
+				K key = _keyCodec.deserialize(consequence.key);
+				V value = _valueCodec.deserialize(consequence.value);
+				decoded.add(new Decoded<>(consequence, new TopicPut<>(key, value, consequence.intentionOffset, consequence.consequenceOffset), null));
+			}
+				break;
+			case KEY_DELETE: {
+				// Decode the key.
+				K key = _keyCodec.deserialize(consequence.key);
+				decoded.add(new Decoded<>(consequence, null, key));
+			}
+				break;
+			default:
+				decoded.add(new Decoded<>(consequence, null, null));
+			}
+		}
+		_decodedCount.addAndGet(chunk.size());
+		return decoded;
+	}
+
+	private void _flushPuts(List<TopicPut<K, V>> puts) {
+		if (!puts.isEmpty()) {
+			// Pass the commands to the shim.
+			_shim.putBatch(puts);
+			if (null != _checkpoint) {
+				for (TopicPut<K, V> put : puts) {
+					_checkpoint.recordPut(put.key, put.value, put.intentionOffset, put.consequenceOffset);
+				}
+			}
+			puts.clear();
+		}
+	}
+
+	private void _dispatchOther(Decoded<K, V> decoded) {
+		TopicConsequence consequence = decoded.consequence;
+		switch (consequence.type) {
+		case CONFIG_CHANGE:
+			// Ignore.
+			break;
+		case INVALID:
+			throw Assert.unreachable("INVALID consequence");
+		case KEY_DELETE:
+			// Pass the command to the shim.
+			_shim.delete(decoded.deleteKey, consequence.intentionOffset, consequence.consequenceOffset);
+			break;
+		case TOPIC_CREATE:
+			// Pass the command to the shim.
+			_shim.create(consequence.intentionOffset, consequence.consequenceOffset);
+			break;
+		case TOPIC_DESTROY:
+			// Pass the command to the shim.
+			_shim.destroy(consequence.intentionOffset, consequence.consequenceOffset);
+			break;
+		case KEY_PUT:
+			throw Assert.unreachable("Puts are batched");
+		default:
+			throw Assert.unreachable("Unknown consequence type");
+		}
+		if (null != _checkpoint) {
+			_checkpoint.recordConsequence(consequence.consequenceOffset);
+		}
+	}
+
+	// Called on the checkpoint writer or, once it has stopped, by close().
+	private void _writeCheckpoint(TopicCheckpoint.State<K, V> state) {
+		try {
+			_checkpoint.write(state);
+		} catch (IOException e) {
+			// The checkpoint is only an optimization so we will keep running (the previous checkpoint is still valid).
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * A snapshot of the pipeline's metrics.
+	 */
+	public static class Metrics {
+		/**
+		 * The total consequences polled from the network.
+		 */
+		public final long polled;
+		/**
+		 * The total consequences decoded.
+		 */
+		public final long decoded;
+		/**
+		 * The total consequences dispatched to the shim.
+		 */
+		public final long dispatched;
+		/**
+		 * The consequences polled but not yet taken for decoding.
+		 */
+		public final int bufferedDepth;
+		/**
+		 * The consequences taken for decoding but not yet dispatched.
+		 */
+		public final int decodingDepth;
+		
+		public Metrics(long polled, long decoded, long dispatched, int bufferedDepth, int decodingDepth) {
+			this.polled = polled;
+			this.decoded = decoded;
+			this.dispatched = dispatched;
+			this.bufferedDepth = bufferedDepth;
+			this.decodingDepth = decodingDepth;
+		}
+		
+		@Override
+		public String toString() {
+			return "polled=" + this.polled + ", decoded=" + this.decoded + ", dispatched=" + this.dispatched
+					+ ", bufferedDepth=" + this.bufferedDepth + ", decodingDepth=" + this.decodingDepth;
+		}
+	}
+
+
+	private static class Decoded<K, V> {
+		public final TopicConsequence consequence;
+		// Non-null only for puts.
+		public final TopicPut<K, V> put;
+		// Non-null only for deletes.
+		public final K deleteKey;
+		
+		public Decoded(TopicConsequence consequence, TopicPut<K, V> put, K deleteKey) {
+			this.consequence = consequence;
+			this.put = put;
+			this.deleteKey = deleteKey;
+		}
+	}
+
+
+	private static class Polled {
+		// Sentinel used to tell the dispatcher the connection has closed.
+		public static final Polled END = new Polled(null);
+		
+		public final TopicConsequence consequence;
+		
+		public Polled(TopicConsequence consequence) {
+			this.consequence = consequence;
+		}
 	}
 }
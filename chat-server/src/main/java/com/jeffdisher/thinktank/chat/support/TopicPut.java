@@ -0,0 +1,22 @@
+package com.jeffdisher.thinktank.chat.support;
+
+
+/**
+ * A decoded put from a topic, as passed to IListenerTopicShim.putBatch() and retained in a TopicCheckpoint.
+ * 
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class TopicPut<K, V> {
+	public final K key;
+	public final V value;
+	public final long intentionOffset;
+	public final long consequenceOffset;
+
+	public TopicPut(K key, V value, long intentionOffset, long consequenceOffset) {
+		this.key = key;
+		this.value = value;
+		this.intentionOffset = intentionOffset;
+		this.consequenceOffset = consequenceOffset;
+	}
+}
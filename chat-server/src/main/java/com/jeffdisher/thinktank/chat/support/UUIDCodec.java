@@ -3,21 +3,84 @@ package com.jeffdisher.thinktank.chat.support;
 import java.nio.ByteBuffer;
 import java.util.UUID;
 
+import com.jeffdisher.laminar.utils.Assert;
+
 
 /**
  * Serializes/deserializes UUIDs for Laminar.
+ * None of the methods allocate anything other than their result.
  */
-public class UUIDCodec implements ICodec<UUID> {
+public class UUIDCodec implements IBufferCodec<UUID> {
+	/**
+	 * The number of bytes in a serialized UUID (most significant bits, then least significant bits, both big-endian).
+	 */
+	public static final int SERIALIZED_SIZE = 2 * Long.BYTES;
+
 	@Override
 	public UUID deserialize(byte[] bytes) {
-		ByteBuffer wrapper = ByteBuffer.wrap(bytes);
-		return new UUID(wrapper.getLong(), wrapper.getLong());
+		return deserialize(bytes, 0, bytes.length);
 	}
+
 	@Override
 	public byte[] serialize(UUID object) {
-		return ByteBuffer.allocate(2 * Long.BYTES)
+		byte[] bytes = new byte[SERIALIZED_SIZE];
+		_writeLong(bytes, 0, object.getMostSignificantBits());
+		_writeLong(bytes, Long.BYTES, object.getLeastSignificantBits());
+		return bytes;
+	}
+
+	@Override
+	public int serializedSize(UUID object) {
+		return SERIALIZED_SIZE;
+	}
+
+	/**
+	 * Writes the same 16-byte layout as serialize() into an existing buffer, at its current position.
+	 * 
+	 * @param object The UUID to serialize.
+	 * @param buffer The buffer to write into (must have at least SERIALIZED_SIZE bytes remaining).
+	 */
+	@Override
+	public void serializeInto(UUID object, ByteBuffer buffer) {
+		buffer
 			.putLong(object.getMostSignificantBits())
-			.putLong(object.getLeastSignificantBits())
-			.array();
+			.putLong(object.getLeastSignificantBits());
+	}
+
+	@Override
+	public UUID deserializeFrom(ByteBuffer buffer, int length) {
+		Assert.assertTrue(SERIALIZED_SIZE == length);
+		return deserializeFrom(buffer);
+	}
+
+	@Override
+	public UUID deserialize(byte[] bytes, int offset, int length) {
+		Assert.assertTrue(SERIALIZED_SIZE == length);
+		return new UUID(_readLong(bytes, offset), _readLong(bytes, offset + Long.BYTES));
+	}
+
+	/**
+	 * Reads the 16-byte layout written by serialize() from a buffer, at its current position.
+	 * 
+	 * @param buffer The buffer to read from (must have at least SERIALIZED_SIZE bytes remaining).
+	 * @return The UUID.
+	 */
+	public UUID deserializeFrom(ByteBuffer buffer) {
+		return new UUID(buffer.getLong(), buffer.getLong());
+	}
+
+
+	private static void _writeLong(byte[] bytes, int offset, long value) {
+		for (int i = 0; i < Long.BYTES; ++i) {
+			bytes[offset + i] = (byte)(value >>> (Byte.SIZE * (Long.BYTES - 1 - i)));
+		}
+	}
+
+	private static long _readLong(byte[] bytes, int offset) {
+		long value = 0L;
+		for (int i = 0; i < Long.BYTES; ++i) {
+			value = (value << Byte.SIZE) | (bytes[offset + i] & 0xFFL);
+		}
+		return value;
 	}
 }
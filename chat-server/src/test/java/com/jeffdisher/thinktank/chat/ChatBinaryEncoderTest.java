@@ -0,0 +1,81 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ChatBinaryEncoderTest {
+	@Test
+	public void testSingleMessage() throws Throwable {
+		ChatBinaryEncoder encoder = new ChatBinaryEncoder();
+		UUID sender = UUID.randomUUID();
+		ByteBuffer frame = encoder.encode(sender, "hello", 1L);
+		// 1-byte index, 16-byte sender, 1-byte length, 5 bytes of content.
+		Assert.assertEquals(1 + 16 + 1 + 5, frame.remaining());
+		
+		ByteBuffer reader = frame.duplicate();
+		Assert.assertEquals(1L, _readVarint(reader));
+		Assert.assertEquals(sender, new UUID(reader.getLong(), reader.getLong()));
+		Assert.assertEquals("hello", _readContent(reader));
+		Assert.assertFalse(reader.hasRemaining());
+	}
+
+	@Test
+	public void testLargeIndexAndUnicode() throws Throwable {
+		ChatBinaryEncoder encoder = new ChatBinaryEncoder();
+		UUID sender = UUID.randomUUID();
+		String content = "café ☃";
+		long index = Long.MAX_VALUE;
+		ByteBuffer reader = encoder.encode(sender, content, index).duplicate();
+		Assert.assertEquals(index, _readVarint(reader));
+		Assert.assertEquals(sender, new UUID(reader.getLong(), reader.getLong()));
+		Assert.assertEquals(content, _readContent(reader));
+		Assert.assertFalse(reader.hasRemaining());
+	}
+
+	@Test
+	public void testConcatenate() throws Throwable {
+		ChatBinaryEncoder encoder = new ChatBinaryEncoder();
+		UUID sender1 = UUID.randomUUID();
+		UUID sender2 = UUID.randomUUID();
+		ByteBuffer first = encoder.encode(sender1, "first", 200L);
+		ByteBuffer second = encoder.encode(sender2, "second", 201L);
+		ByteBuffer reader = ChatBinaryEncoder.concatenate(Arrays.asList(first, second));
+		// The inputs are shared so they must not be consumed.
+		Assert.assertEquals(0, first.position());
+		Assert.assertEquals(0, second.position());
+		
+		Assert.assertEquals(200L, _readVarint(reader));
+		Assert.assertEquals(sender1, new UUID(reader.getLong(), reader.getLong()));
+		Assert.assertEquals("first", _readContent(reader));
+		Assert.assertEquals(201L, _readVarint(reader));
+		Assert.assertEquals(sender2, new UUID(reader.getLong(), reader.getLong()));
+		Assert.assertEquals("second", _readContent(reader));
+		Assert.assertFalse(reader.hasRemaining());
+	}
+
+
+	private static long _readVarint(ByteBuffer buffer) {
+		long value = 0L;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= ((long)(b & 0x7F)) << shift;
+			shift += 7;
+		} while (0 != (b & 0x80));
+		return value;
+	}
+
+	private static String _readContent(ByteBuffer buffer) {
+		int length = (int)_readVarint(buffer);
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
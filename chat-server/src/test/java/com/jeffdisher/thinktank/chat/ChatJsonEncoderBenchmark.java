@@ -0,0 +1,87 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+import java.util.function.IntUnaryOperator;
+
+import com.eclipsesource.json.JsonObject;
+
+
+/**
+ * Compares the throughput and allocation of ChatJsonEncoder against building the same frame with a minimal-json
+ * JsonObject (what ChatStore did before the dedicated encoder).
+ * This isn't part of the unit tests since the numbers depend on the machine (and allocation is only reported where
+ * the JVM supports per-thread allocation counters):  run it directly, with the test classpath.
+ */
+public class ChatJsonEncoderBenchmark {
+	private static final int ITERATIONS = 1_000_000;
+	private static final int SENDER_COUNT = 100;
+	private static final String[] CONTENTS = new String[] {
+			"Hello, world",
+			"A somewhat longer message, like most chat traffic, which needs no escaping at all.",
+			"Some \"quoted\" text\nover two lines",
+	};
+
+	public static void main(String[] args) {
+		UUID[] senders = new UUID[SENDER_COUNT];
+		for (int i = 0; i < SENDER_COUNT; ++i) {
+			senders[i] = UUID.randomUUID();
+		}
+		ChatJsonEncoder encoder = new ChatJsonEncoder();
+		IntUnaryOperator streaming = (int i) -> encoder.encode(senders[i % SENDER_COUNT], CONTENTS[i % CONTENTS.length], i).length();
+		IntUnaryOperator jsonObject = (int i) -> {
+			JsonObject object = new JsonObject();
+			object.add("sender", senders[i % SENDER_COUNT].toString());
+			object.add("content", CONTENTS[i % CONTENTS.length]);
+			object.add("index", (long)i);
+			return object.toString().length();
+		};
+		// Warm up the JIT before measuring.
+		_run(streaming);
+		_run(jsonObject);
+		_report("ChatJsonEncoder", streaming);
+		_report("JsonObject", jsonObject);
+	}
+
+
+	private static void _report(String name, IntUnaryOperator encode) {
+		com.sun.management.ThreadMXBean bean = _allocationBean();
+		long threadId = Thread.currentThread().getId();
+		long beforeBytes = (null != bean)
+				? bean.getThreadAllocatedBytes(threadId)
+				: 0L;
+		long start = System.nanoTime();
+		_run(encode);
+		long elapsedNanos = System.nanoTime() - start;
+		String line = name + ": " + ((long)ITERATIONS * 1_000_000_000L / elapsedNanos) + " frames/s";
+		if (null != bean) {
+			long allocatedBytes = bean.getThreadAllocatedBytes(threadId) - beforeBytes;
+			line += ", " + (allocatedBytes / ITERATIONS) + " bytes/frame";
+		}
+		System.out.println(line);
+	}
+
+	private static com.sun.management.ThreadMXBean _allocationBean() {
+		// Returns null if this JVM can't count the bytes allocated by a thread.
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocationBean = null;
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			allocationBean = (com.sun.management.ThreadMXBean)bean;
+			if (!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled()) {
+				allocationBean = null;
+			}
+		}
+		return allocationBean;
+	}
+
+	private static void _run(IntUnaryOperator encode) {
+		// We sum the lengths so the JIT can't drop the encoding.
+		long totalChars = 0L;
+		for (int i = 0; i < ITERATIONS; ++i) {
+			totalChars += encode.applyAsInt(i);
+		}
+		if (0L == totalChars) {
+			throw new AssertionError("Nothing encoded");
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.eclipsesource.json.JsonObject;
+
+
+public class ChatJsonEncoderTest {
+	@Test
+	public void testPlainContent() throws Throwable {
+		ChatJsonEncoder encoder = new ChatJsonEncoder();
+		UUID sender = UUID.randomUUID();
+		_verifyMatches(encoder, sender, "", 1L);
+		_verifyMatches(encoder, sender, "Hello, world", 2L);
+		_verifyMatches(encoder, sender, "Unicode: \u00e9\u4e2d\ud83d\ude00", Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testEscapedContent() throws Throwable {
+		ChatJsonEncoder encoder = new ChatJsonEncoder();
+		UUID sender = UUID.randomUUID();
+		_verifyMatches(encoder, sender, "\"quoted\"", 1L);
+		_verifyMatches(encoder, sender, "back\\slash", 2L);
+		_verifyMatches(encoder, sender, "line\nbreak\r\ttab", 3L);
+		_verifyMatches(encoder, sender, "control\u0001\u001f", 4L);
+		_verifyMatches(encoder, sender, "separators\u2028\u2029", 5L);
+	}
+
+	@Test
+	public void testManySenders() throws Throwable {
+		// Make sure that the sender cache eviction doesn't break anything.
+		ChatJsonEncoder encoder = new ChatJsonEncoder();
+		for (int i = 0; i < 5000; ++i) {
+			_verifyMatches(encoder, UUID.randomUUID(), "Message " + i, i);
+		}
+	}
+
+
+	private static void _verifyMatches(ChatJsonEncoder encoder, UUID sender, String content, long index) {
+		JsonObject object = new JsonObject();
+		object.add("sender", sender.toString());
+		object.add("content", content);
+		object.add("index", index);
+		Assert.assertEquals(object.toString(), encoder.encode(sender, content, index));
+	}
+}
@@ -0,0 +1,248 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.jeffdisher.thinktank.chat.support.SimulatedLaminarCluster;
+
+
+public class ChatLaminarTest {
+	@Test
+	public void testPostsWithJitter() throws Throwable {
+		SimulatedLaminarCluster cluster = new SimulatedLaminarCluster(2L, 5L, 0, 0L, 0L);
+		ChatStore store = _createStore(1);
+		ChatLaminar laminar = new ChatLaminar(store, cluster, 1, 1, 8, null, 2);
+		UUID sender = UUID.randomUUID();
+		List<CompletableFuture<Long>> futures = new ArrayList<>();
+		for (int i = 0; i < 100; ++i) {
+			futures.add(laminar.postAsync(sender, "post " + i));
+		}
+		// A single writer's posts commit in order and the topic starts with its TOPIC_CREATE at offset 1.
+		for (int i = 0; i < futures.size(); ++i) {
+			Assert.assertEquals(i + 2L, futures.get(i).get().longValue());
+		}
+		Assert.assertEquals(101L, store.getLastIndex());
+		laminar.close();
+		store.close();
+		cluster.close();
+	}
+
+	@Test
+	public void testOutageAndThroughputCap() throws Throwable {
+		SimulatedLaminarCluster cluster = new SimulatedLaminarCluster(0L, 0L, 1000, 0L, 0L);
+		ChatStore store = _createStore(1);
+		ChatLaminar laminar = new ChatLaminar(store, cluster, 1, 1, 64, null, 0);
+		UUID sender = UUID.randomUUID();
+		long start = System.nanoTime();
+		cluster.disconnect(100L);
+		List<CompletableFuture<Long>> futures = new ArrayList<>();
+		for (int i = 0; i < 50; ++i) {
+			futures.add(laminar.postAsync(sender, "post " + i));
+		}
+		Assert.assertEquals(51L, futures.get(futures.size() - 1).get().longValue());
+		// Nothing commits during the outage and then the posts are spaced 1 ms apart.
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		Assert.assertTrue(elapsedMillis >= 145L);
+		laminar.close();
+		store.close();
+		cluster.close();
+	}
+
+	@Test
+	public void testWriterPool() throws Throwable {
+		// With jitter, posts on different connections commit out of order but each sender's posts stay in order.
+		SimulatedLaminarCluster cluster = new SimulatedLaminarCluster(1L, 10L, 0, 0L, 0L);
+		ChatStore store = _createStore(1);
+		ChatLaminar laminar = new ChatLaminar(store, cluster, 1, 4, 8, null, 1);
+		Assert.assertEquals(4, laminar.getWritersInRotation());
+		List<List<CompletableFuture<Long>>> futuresBySender = new ArrayList<>();
+		for (int i = 0; i < 8; ++i) {
+			futuresBySender.add(new ArrayList<>());
+		}
+		for (int j = 0; j < 20; ++j) {
+			for (int i = 0; i < futuresBySender.size(); ++i) {
+				futuresBySender.get(i).add(laminar.postAsync(new UUID(0L, i), "post " + j));
+			}
+		}
+		for (List<CompletableFuture<Long>> futures : futuresBySender) {
+			long previous = 0L;
+			for (CompletableFuture<Long> future : futures) {
+				long index = future.get();
+				Assert.assertTrue(index > previous);
+				previous = index;
+			}
+		}
+		Assert.assertEquals(161L, store.getLastIndex());
+		laminar.close();
+		store.close();
+		cluster.close();
+	}
+
+	@Test
+	public void testStalledWriter() throws Throwable {
+		// The second connection silently stops committing:  new senders move off it but a sender with a post in flight
+		// stays pinned to it (so their posts stay in order) and fails once its window stays full.
+		SimulatedLaminarCluster cluster = new SimulatedLaminarCluster(1L, 0L, 0, 0L, 0L);
+		cluster.setWriterStalled(1, true);
+		ChatStore store = _createStore(1);
+		ChatLaminar laminar = new ChatLaminar(store, cluster, 1, 2, 1, 100L, null, 1);
+		// UUID(0, i) hashes to i so these senders both start on the second connection.
+		UUID pinned = new UUID(0L, 1L);
+		UUID other = new UUID(0L, 3L);
+		CompletableFuture<Long> stalled = laminar.postAsync(pinned, "stalled");
+		while (2 == laminar.getWritersInRotation()) {
+			Thread.sleep(10L);
+		}
+		Assert.assertEquals(2L, laminar.postAsync(other, "moved").get().longValue());
+		try {
+			laminar.postAsync(pinned, "blocked").get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+		Assert.assertFalse(stalled.isDone());
+		
+		// Once the connection recovers, the stalled post commits and the sender can use it again.
+		cluster.setWriterStalled(1, false);
+		Assert.assertEquals(3L, stalled.get().longValue());
+		Assert.assertEquals(4L, laminar.postAsync(pinned, "after").get().longValue());
+		Assert.assertEquals(2, laminar.getWritersInRotation());
+		laminar.close();
+		store.close();
+		cluster.close();
+	}
+
+	@Test
+	public void testCloseStalledWriter() throws Throwable {
+		// A connection which never recovers can't hold up close() but the caller is told about the posts it lost.
+		SimulatedLaminarCluster cluster = new SimulatedLaminarCluster(1L, 0L, 0, 0L, 0L);
+		cluster.setWriterStalled(1, true);
+		ChatStore store = _createStore(1);
+		ChatLaminar laminar = new ChatLaminar(store, cluster, 1, 2, 1, 100L, null, 1);
+		// UUID(0, 1) hashes to 1 so this sender starts on the second connection.
+		CompletableFuture<Long> stalled = laminar.postAsync(new UUID(0L, 1L), "stalled");
+		try {
+			laminar.close();
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().contains("stalled"));
+		}
+		Assert.assertTrue(stalled.isCompletedExceptionally());
+		store.close();
+		cluster.close();
+	}
+
+	@Test
+	public void testOtherWritersNotRetained() throws Throwable {
+		// Posts from another node are observed but never match a commit here so they aren't kept once nothing is pending.
+		SimulatedLaminarCluster cluster = new SimulatedLaminarCluster(1L, 0L, 0, 0L, 0L);
+		ChatStore store = _createStore(1);
+		ChatLaminar laminar = new ChatLaminar(store, cluster, 1, 2, 8, null, 1);
+		ChatStore other = _createStore(1);
+		ChatLaminar otherLaminar = new ChatLaminar(other, cluster, 1, 1, 8, null, 1);
+		UUID sender = UUID.randomUUID();
+		CompletableFuture<Long> last = null;
+		for (int i = 0; i < 200; ++i) {
+			last = otherLaminar.postAsync(sender, "post " + i);
+		}
+		Assert.assertEquals(201L, last.get().longValue());
+		while (store.getLastIndex() < 201L) {
+			Thread.sleep(10L);
+		}
+		Assert.assertEquals(0, laminar.getUnmatchedObservationCount());
+		Assert.assertEquals(202L, laminar.postAsync(sender, "mine").get().longValue());
+		Assert.assertEquals(0, laminar.getUnmatchedObservationCount());
+		otherLaminar.close();
+		other.close();
+		laminar.close();
+		store.close();
+		cluster.close();
+	}
+
+	@Test
+	public void testResumeFromCheckpoint() throws Throwable {
+		File checkpointFile = File.createTempFile("chat", ".checkpoint");
+		checkpointFile.deleteOnExit();
+		Assert.assertTrue(checkpointFile.delete());
+		SimulatedLaminarCluster cluster = new SimulatedLaminarCluster(1L, 0L, 0, 0L, 0L);
+		UUID sender = UUID.randomUUID();
+		ChatStore store = _createStore(1);
+		ChatLaminar laminar = new ChatLaminar(store, cluster, 1, 2, 8, checkpointFile, 1);
+		for (int i = 0; i < 10; ++i) {
+			laminar.post(sender, "post " + i);
+		}
+		Assert.assertEquals(12L, laminar.postAsync(sender, "last").get().longValue());
+		laminar.close();
+		store.close();
+		
+		// The new store is refilled from the checkpoint and the listener only sees what came after it.
+		ChatStore restarted = _createStore(1);
+		ChatLaminar resumed = new ChatLaminar(restarted, cluster, 1, 2, 8, checkpointFile, 1);
+		Assert.assertEquals(12L, restarted.getLastIndex());
+		Assert.assertEquals(13L, resumed.postAsync(sender, "after").get().longValue());
+		// Replaying the topic would have dispatched everything before the new post (which may not be counted yet).
+		Assert.assertTrue(resumed.getListenerMetrics().dispatched <= 1L);
+		resumed.close();
+		restarted.close();
+		cluster.close();
+		Assert.assertTrue(checkpointFile.delete());
+	}
+
+	@Test
+	public void testPartitionedTopics() throws Throwable {
+		// Senders are spread over the partitions but each sender's posts stay in order and every node sees one order.
+		SimulatedLaminarCluster cluster = new SimulatedLaminarCluster(1L, 10L, 0, 0L, 0L);
+		ChatStore store = _createStore(3);
+		ChatLaminar laminar = new ChatLaminar(store, cluster, 3, 2, 8, null, 1);
+		List<List<CompletableFuture<Long>>> futuresBySender = new ArrayList<>();
+		for (int i = 0; i < 6; ++i) {
+			futuresBySender.add(new ArrayList<>());
+		}
+		for (int j = 0; j < 20; ++j) {
+			for (int i = 0; i < futuresBySender.size(); ++i) {
+				futuresBySender.get(i).add(laminar.postAsync(new UUID(1L, i), "post " + j));
+			}
+		}
+		long last = 0L;
+		for (List<CompletableFuture<Long>> futures : futuresBySender) {
+			long previous = 0L;
+			for (CompletableFuture<Long> future : futures) {
+				long index = future.get();
+				Assert.assertTrue(index > previous);
+				previous = index;
+			}
+			last = Math.max(last, previous);
+		}
+		Assert.assertEquals(last, store.getLastIndex());
+		
+		// A second node, listening to the same partitions, merges them into the same indices.
+		ChatStore other = _createStore(3);
+		ChatLaminar otherLaminar = new ChatLaminar(other, cluster, 3, 1, 8, null, 1);
+		// This post's partition is the only one with anything new so the others must be advanced by ticks.
+		long single = otherLaminar.postAsync(new UUID(1L, 0L), "single").get();
+		Assert.assertTrue(single > last);
+		Assert.assertEquals(single, other.getLastIndex());
+		long check = laminar.postAsync(new UUID(1L, 1L), "check").get();
+		Assert.assertTrue(check > single);
+		Assert.assertEquals(check, store.getLastIndex());
+		otherLaminar.close();
+		other.close();
+		laminar.close();
+		store.close();
+		cluster.close();
+	}
+
+
+	private static ChatStore _createStore(int partitionCount) {
+		return new ChatStore(10, 1, 10, SlowConsumerPolicy.DISCONNECT, 0L, 10, IndexMode.forLaminarPartitions(partitionCount));
+	}
+}
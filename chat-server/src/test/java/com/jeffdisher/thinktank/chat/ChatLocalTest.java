@@ -0,0 +1,86 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ChatLocalTest {
+	@Test
+	public void testPostAsyncIndices() throws Throwable {
+		ChatStore store = new ChatStore(10, 1, 10, SlowConsumerPolicy.DISCONNECT, 0L, 10, IndexMode.LOCAL);
+		ChatLocal local = new ChatLocal(store);
+		UUID sender = UUID.randomUUID();
+		CompletableFuture<Long> first = local.postAsync(sender, "one");
+		CompletableFuture<Long> second = local.postAsync(sender, "two");
+		Assert.assertEquals(1L, first.get().longValue());
+		Assert.assertEquals(2L, second.get().longValue());
+		local.close();
+		store.close();
+	}
+
+	@Test
+	public void testPostAfterClose() throws Throwable {
+		ChatStore store = new ChatStore(10, 1, 10, SlowConsumerPolicy.DISCONNECT, 0L, 10, IndexMode.LOCAL);
+		ChatLocal local = new ChatLocal(store);
+		local.close();
+		CompletableFuture<Long> late = local.postAsync(UUID.randomUUID(), "late");
+		Assert.assertTrue(late.isCompletedExceptionally());
+		try {
+			late.get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+		Assert.assertEquals(0L, store.getLastIndex());
+		store.close();
+	}
+
+	@Test
+	public void testConcurrentPosters() throws Throwable {
+		int threadCount = 4;
+		int postsPerThread = 1000;
+		ChatStore store = new ChatStore(10, 1, 10, SlowConsumerPolicy.DISCONNECT, 0L, 10, IndexMode.LOCAL);
+		// Spin a little so both the spinning and parking paths are used.
+		ChatLocal local = new ChatLocal(store, null, 10);
+		List<CompletableFuture<Long>> futures = new ArrayList<>();
+		Thread[] threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; ++i) {
+			threads[i] = new Thread(() -> {
+				UUID sender = UUID.randomUUID();
+				for (int j = 0; j < postsPerThread; ++j) {
+					CompletableFuture<Long> future = local.postAsync(sender, "post " + j);
+					synchronized (futures) {
+						futures.add(future);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		// Every post gets a distinct index and together they are contiguous.
+		Set<Long> indices = new HashSet<>();
+		for (CompletableFuture<Long> future : futures) {
+			Assert.assertTrue(indices.add(future.get()));
+		}
+		long total = threadCount * postsPerThread;
+		Assert.assertEquals(total, indices.size());
+		for (long i = 1L; i <= total; ++i) {
+			Assert.assertTrue(indices.contains(i));
+		}
+		Assert.assertEquals(total, store.getLastIndex());
+		local.close();
+		store.close();
+	}
+}
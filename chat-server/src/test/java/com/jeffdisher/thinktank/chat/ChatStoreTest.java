@@ -0,0 +1,139 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class ChatStoreTest {
+	@Test
+	public void testSnapshotRoundTrip() throws Throwable {
+		File file = File.createTempFile("chat", ".snapshot");
+		file.deleteOnExit();
+		UUID sender = UUID.randomUUID();
+		ChatStore original = _createStore(2);
+		original.newMessageArrived(sender, "one", 1L);
+		original.newMessageArrived(sender, "two", 2L);
+		original.newMessageArrived(sender, "thr\u00e9e", 5L);
+		original.writeSnapshot(file);
+		original.close();
+		
+		ChatStore loaded = _createStore(2);
+		loaded.loadSnapshot(file);
+		Assert.assertEquals(5L, loaded.getLastIndex());
+		List<ChatStore.MessageTuple> backlog = _collectBacklog(loaded);
+		Assert.assertEquals(2, backlog.size());
+		Assert.assertEquals(2L, backlog.get(0).index);
+		Assert.assertEquals("two", backlog.get(0).content);
+		Assert.assertEquals(sender, backlog.get(1).sender);
+		Assert.assertEquals("thr\u00e9e", backlog.get(1).content);
+		
+		// A back-end replaying messages we already have is ignored.
+		loaded.newMessageArrived(sender, "two", 2L);
+		loaded.newMessageArrived(sender, "six", 6L);
+		backlog = _collectBacklog(loaded);
+		Assert.assertEquals(2, backlog.size());
+		Assert.assertEquals(5L, backlog.get(0).index);
+		Assert.assertEquals(6L, backlog.get(1).index);
+		loaded.close();
+		Assert.assertTrue(file.delete());
+	}
+
+	@Test
+	public void testEmptySnapshot() throws Throwable {
+		File file = File.createTempFile("chat", ".snapshot");
+		file.deleteOnExit();
+		ChatStore original = _createStore(2);
+		original.writeSnapshot(file);
+		original.close();
+		
+		ChatStore loaded = _createStore(2);
+		loaded.loadSnapshot(file);
+		Assert.assertEquals(0L, loaded.getLastIndex());
+		loaded.close();
+		Assert.assertTrue(file.delete());
+	}
+
+	@Test
+	public void testIndexModeMismatch() throws Throwable {
+		File file = File.createTempFile("chat", ".snapshot");
+		file.deleteOnExit();
+		ChatStore original = _createStore(2, IndexMode.CONSEQUENCE_OFFSET);
+		original.newMessageArrived(UUID.randomUUID(), "one", 1L);
+		original.writeSnapshot(file);
+		original.close();
+		
+		// Intention offsets aren't comparable to consequence offsets so this snapshot can't be used.
+		ChatStore loaded = _createStore(2, IndexMode.INTENTION_OFFSET);
+		try {
+			loaded.loadSnapshot(file);
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().contains(IndexMode.CONSEQUENCE_OFFSET.name()));
+		}
+		Assert.assertEquals(0L, loaded.getLastIndex());
+		loaded.close();
+		Assert.assertTrue(file.delete());
+	}
+
+	@Test
+	public void testCorruptSnapshot() throws Throwable {
+		File file = File.createTempFile("chat", ".snapshot");
+		file.deleteOnExit();
+		ChatStore original = _createStore(2);
+		original.newMessageArrived(UUID.randomUUID(), "one", 1L);
+		original.writeSnapshot(file);
+		original.close();
+		
+		// The content length follows the header, the 1-byte index varint, and the sender:  claim more than the file has.
+		try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+			raw.seek(20 + 1 + 16);
+			raw.write(0x7F);
+		}
+		ChatStore loaded = _createStore(2);
+		try {
+			loaded.loadSnapshot(file);
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().startsWith("Corrupt length 127"));
+		}
+		loaded.close();
+		
+		// A negative message count is also rejected.
+		try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+			raw.seek(16);
+			raw.writeInt(-1);
+		}
+		loaded = _createStore(2);
+		try {
+			loaded.loadSnapshot(file);
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().startsWith("Corrupt message count -1"));
+		}
+		Assert.assertEquals(0L, loaded.getLastIndex());
+		loaded.close();
+		Assert.assertTrue(file.delete());
+	}
+
+
+	private static ChatStore _createStore(int backlogSize) {
+		return _createStore(backlogSize, IndexMode.CONSEQUENCE_OFFSET);
+	}
+
+	private static ChatStore _createStore(int backlogSize, IndexMode indexMode) {
+		return new ChatStore(backlogSize, 1, 10, SlowConsumerPolicy.DISCONNECT, 0L, 10, indexMode);
+	}
+
+	private static List<ChatStore.MessageTuple> _collectBacklog(ChatStore store) {
+		List<ChatStore.MessageTuple> backlog = new ArrayList<>();
+		store.forEachInBacklog(0L, Long.MAX_VALUE, (ChatStore.MessageTuple tuple) -> backlog.add(tuple));
+		return backlog;
+	}
+}
@@ -0,0 +1,107 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class MessageLogTest {
+	// The smallest segment size the log accepts.
+	private static final int SEGMENT_BYTES = 4096;
+
+	@Test
+	public void testAppendAndRecover() throws Throwable {
+		File directory = Files.createTempDirectory("log").toFile();
+		UUID sender = UUID.randomUUID();
+		MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 100);
+		Assert.assertEquals(0L, log.getLastIndex());
+		for (long i = 1L; i <= 500L; ++i) {
+			log.append(sender, "message " + i, i);
+		}
+		Assert.assertEquals(500L, log.getLastIndex());
+		// The log rolled over into multiple segments.
+		Assert.assertTrue(directory.listFiles().length > 1);
+		Assert.assertEquals(3, _collectIndices(log, 497L).size());
+		log.close();
+		
+		// Re-open and check we can read everything back, from any point.
+		MessageLog recovered = new MessageLog(directory, SEGMENT_BYTES, 100);
+		Assert.assertEquals(500L, recovered.getLastIndex());
+		List<Long> all = _collectIndices(recovered, 0L);
+		Assert.assertEquals(500, all.size());
+		Assert.assertEquals(1L, all.get(0).longValue());
+		List<Long> tail = _collectIndices(recovered, 250L);
+		Assert.assertEquals(250, tail.size());
+		Assert.assertEquals(251L, tail.get(0).longValue());
+		List<String> contents = new ArrayList<>();
+		recovered.forEachAfter(499L, (UUID messageSender, String content, long index) -> {
+			Assert.assertEquals(sender, messageSender);
+			contents.add(content);
+		});
+		Assert.assertEquals("message 500", contents.get(0));
+		recovered.append(sender, "message 501", 501L);
+		recovered.close();
+		_delete(directory);
+	}
+
+	@Test
+	public void testRetention() throws Throwable {
+		File directory = Files.createTempDirectory("log").toFile();
+		UUID sender = UUID.randomUUID();
+		MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 2);
+		for (long i = 1L; i <= 500L; ++i) {
+			log.append(sender, "message " + i, i);
+		}
+		Assert.assertEquals(2, directory.listFiles().length);
+		List<Long> all = _collectIndices(log, 0L);
+		// The oldest messages were deleted but the newest are all still there.
+		Assert.assertTrue(all.size() < 500);
+		Assert.assertEquals(500L, all.get(all.size() - 1).longValue());
+		log.close();
+		_delete(directory);
+	}
+
+	@Test
+	public void testTornWrite() throws Throwable {
+		File directory = Files.createTempDirectory("log").toFile();
+		UUID sender = UUID.randomUUID();
+		MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 2);
+		log.append(sender, "one", 1L);
+		log.append(sender, "two", 2L);
+		log.close();
+		
+		// Corrupt the last byte of the second record's content.
+		File segment = directory.listFiles()[0];
+		int secondRecordEnd = 2 * (8 + 1 + 16 + 1) + 3 + 3;
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.seek(secondRecordEnd - 1);
+			file.write('X');
+		}
+		MessageLog recovered = new MessageLog(directory, SEGMENT_BYTES, 2);
+		Assert.assertEquals(1L, recovered.getLastIndex());
+		recovered.append(sender, "two again", 2L);
+		Assert.assertEquals(2, _collectIndices(recovered, 0L).size());
+		recovered.close();
+		_delete(directory);
+	}
+
+
+	private static List<Long> _collectIndices(MessageLog log, long previousIndex) {
+		List<Long> indices = new ArrayList<>();
+		log.forEachAfter(previousIndex, (UUID sender, String content, long index) -> indices.add(index));
+		return indices;
+	}
+
+	private static void _delete(File directory) {
+		for (File file : directory.listFiles()) {
+			Assert.assertTrue(file.delete());
+		}
+		Assert.assertTrue(directory.delete());
+	}
+}
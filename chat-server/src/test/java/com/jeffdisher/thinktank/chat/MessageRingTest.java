@@ -0,0 +1,71 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class MessageRingTest {
+	@Test
+	public void testEmpty() throws Throwable {
+		MessageRing<String> ring = new MessageRing<>(4);
+		Assert.assertEquals(0L, ring.getLastIndex());
+		Assert.assertEquals(0, ring.size());
+		Assert.assertEquals(0, _collectAfter(ring, 0L).size());
+	}
+
+	@Test
+	public void testWrapAndEvict() throws Throwable {
+		MessageRing<String> ring = new MessageRing<>(3);
+		Assert.assertNull(ring.add(1L, "one"));
+		Assert.assertNull(ring.add(2L, "two"));
+		Assert.assertNull(ring.add(3L, "three"));
+		Assert.assertEquals("one", ring.add(4L, "four"));
+		Assert.assertEquals("two", ring.add(5L, "five"));
+		Assert.assertEquals(3, ring.size());
+		Assert.assertEquals(5L, ring.getLastIndex());
+		
+		// A client which is older than the ring gets everything we have.
+		List<String> all = _collectAfter(ring, 0L);
+		Assert.assertEquals(3, all.size());
+		Assert.assertEquals("three", all.get(0));
+		Assert.assertEquals("five", all.get(2));
+		// A client in the middle only gets what it missed.
+		List<String> some = _collectAfter(ring, 3L);
+		Assert.assertEquals(2, some.size());
+		Assert.assertEquals("four", some.get(0));
+		// An up-to-date client gets nothing.
+		Assert.assertEquals(0, _collectAfter(ring, 5L).size());
+	}
+
+	@Test
+	public void testSparseIndices() throws Throwable {
+		// Laminar consequence offsets can skip values (topic creation, config changes) so the ring can't assume density.
+		// Add 2, 5, 8, ... 398 into a ring which can only hold the last 100 of them (101 to 398).
+		MessageRing<Long> ring = new MessageRing<>(100);
+		for (long i = 2L; i <= 398L; i += 3L) {
+			ring.add(i, i);
+		}
+		Assert.assertEquals(100, ring.size());
+		for (long previous = 0L; previous < 398L; ++previous) {
+			List<Long> after = _collectAfter(ring, previous);
+			long expected = previous + 1L;
+			while ((expected < 101L) || (0L != ((expected - 2L) % 3L))) {
+				expected += 1L;
+			}
+			Assert.assertEquals((Long)expected, after.get(0));
+			Assert.assertEquals((Long)398L, after.get(after.size() - 1));
+			Assert.assertEquals(((398L - expected) / 3L) + 1L, after.size());
+		}
+		Assert.assertEquals(0, _collectAfter(ring, 398L).size());
+	}
+
+
+	private static <T> List<T> _collectAfter(MessageRing<T> ring, long previousIndex) {
+		List<T> list = new ArrayList<>();
+		ring.forEachAfter(previousIndex, (T value) -> list.add(value));
+		return list;
+	}
+}
@@ -0,0 +1,79 @@
+package com.jeffdisher.thinktank.chat;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class OutboundQueueTest {
+	@Test
+	public void testConflateKeepsControlFrames() throws Throwable {
+		FakeConnection connection = new FakeConnection();
+		OutboundQueue queue = new OutboundQueue(connection.session, 0L, 3, SlowConsumerPolicy.CONFLATE, false);
+		// The first message is in flight so everything after it stays pending until we complete the sends.
+		queue.enqueue("m1", 1L);
+		queue.enqueueReady();
+		queue.enqueue("m2", 2L);
+		queue.enqueueAck(7L);
+		// These reach the high-water mark so the pending messages are conflated (each time absorbing the previous gap)
+		// but READY and the ack are kept, in order.
+		queue.enqueue("m3", 3L);
+		queue.enqueue("m4", 4L);
+		
+		List<String> sent = connection.completeAll();
+		Assert.assertEquals(5, sent.size());
+		Assert.assertEquals("m1", sent.get(0));
+		Assert.assertEquals("READY", sent.get(1));
+		Assert.assertEquals("{\"gap\":{\"from\":2,\"to\":3}}", sent.get(2));
+		Assert.assertEquals("{\"ack\":7}", sent.get(3));
+		Assert.assertEquals("m4", sent.get(4));
+		Assert.assertFalse(connection.isClosed);
+	}
+
+
+	/**
+	 * A Session whose RemoteEndpoint only records each send until the test completes it.
+	 */
+	private static class FakeConnection {
+		public final Session session;
+		public final Queue<WriteCallback> inFlight = new LinkedList<>();
+		public final List<String> texts = new ArrayList<>();
+		public boolean isClosed = false;
+		
+		public FakeConnection() {
+			RemoteEndpoint remote = (RemoteEndpoint)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { RemoteEndpoint.class }, (Object proxy, Method method, Object[] args) -> {
+				Assert.assertEquals("sendString", method.getName());
+				this.texts.add((String)args[0]);
+				this.inFlight.add((WriteCallback)args[1]);
+				return null;
+			});
+			this.session = (Session)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Session.class }, (Object proxy, Method method, Object[] args) -> {
+				Object result = null;
+				if ("getRemote".equals(method.getName())) {
+					result = remote;
+				} else if ("close".equals(method.getName())) {
+					this.isClosed = true;
+				} else {
+					Assert.fail("Unexpected call: " + method.getName());
+				}
+				return result;
+			});
+		}
+		
+		public List<String> completeAll() {
+			while (!this.inFlight.isEmpty()) {
+				this.inFlight.poll().writeSuccess();
+			}
+			return this.texts;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.jeffdisher.thinktank.chat.support;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+
+/**
+ * Measures the bytes allocated by UUIDCodec encoding into, and decoding from, a ByteBuffer.  Encoding should allocate
+ * nothing and decoding only the UUID itself (32 bytes, or less if it doesn't escape).
+ * This isn't part of the unit tests since the numbers depend on the JVM (and are only available where it supports
+ * per-thread allocation counters):  run it directly, with the test classpath.
+ */
+public class BufferCodecBenchmark {
+	private static final int ITERATIONS = 1_000_000;
+
+	public static void main(String[] args) {
+		java.lang.management.ThreadMXBean platformBean = ManagementFactory.getThreadMXBean();
+		if (!(platformBean instanceof com.sun.management.ThreadMXBean)) {
+			throw new UnsupportedOperationException("This JVM can't count the bytes allocated by a thread");
+		}
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)platformBean;
+		if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+			throw new UnsupportedOperationException("This JVM can't count the bytes allocated by a thread");
+		}
+		UUIDCodec codec = new UUIDCodec();
+		UUID uuid = UUID.randomUUID();
+		ByteBuffer buffer = ByteBuffer.allocate(UUIDCodec.SERIALIZED_SIZE);
+		long threadId = Thread.currentThread().getId();
+		// Warm up the JIT before measuring.
+		_encode(codec, uuid, buffer);
+		_decode(codec, uuid, buffer);
+		
+		long before = bean.getThreadAllocatedBytes(threadId);
+		_encode(codec, uuid, buffer);
+		long encodeBytes = bean.getThreadAllocatedBytes(threadId) - before;
+		before = bean.getThreadAllocatedBytes(threadId);
+		_decode(codec, uuid, buffer);
+		long decodeBytes = bean.getThreadAllocatedBytes(threadId) - before;
+		System.out.println("encode: " + ((double)encodeBytes / ITERATIONS) + " bytes/op");
+		System.out.println("decode: " + ((double)decodeBytes / ITERATIONS) + " bytes/op");
+	}
+
+
+	private static void _encode(UUIDCodec codec, UUID uuid, ByteBuffer buffer) {
+		for (int i = 0; i < ITERATIONS; ++i) {
+			buffer.clear();
+			codec.serializeInto(uuid, buffer);
+		}
+	}
+
+	private static void _decode(UUIDCodec codec, UUID uuid, ByteBuffer buffer) {
+		// We sum the bits so the JIT can't drop the decoding.
+		long checksum = 0L;
+		for (int i = 0; i < ITERATIONS; ++i) {
+			buffer.flip();
+			checksum += codec.deserializeFrom(buffer, UUIDCodec.SERIALIZED_SIZE).getLeastSignificantBits();
+		}
+		if ((ITERATIONS * uuid.getLeastSignificantBits()) != checksum) {
+			throw new AssertionError("Decoded the wrong UUID");
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.jeffdisher.thinktank.chat.support;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class BufferCodecTest {
+	@Test
+	public void testUuidLayouts() throws Throwable {
+		UUIDCodec codec = new UUIDCodec();
+		UUID uuid = UUID.randomUUID();
+		byte[] bytes = codec.serialize(uuid);
+		ByteBuffer buffer = ByteBuffer.allocate(UUIDCodec.SERIALIZED_SIZE + 2);
+		buffer.put((byte)1);
+		codec.serializeInto(uuid, buffer);
+		buffer.put((byte)2);
+		Assert.assertArrayEquals(bytes, _slice(buffer.array(), 1, UUIDCodec.SERIALIZED_SIZE));
+		
+		Assert.assertEquals(uuid, codec.deserialize(bytes));
+		Assert.assertEquals(uuid, codec.deserialize(buffer.array(), 1, UUIDCodec.SERIALIZED_SIZE));
+		buffer.position(1);
+		Assert.assertEquals(uuid, codec.deserializeFrom(buffer, UUIDCodec.SERIALIZED_SIZE));
+		Assert.assertEquals(2, buffer.get());
+	}
+
+	@Test
+	public void testStringMatchesGetBytes() throws Throwable {
+		StringCodec codec = new StringCodec();
+		String[] strings = new String[] {
+				"",
+				"ascii",
+				"caf\u00e9",
+				"\u20ac100",
+				"emoji \ud83d\ude00!",
+				// Unpaired surrogates are replaced, the same way String.getBytes() does it.
+				"bad \ud83d end",
+				"bad \ude00",
+				"\ud83d",
+		};
+		for (String string : strings) {
+			byte[] expected = string.getBytes(StandardCharsets.UTF_8);
+			Assert.assertEquals(expected.length, codec.serializedSize(string));
+			ByteBuffer buffer = ByteBuffer.allocate(expected.length + 1);
+			buffer.put((byte)1);
+			codec.serializeInto(string, buffer);
+			Assert.assertFalse(buffer.hasRemaining());
+			Assert.assertArrayEquals(expected, _slice(buffer.array(), 1, expected.length));
+			
+			String decoded = new String(expected, StandardCharsets.UTF_8);
+			Assert.assertEquals(decoded, codec.deserialize(buffer.array(), 1, expected.length));
+			buffer.position(1);
+			Assert.assertEquals(decoded, codec.deserializeFrom(buffer, expected.length));
+			ByteBuffer direct = ByteBuffer.allocateDirect(expected.length);
+			direct.put(expected);
+			direct.flip();
+			Assert.assertEquals(decoded, codec.deserializeFrom(direct, expected.length));
+		}
+	}
+
+
+	private static byte[] _slice(byte[] bytes, int offset, int length) {
+		byte[] slice = new byte[length];
+		System.arraycopy(bytes, offset, slice, 0, length);
+		return slice;
+	}
+}
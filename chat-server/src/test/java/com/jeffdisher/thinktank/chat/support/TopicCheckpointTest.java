@@ -0,0 +1,110 @@
+package com.jeffdisher.thinktank.chat.support;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class TopicCheckpointTest {
+	@Test
+	public void testMissingFile() throws Throwable {
+		File file = _tempFile();
+		Assert.assertTrue(file.delete());
+		TopicCheckpoint<UUID, String> checkpoint = new TopicCheckpoint<>(file, 2, new UUIDCodec(), new StringCodec());
+		Assert.assertEquals(0L, checkpoint.load());
+		Assert.assertEquals(0, _collectValues(checkpoint).size());
+	}
+
+	@Test
+	public void testWriteAndLoad() throws Throwable {
+		File file = _tempFile();
+		UUID sender = UUID.randomUUID();
+		TopicCheckpoint<UUID, String> checkpoint = new TopicCheckpoint<>(file, 2, new UUIDCodec(), new StringCodec());
+		checkpoint.recordConsequence(1L);
+		checkpoint.recordPut(sender, "one", 5L, 2L);
+		checkpoint.recordPut(sender, "two", 6L, 3L);
+		checkpoint.recordPut(sender, "three", 7L, 4L);
+		checkpoint.write();
+		
+		// Only the 2 most recent puts are retained.
+		TopicCheckpoint<UUID, String> loaded = new TopicCheckpoint<>(file, 2, new UUIDCodec(), new StringCodec());
+		Assert.assertEquals(4L, loaded.load());
+		List<TopicPut<UUID, String>> puts = new ArrayList<>();
+		loaded.forEachPut((TopicPut<UUID, String> put) -> puts.add(put));
+		Assert.assertEquals(2, puts.size());
+		Assert.assertEquals(sender, puts.get(0).key);
+		Assert.assertEquals("two", puts.get(0).value);
+		Assert.assertEquals(6L, puts.get(0).intentionOffset);
+		Assert.assertEquals(3L, puts.get(0).consequenceOffset);
+		Assert.assertEquals("three", puts.get(1).value);
+		Assert.assertTrue(file.delete());
+	}
+
+	@Test
+	public void testCorruptFile() throws Throwable {
+		File file = _tempFile();
+		try (FileOutputStream stream = new FileOutputStream(file)) {
+			stream.write(new byte[] { 1, 2, 3 });
+		}
+		TopicCheckpoint<UUID, String> checkpoint = new TopicCheckpoint<>(file, 2, new UUIDCodec(), new StringCodec());
+		Assert.assertEquals(0L, checkpoint.load());
+		Assert.assertTrue(file.delete());
+	}
+
+	@Test
+	public void testCorruptLength() throws Throwable {
+		File file = _tempFile();
+		UUID sender = UUID.randomUUID();
+		TopicCheckpoint<UUID, String> checkpoint = new TopicCheckpoint<>(file, 2, new UUIDCodec(), new StringCodec());
+		checkpoint.recordPut(sender, "one", 5L, 2L);
+		checkpoint.write();
+		// Overwrite the key length (after the magic, offset, count, and the put's 2 offsets) with a huge one.
+		try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+			raw.seek(Integer.BYTES + Long.BYTES + Integer.BYTES + Long.BYTES + Long.BYTES);
+			raw.writeInt(Integer.MAX_VALUE);
+		}
+		
+		TopicCheckpoint<UUID, String> loaded = new TopicCheckpoint<>(file, 2, new UUIDCodec(), new StringCodec());
+		Assert.assertEquals(0L, loaded.load());
+		Assert.assertEquals(0, _collectValues(loaded).size());
+		Assert.assertTrue(file.delete());
+	}
+
+	@Test
+	public void testWriteCapturedState() throws Throwable {
+		File file = _tempFile();
+		UUID sender = UUID.randomUUID();
+		TopicCheckpoint<UUID, String> checkpoint = new TopicCheckpoint<>(file, 2, new UUIDCodec(), new StringCodec());
+		checkpoint.recordPut(sender, "one", 5L, 2L);
+		TopicCheckpoint.State<UUID, String> state = checkpoint.capture();
+		// Later changes don't affect the captured state.
+		checkpoint.recordPut(sender, "two", 6L, 3L);
+		checkpoint.write(state);
+		
+		TopicCheckpoint<UUID, String> loaded = new TopicCheckpoint<>(file, 2, new UUIDCodec(), new StringCodec());
+		Assert.assertEquals(2L, loaded.load());
+		List<String> values = _collectValues(loaded);
+		Assert.assertEquals(1, values.size());
+		Assert.assertEquals("one", values.get(0));
+		Assert.assertTrue(file.delete());
+	}
+
+
+	private static File _tempFile() throws Throwable {
+		File file = File.createTempFile("checkpoint", ".bin");
+		file.deleteOnExit();
+		return file;
+	}
+
+	private static List<String> _collectValues(TopicCheckpoint<UUID, String> checkpoint) {
+		List<String> values = new ArrayList<>();
+		checkpoint.forEachPut((TopicPut<UUID, String> put) -> values.add(put.value));
+		return values;
+	}
+}
@@ -0,0 +1,69 @@
+package com.jeffdisher.thinktank.chat.support;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.jeffdisher.laminar.types.TopicName;
+
+
+public class TopicListenerTest {
+	@Test
+	public void testDecodeFailure() throws Throwable {
+		// More puts than fit in the poll buffer so the polling thread would block on it if it didn't notice the failure.
+		SimulatedLaminarCluster cluster = new SimulatedLaminarCluster(0L, 0L, 0, 0L, 0L);
+		TopicName topic = TopicName.fromString("test");
+		UUIDCodec keyCodec = new UUIDCodec();
+		StringCodec valueCodec = new StringCodec();
+		ILaminarCluster.IWriter writer = cluster.openWriter();
+		writer.sendCreateTopic(topic).waitForCommitted();
+		ILaminarCluster.IPendingCommit last = null;
+		for (int i = 0; i < 12_000; ++i) {
+			last = writer.sendPut(topic, keyCodec.serialize(UUID.randomUUID()), valueCodec.serialize("post " + i));
+		}
+		Assert.assertTrue(last.waitForCommitted().isValid);
+		
+		ICodec<String> failingCodec = new ICodec<String>() {
+			@Override
+			public String deserialize(byte[] bytes) {
+				throw new IllegalStateException("Corrupt value");
+			}
+			@Override
+			public byte[] serialize(String object) {
+				throw new UnsupportedOperationException();
+			}
+		};
+		TopicListener<UUID, String> listener = new TopicListener<>(cluster, topic, new IgnoringShim(), keyCodec, failingCodec, null, 2);
+		listener.waitForConnectionOrFailure();
+		// Once a put (after the TOPIC_CREATE) has been polled, the dispatcher will fail before it can see the end.
+		while (listener.getMetrics().polled < 2L) {
+			Thread.sleep(10L);
+		}
+		try {
+			listener.close();
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+		}
+		writer.close();
+		cluster.close();
+	}
+
+
+	private static class IgnoringShim implements IListenerTopicShim<UUID, String> {
+		@Override
+		public void delete(UUID key, long intentionOffset, long consequenceOffset) {
+		}
+		@Override
+		public void put(UUID key, String value, long intentionOffset, long consequenceOffset) {
+		}
+		@Override
+		public void create(long intentionOffset, long consequenceOffset) {
+		}
+		@Override
+		public void destroy(long intentionOffset, long consequenceOffset) {
+		}
+	}
+}
@@ -3,29 +3,63 @@ package com.jeffdisher.thinktank.crypto;
 import java.nio.ByteBuffer;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.SecretKey;
 
 
 /**
  * Inspired by JWT (JSON Web Token), but far simpler and specific to ThinkTank uses.  May later be replaced by JWT but
  * there is no compelling reason to use that, at this time (it would add a dependency, requires a more complex
  * interpretation in ThinkTank code, requires more error handling/hardening around the JSON parser, and is larger).
- * This token has the following format:
+ * There are 2 versions of this token, distinguished by their first byte.
+ * Version 0 is signed with an EC private key so anyone with the public key can validate it:
  * -[0] - version byte - always 0.
  * -[1-16] - user UUID bytes in big-endian.
  * -[17-24] - expiry time in milliseconds since epoch.
  * -[25-n] - SHA512withECDSA signature in ASN.1 DER encoding (34-36 bytes long).
+ * Version 1 is authenticated with a secret key shared by the issuer and the validators, which is far cheaper to create
+ * and validate (hashing instead of public-key operations).  The key ID allows the secret to be rotated:
+ * -[0] - version byte - always 1.
+ * -[1] - key ID byte - which of the validators' secret keys to use.
+ * -[2-17] - user UUID bytes in big-endian.
+ * -[18-25] - expiry time in milliseconds since epoch.
+ * -[26-57] - HmacSHA256 of bytes [0-25].
  * 
  * Note that the token is always serialized as a Base64 string.
+ * Validation decodes into a reusable, per-thread buffer and rejects bad lengths, unknown versions, and expired tokens
+ * before doing any crypto, which is then done over ranges of that buffer, so garbage tokens are cheap to reject.
  */
 public class BinaryToken {
 	private static final int UUID_SIZE = Long.BYTES + Long.BYTES;
-	private static final byte VERSION = 0;
+	private static final byte VERSION_EC = 0;
+	private static final byte VERSION_MAC = 1;
+	private static final int EC_DATA_SIZE = Byte.BYTES + UUID_SIZE + Long.BYTES;
+	private static final int MAC_DATA_SIZE = Byte.BYTES + Byte.BYTES + UUID_SIZE + Long.BYTES;
+	// DER-encoded ECDSA signatures are at least 8 bytes and at most 139 (for the largest standard curve, P-521).
+	private static final int MIN_SIGNATURE_SIZE = 8;
+	private static final int MAX_SIGNATURE_SIZE = 139;
+	private static final int MAX_RAW_SIZE = Math.max(EC_DATA_SIZE + MAX_SIGNATURE_SIZE, MAC_DATA_SIZE + CryptoHelpers.MAC_SIZE);
+	private static final int MAX_ENCODED_SIZE = ((MAX_RAW_SIZE + 2) / 3) * 4;
+	private static final ThreadLocal<byte[]> DECODE_BUFFER = ThreadLocal.withInitial(() -> new byte[MAX_RAW_SIZE]);
+	// Maps each ASCII character to its value in the standard Base64 alphabet (-1 if it isn't in the alphabet).
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		Arrays.fill(BASE64_VALUES, (byte)-1);
+		for (int i = 0; i < alphabet.length(); ++i) {
+			BASE64_VALUES[alphabet.charAt(i)] = (byte)i;
+		}
+	}
 
 	public static String createToken(PrivateKey key, UUID uuid, long expiryMillis) {
-		ByteBuffer buffer = ByteBuffer.allocate(Byte.BYTES + UUID_SIZE + Long.BYTES);
-		buffer.put(VERSION);
+		ByteBuffer buffer = ByteBuffer.allocate(EC_DATA_SIZE);
+		buffer.put(VERSION_EC);
 		buffer.putLong(uuid.getMostSignificantBits());
 		buffer.putLong(uuid.getLeastSignificantBits());
 		buffer.putLong(expiryMillis);
@@ -37,27 +71,184 @@ public class BinaryToken {
 		return Base64.getEncoder().encodeToString(token);
 	}
 
+	/**
+	 * Creates a version 1 token, authenticated with a secret key instead of signed.
+	 * 
+	 * @param keyId The ID validators use to find the secret key (0-255).
+	 * @param key The secret HmacSHA256 key.
+	 * @param uuid The user.
+	 * @param expiryMillis The time, in milliseconds since epoch, when the token expires.
+	 * @return The token, encoded as Base64.
+	 */
+	public static String createMacToken(int keyId, SecretKey key, UUID uuid, long expiryMillis) {
+		if ((keyId < 0) || (keyId > TokenKeys.MAX_KEY_ID)) {
+			throw new IllegalArgumentException("Key ID out of range: " + keyId);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(MAC_DATA_SIZE + CryptoHelpers.MAC_SIZE);
+		buffer.put(VERSION_MAC);
+		buffer.put((byte)keyId);
+		buffer.putLong(uuid.getMostSignificantBits());
+		buffer.putLong(uuid.getLeastSignificantBits());
+		buffer.putLong(expiryMillis);
+		byte[] token = buffer.array();
+		byte[] mac = CryptoHelpers.mac(key, token, 0, MAC_DATA_SIZE);
+		System.arraycopy(mac, 0, token, MAC_DATA_SIZE, mac.length);
+		return Base64.getEncoder().encodeToString(token);
+	}
+
 	public static UUID validateToken(PublicKey key, long nowMillis, String encodedToken) {
-		byte[] raw = Base64.getDecoder().decode(encodedToken);
-		byte[] data = new byte[Byte.BYTES + UUID_SIZE + Long.BYTES];
-		byte[] signature = new byte[raw.length - data.length];
-		System.arraycopy(raw, 0, data, 0, data.length);
-		System.arraycopy(raw, data.length, signature, 0, signature.length);
-		
-		UUID valid = null;
-		boolean isValid = CryptoHelpers.verify(key, data, signature);
-		if (isValid) {
-			ByteBuffer buffer = ByteBuffer.wrap(data);
-			byte version = buffer.get();
-			if (VERSION == version) {
-				long most = buffer.getLong();
-				long least = buffer.getLong();
-				long expiryMillis = buffer.getLong();
-				if (expiryMillis > nowMillis) {
-					valid = new UUID(most, least);
-				}
+		// Only signed tokens can be valid so we don't need a TokenKeys (or its MAC key table) for this.
+		ValidToken valid = _validate(key, null, nowMillis, encodedToken);
+		return (null != valid)
+				? valid.uuid
+				: null;
+	}
+
+	/**
+	 * Validates a token of either version, using the key in keys appropriate for the token's version.
+	 * 
+	 * @param keys The keys used to validate tokens.
+	 * @param nowMillis The current time in milliseconds since epoch.
+	 * @param encodedToken The Base64-encoded token.
+	 * @return The user of the token or null if it is invalid or expired.
+	 */
+	public static UUID validateToken(TokenKeys keys, long nowMillis, String encodedToken) {
+		ValidToken valid = validateWithExpiry(keys, nowMillis, encodedToken);
+		return (null != valid)
+				? valid.uuid
+				: null;
+	}
+
+	/**
+	 * Validates a batch of tokens in parallel on the given pool, waiting until they are all done.
+	 * 
+	 * @param keys The keys used to validate tokens.
+	 * @param nowMillis The current time in milliseconds since epoch.
+	 * @param encodedTokens The Base64-encoded tokens.
+	 * @param pool The pool to use for validation.
+	 * @return The user of each token, in the same order (null for any which are invalid, malformed, or expired).
+	 */
+	public static List<UUID> validateTokens(TokenKeys keys, long nowMillis, List<String> encodedTokens, ForkJoinPool pool) {
+		return ParallelValidation.validate(pool, encodedTokens, (String encodedToken) -> validateToken(keys, nowMillis, encodedToken));
+	}
+
+	/**
+	 * The same as validateToken() but also returns the token's expiry time (package-private since this is only used by
+	 * TokenCache).
+	 * 
+	 * @param keys The keys used to validate tokens.
+	 * @param nowMillis The current time in milliseconds since epoch.
+	 * @param encodedToken The Base64-encoded token.
+	 * @return The user and expiry of the token or null if it is invalid or expired.
+	 */
+	static ValidToken validateWithExpiry(TokenKeys keys, long nowMillis, String encodedToken) {
+		return _validate(keys.getPublicKey(), keys, nowMillis, encodedToken);
+	}
+
+
+	// macKeys is null if MAC tokens aren't accepted.
+	private static ValidToken _validate(PublicKey publicKey, TokenKeys macKeys, long nowMillis, String encodedToken) {
+		// We decode into a reusable buffer and check everything we can before the crypto so that garbage is cheap to
+		// reject.
+		byte[] raw = DECODE_BUFFER.get();
+		int length = (encodedToken.length() <= MAX_ENCODED_SIZE)
+				? _decodeBase64(encodedToken, raw)
+				: -1;
+		ValidToken valid = null;
+		if (length > 0) {
+			byte version = raw[0];
+			if ((VERSION_EC == version) && (length >= (EC_DATA_SIZE + MIN_SIGNATURE_SIZE))) {
+				valid = _validateEc(publicKey, nowMillis, raw, length);
+			} else if ((null != macKeys) && (VERSION_MAC == version) && (length == (MAC_DATA_SIZE + CryptoHelpers.MAC_SIZE))) {
+				valid = _validateMac(macKeys, nowMillis, raw);
+			}
+		}
+		return valid;
+	}
+
+	private static ValidToken _validateEc(PublicKey key, long nowMillis, byte[] raw, int length) {
+		ValidToken valid = null;
+		// We check the expiry before the signature since it is much cheaper.
+		long expiryMillis = _readLong(raw, Byte.BYTES + UUID_SIZE);
+		if ((null != key) && (expiryMillis > nowMillis)) {
+			if (CryptoHelpers.verify(key, raw, 0, EC_DATA_SIZE, raw, EC_DATA_SIZE, length - EC_DATA_SIZE)) {
+				valid = new ValidToken(_readUuid(raw, Byte.BYTES), expiryMillis);
+			}
+		}
+		return valid;
+	}
+
+	private static ValidToken _validateMac(TokenKeys keys, long nowMillis, byte[] raw) {
+		ValidToken valid = null;
+		SecretKey key = keys.getMacKey(Byte.toUnsignedInt(raw[1]));
+		long expiryMillis = _readLong(raw, Byte.BYTES + Byte.BYTES + UUID_SIZE);
+		if ((null != key) && (expiryMillis > nowMillis)) {
+			if (CryptoHelpers.verifyMac(key, raw, 0, MAC_DATA_SIZE, raw, MAC_DATA_SIZE)) {
+				valid = new ValidToken(_readUuid(raw, Byte.BYTES + Byte.BYTES), expiryMillis);
 			}
 		}
 		return valid;
 	}
+
+	private static UUID _readUuid(byte[] raw, int offset) {
+		return new UUID(_readLong(raw, offset), _readLong(raw, offset + Long.BYTES));
+	}
+
+	private static long _readLong(byte[] raw, int offset) {
+		long value = 0L;
+		for (int i = 0; i < Long.BYTES; ++i) {
+			value = (value << 8) | Byte.toUnsignedLong(raw[offset + i]);
+		}
+		return value;
+	}
+
+	// Decodes standard Base64 (padding optional, as with Base64.getDecoder()) into the buffer, returning the number of
+	// bytes decoded or -1 if the string is malformed or too long for the buffer.
+	private static int _decodeBase64(String encoded, byte[] buffer) {
+		int end = encoded.length();
+		int padding = 0;
+		while ((end > 0) && (padding < 2) && ('=' == encoded.charAt(end - 1))) {
+			end -= 1;
+			padding += 1;
+		}
+		int remainder = end % 4;
+		boolean isValidLength = (1 != remainder) && ((0 == padding) || (0 == (encoded.length() % 4)));
+		int decodedLength = ((end / 4) * 3) + ((remainder > 0) ? (remainder - 1) : 0);
+		int written = -1;
+		if (isValidLength && (decodedLength <= buffer.length)) {
+			int accumulator = 0;
+			int bits = 0;
+			written = 0;
+			for (int i = 0; (written >= 0) && (i < end); ++i) {
+				char c = encoded.charAt(i);
+				int value = (c < BASE64_VALUES.length)
+						? BASE64_VALUES[c]
+						: -1;
+				if (value >= 0) {
+					accumulator = (accumulator << 6) | value;
+					bits += 6;
+					if (bits >= 8) {
+						bits -= 8;
+						buffer[written] = (byte)(accumulator >> bits);
+						written += 1;
+						accumulator &= (1 << bits) - 1;
+					}
+				} else {
+					written = -1;
+				}
+			}
+		}
+		return written;
+	}
+
+
+	static class ValidToken {
+		public final UUID uuid;
+		public final long expiryMillis;
+		
+		public ValidToken(UUID uuid, long expiryMillis) {
+			this.uuid = uuid;
+			this.expiryMillis = expiryMillis;
+		}
+	}
 }
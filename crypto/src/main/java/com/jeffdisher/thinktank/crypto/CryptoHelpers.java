@@ -14,6 +14,11 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
 
 /**
  * Helpers related to cryptographic signing and verification.
@@ -21,12 +26,29 @@ import java.security.spec.X509EncodedKeySpec;
  * -Java signatures and verification:  http://tutorials.jenkov.com/java-cryptography/signature.html
  * -Standard crypto algorithm names:  https://docs.oracle.com/javase/9/docs/specs/security/standard-names.html
  * -deserializing keys:  https://exceptionshub.com/how-to-recover-a-rsa-public-key-from-a-byte-array.html
+ * Signature instances are expensive to look up and not thread-safe so each thread keeps its own, re-initialized with
+ * the key on each use.  Each thread also has its own SecureRandom so concurrent signers don't contend on one lock:
+ * this is a SHA1PRNG, seeded once from the shared system source, since every NativePRNG instance (the default on Linux)
+ * shares one global lock.
+ * The same applies to the Mac instances used for the symmetric (HmacSHA256) helpers.
  */
 public class CryptoHelpers {
 	private static final String KEY_ALGORITHM = "EC";
 	private static final String SIGNATURE_ALGORITHM = "SHA512withECDSA";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final String RANDOM_ALGORITHM = "SHA1PRNG";
+	private static final int RANDOM_SEED_SIZE = 32;
+	/**
+	 * The size, in bytes, of both the MAC secret keys and the MACs they produce.
+	 */
+	public static final int MAC_SIZE = 32;
 
-	private static final SecureRandom RANDOM = new SecureRandom();
+	// Only used to seed each thread's SecureRandom.
+	private static final SecureRandom SEED_SOURCE = new SecureRandom();
+	private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(() -> _newRandom());
+	private static final ThreadLocal<Signature> SIGNATURE = ThreadLocal.withInitial(() -> _newSignature());
+	private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> _newMac());
+	private static final ThreadLocal<byte[]> MAC_SCRATCH = ThreadLocal.withInitial(() -> new byte[MAC_SIZE]);
 	private static final KeyFactory KEY_FACTORY;
 
 	static {
@@ -50,7 +72,7 @@ public class CryptoHelpers {
 			// This is a static config error.
 			throw _noSuchAlgorithm(KEY_ALGORITHM, e);
 		}
-		keyPairGenerator.initialize(112, RANDOM);
+		keyPairGenerator.initialize(112, RANDOM.get());
 		return keyPairGenerator.generateKeyPair();
 	}
 
@@ -128,16 +150,11 @@ public class CryptoHelpers {
 			throw new NullPointerException();
 		}
 		
-		Signature signature;
-		try {
-			signature = Signature.getInstance(SIGNATURE_ALGORITHM);
-		} catch (NoSuchAlgorithmException e) {
-			// This is a static config error.
-			throw _noSuchAlgorithm(SIGNATURE_ALGORITHM, e);
-		}
+		// Initializing with the key resets any state left from the previous use on this thread.
+		Signature signature = SIGNATURE.get();
 		byte[] serialized;
 		try {
-			signature.initSign(key, RANDOM);
+			signature.initSign(key, RANDOM.get());
 			signature.update(message);
 			serialized = signature.sign();
 		} catch (InvalidKeyException e) {
@@ -165,18 +182,35 @@ public class CryptoHelpers {
 			throw new NullPointerException();
 		}
 		
-		Signature verify;
-		try {
-			verify = Signature.getInstance(SIGNATURE_ALGORITHM);
-		} catch (NoSuchAlgorithmException e) {
-			// This is a static config error.
-			throw _noSuchAlgorithm(SIGNATURE_ALGORITHM, e);
+		return verify(key, message, 0, message.length, signature, 0, signature.length);
+	}
+
+	/**
+	 * The same as verify() but the message and signature are ranges of larger buffers (often the same buffer), so the
+	 * caller doesn't need to copy them out.
+	 * 
+	 * @param key An EC public key.
+	 * @param message The buffer containing the message presumably signed.
+	 * @param messageOffset The offset of the message in its buffer.
+	 * @param messageLength The length of the message.
+	 * @param signature The buffer containing the signature (encoded as ASN.1 DER).
+	 * @param signatureOffset The offset of the signature in its buffer.
+	 * @param signatureLength The length of the signature.
+	 * @return True if the signature was generated from this message using the private key associated with the given
+	 * public key.
+	 */
+	public static boolean verify(PublicKey key, byte[] message, int messageOffset, int messageLength, byte[] signature, int signatureOffset, int signatureLength) {
+		if ((null == key) || (null == message) || (null == signature)) {
+			throw new NullPointerException();
 		}
+		
+		// Initializing with the key resets any state left from the previous use on this thread.
+		Signature verify = SIGNATURE.get();
 		boolean verified;
 		try {
 			verify.initVerify(key);
-			verify.update(message);
-			verified = verify.verify(signature);
+			verify.update(message, messageOffset, messageLength);
+			verified = verify.verify(signature, signatureOffset, signatureLength);
 		} catch (InvalidKeyException e) {
 			// This is an error in the key.
 			verified = false;
@@ -187,6 +221,135 @@ public class CryptoHelpers {
 		return verified;
 	}
 
+	/**
+	 * @return A randomly generated secret key for HmacSHA256.
+	 */
+	public static SecretKey generateRandomMacKey() {
+		byte[] bytes = new byte[MAC_SIZE];
+		RANDOM.get().nextBytes(bytes);
+		return new SecretKeySpec(bytes, MAC_ALGORITHM);
+	}
+
+	/**
+	 * @param key The secret key to serialize.
+	 * @return The raw bytes of the key.
+	 */
+	public static byte[] serializeMacKey(SecretKey key) {
+		if (null == key) {
+			throw new NullPointerException();
+		}
+		
+		return key.getEncoded();
+	}
+
+	/**
+	 * @param bytes The raw bytes of an HmacSHA256 secret key.
+	 * @return The secret key (null if the bytes are the wrong size).
+	 */
+	public static SecretKey deserializeMacKey(byte[] bytes) {
+		if (null == bytes) {
+			throw new NullPointerException();
+		}
+		
+		return (MAC_SIZE == bytes.length)
+				? new SecretKeySpec(bytes, MAC_ALGORITHM)
+				: null;
+	}
+
+	/**
+	 * Computes the HmacSHA256 of a range of the given message.
+	 * 
+	 * @param key The secret key.
+	 * @param message The buffer containing the message.
+	 * @param offset The offset of the message in the buffer.
+	 * @param length The length of the message.
+	 * @return The MAC (always MAC_SIZE bytes).
+	 */
+	public static byte[] mac(SecretKey key, byte[] message, int offset, int length) {
+		if ((null == key) || (null == message)) {
+			throw new NullPointerException();
+		}
+		
+		return _initMac(key, message, offset, length).doFinal();
+	}
+
+	/**
+	 * Checks that a MAC matches a range of the given message, without allocating.  The comparison takes the same time
+	 * regardless of how much of the MAC matches, so it doesn't help an attacker guess it.
+	 * 
+	 * @param key The secret key.
+	 * @param message The buffer containing the message.
+	 * @param offset The offset of the message in the buffer.
+	 * @param length The length of the message.
+	 * @param expected The buffer containing the MAC to check (MAC_SIZE bytes).
+	 * @param expectedOffset The offset of the MAC in its buffer.
+	 * @return True if the MAC of the message matches.
+	 */
+	public static boolean verifyMac(SecretKey key, byte[] message, int offset, int length, byte[] expected, int expectedOffset) {
+		if ((null == key) || (null == message) || (null == expected)) {
+			throw new NullPointerException();
+		}
+		
+		byte[] actual = MAC_SCRATCH.get();
+		try {
+			_initMac(key, message, offset, length).doFinal(actual, 0);
+		} catch (ShortBufferException e) {
+			// The scratch buffer is always the MAC size.
+			throw new AssertionError("Unexpected exception", e);
+		}
+		int difference = 0;
+		for (int i = 0; i < MAC_SIZE; ++i) {
+			difference |= actual[i] ^ expected[expectedOffset + i];
+		}
+		return (0 == difference);
+	}
+
+
+	private static Mac _initMac(SecretKey key, byte[] message, int offset, int length) {
+		// Initializing with the key resets any state left from the previous use on this thread.
+		Mac mac = MAC.get();
+		try {
+			mac.init(key);
+		} catch (InvalidKeyException e) {
+			// We only build these keys, ourselves, so this is a static error.
+			throw new AssertionError("Unexpected exception", e);
+		}
+		mac.update(message, offset, length);
+		return mac;
+	}
+
+	private static Signature _newSignature() {
+		try {
+			return Signature.getInstance(SIGNATURE_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// This is a static config error.
+			throw _noSuchAlgorithm(SIGNATURE_ALGORITHM, e);
+		}
+	}
+
+	private static Mac _newMac() {
+		try {
+			return Mac.getInstance(MAC_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// This is a static config error.
+			throw _noSuchAlgorithm(MAC_ALGORITHM, e);
+		}
+	}
+
+	private static SecureRandom _newRandom() {
+		SecureRandom random;
+		try {
+			random = SecureRandom.getInstance(RANDOM_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// This is a static config error.
+			throw _noSuchAlgorithm(RANDOM_ALGORITHM, e);
+		}
+		// Seeding before the first use replaces its self-seeding so the thread only uses the shared source this once.
+		byte[] seed = new byte[RANDOM_SEED_SIZE];
+		SEED_SOURCE.nextBytes(seed);
+		random.setSeed(seed);
+		return random;
+	}
 
 	private static RuntimeException _noSuchAlgorithm(String name, NoSuchAlgorithmException e) {
 		throw new AssertionError("Missing required crypto algorith: " + name, e);
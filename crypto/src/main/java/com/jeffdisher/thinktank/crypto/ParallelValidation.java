@@ -0,0 +1,60 @@
+package com.jeffdisher.thinktank.crypto;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+
+
+/**
+ * Validates a batch of tokens on a ForkJoinPool by recursively splitting it in half until the pieces are small enough
+ * to validate directly.  Each token is a fraction of a millisecond to a few milliseconds of work so the pieces are kept
+ * small.
+ */
+class ParallelValidation extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private static final int DIRECT_THRESHOLD = 4;
+
+	private final String[] _tokens;
+	private final UUID[] _results;
+	private final int _start;
+	private final int _end;
+	private final Function<String, UUID> _validator;
+
+	/**
+	 * Validates the tokens on the pool, waiting until they are all done.
+	 * 
+	 * @param pool The pool to use.
+	 * @param encodedTokens The tokens to validate.
+	 * @param validator Validates a single token, returning its user or null.
+	 * @return The user of each token, in the same order (null for those which are invalid or expired).
+	 */
+	public static List<UUID> validate(ForkJoinPool pool, List<String> encodedTokens, Function<String, UUID> validator) {
+		String[] tokens = encodedTokens.toArray(new String[encodedTokens.size()]);
+		UUID[] results = new UUID[tokens.length];
+		pool.invoke(new ParallelValidation(tokens, results, 0, tokens.length, validator));
+		return Arrays.asList(results);
+	}
+
+	private ParallelValidation(String[] tokens, UUID[] results, int start, int end, Function<String, UUID> validator) {
+		_tokens = tokens;
+		_results = results;
+		_start = start;
+		_end = end;
+		_validator = validator;
+	}
+
+	@Override
+	protected void compute() {
+		if ((_end - _start) <= DIRECT_THRESHOLD) {
+			for (int i = _start; i < _end; ++i) {
+				_results[i] = _validator.apply(_tokens[i]);
+			}
+		} else {
+			int middle = (_start + _end) >>> 1;
+			invokeAll(new ParallelValidation(_tokens, _results, _start, middle, _validator), new ParallelValidation(_tokens, _results, middle, _end, _validator));
+		}
+	}
+}
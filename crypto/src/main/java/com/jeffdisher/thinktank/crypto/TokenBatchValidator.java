@@ -0,0 +1,146 @@
+package com.jeffdisher.thinktank.crypto;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Validates tokens on a bounded ForkJoinPool, in front of a TokenCache, so a burst of connections (such as every
+ * client reconnecting after a restart) is validated on all cores instead of serially on whichever threads received
+ * them.
+ * Tokens already in the cache are answered immediately, without using the pool.  The others are admitted to the pool
+ * only while fewer than maxPending are waiting, so a burst can't queue unbounded work:  callers must handle a rejected
+ * submission (typically by asking the client to retry).
+ */
+public class TokenBatchValidator implements Closeable {
+	/**
+	 * A reasonable default limit:  at a few milliseconds per EC verification, per core, a full queue drains in seconds.
+	 */
+	public static final int DEFAULT_MAX_PENDING = 2_000;
+
+	private final TokenCache _cache;
+	private final ForkJoinPool _pool;
+	private final int _maxPending;
+	private final Semaphore _admission;
+	private final LongAdder _rejected;
+
+	/**
+	 * Creates the validator and its pool.
+	 * 
+	 * @param cache The cache to check and fill.
+	 * @param parallelism The number of threads in the pool.
+	 * @param maxPending The most tokens which can be waiting for, or in, validation at once.
+	 */
+	public TokenBatchValidator(TokenCache cache, int parallelism, int maxPending) {
+		this(cache, _newPool(parallelism), maxPending);
+	}
+
+	// Package-private so tests can control the pool (the validator still owns it and shuts it down on close).
+	TokenBatchValidator(TokenCache cache, ForkJoinPool pool, int maxPending) {
+		if ((null == cache) || (null == pool)) {
+			throw new NullPointerException();
+		}
+		if (maxPending <= 0) {
+			throw new IllegalArgumentException("Pending limit must be positive");
+		}
+		_cache = cache;
+		_pool = pool;
+		_maxPending = maxPending;
+		_admission = new Semaphore(maxPending);
+		_rejected = new LongAdder();
+	}
+
+	/**
+	 * Submits a single token for validation.
+	 * Note that the returned future may be completed on a pool thread so anything chained on it shouldn't block for
+	 * long.
+	 * 
+	 * @param nowMillis The current time in milliseconds since epoch.
+	 * @param encodedToken The Base64-encoded token.
+	 * @return A future completed with the user of the token (null if invalid, malformed, or expired), or null if the
+	 * token couldn't be admitted since too many are already pending.  The future completes exceptionally if validation
+	 * fails unexpectedly or the validator has been closed.
+	 */
+	public CompletableFuture<UUID> submit(long nowMillis, String encodedToken) {
+		CompletableFuture<UUID> future;
+		UUID cached = _cache.getCached(nowMillis, encodedToken);
+		if (null != cached) {
+			future = CompletableFuture.completedFuture(cached);
+		} else if (_admission.tryAcquire()) {
+			future = new CompletableFuture<>();
+			try {
+				_pool.execute(() -> {
+					UUID uuid = null;
+					Throwable failure = null;
+					try {
+						uuid = _cache.validateToken(nowMillis, encodedToken);
+					} catch (Throwable t) {
+						// Whatever went wrong, the caller is still waiting on the future so it must complete.
+						failure = t;
+					} finally {
+						// We release before completing since the completion may run more work on this thread.
+						_admission.release();
+					}
+					if (null != failure) {
+						future.completeExceptionally(failure);
+					} else {
+						future.complete(uuid);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// The pool has been shut down so this will never run.
+				_admission.release();
+				future.completeExceptionally(e);
+			}
+		} else {
+			_rejected.increment();
+			future = null;
+		}
+		return future;
+	}
+
+	/**
+	 * Validates a batch of tokens in parallel, waiting until they are all done.  This isn't subject to admission
+	 * control since the caller is the one waiting.
+	 * 
+	 * @param nowMillis The current time in milliseconds since epoch.
+	 * @param encodedTokens The Base64-encoded tokens.
+	 * @return The user of each token, in the same order (null for any which are invalid, malformed, or expired).
+	 */
+	public List<UUID> validateTokens(long nowMillis, List<String> encodedTokens) {
+		return _cache.validateTokens(nowMillis, encodedTokens, _pool);
+	}
+
+	/**
+	 * @return The number of submitted tokens waiting for, or in, validation.
+	 */
+	public int getPendingCount() {
+		return _maxPending - _admission.availablePermits();
+	}
+
+	/**
+	 * @return The total number of submissions rejected by admission control.
+	 */
+	public long getRejectedCount() {
+		return _rejected.sum();
+	}
+
+	@Override
+	public void close() {
+		_pool.shutdown();
+	}
+
+
+	private static ForkJoinPool _newPool(int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("Parallelism must be positive");
+		}
+		return new ForkJoinPool(parallelism);
+	}
+}
@@ -0,0 +1,186 @@
+package com.jeffdisher.thinktank.crypto;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A bounded cache of tokens which have already been validated by BinaryToken.validateToken(), in front of it.
+ * Clients reconnect with the same token over and over so this means a reconnect only costs a hash lookup, instead of an
+ * EC signature verification.
+ * The cache is keyed on the encoded token string, itself (it is small and hashing it is far cheaper than decoding it),
+ * and only holds valid tokens, each until its embedded expiry.  Invalid tokens are never cached so they are verified
+ * each time, exactly as before.
+ * When the cache is full, expired entries are purged and, if that isn't enough, arbitrary entries are evicted (they
+ * will just be verified again, next time).
+ * The cache is bound to a single set of TokenKeys, since the keys aren't part of the cache key.
+ */
+public class TokenCache {
+	/**
+	 * A reasonable default size:  each entry is a few hundred bytes so this is around 2 MiB when full.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+	private final TokenKeys _keys;
+	private final int _maxEntries;
+	private final ConcurrentHashMap<String, BinaryToken.ValidToken> _cache;
+	private final LongAdder _hits;
+	private final LongAdder _misses;
+	private final LongAdder _evictions;
+
+	/**
+	 * Creates the cache.
+	 * 
+	 * @param keys The keys used to validate tokens.
+	 * @param maxEntries The most tokens to cache.
+	 */
+	public TokenCache(TokenKeys keys, int maxEntries) {
+		if (null == keys) {
+			throw new NullPointerException();
+		}
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("Cache must hold at least 1 entry");
+		}
+		_keys = keys;
+		_maxEntries = maxEntries;
+		_cache = new ConcurrentHashMap<>();
+		_hits = new LongAdder();
+		_misses = new LongAdder();
+		_evictions = new LongAdder();
+	}
+
+	/**
+	 * The same as BinaryToken.validateToken() but only verifies the token if it isn't already cached.
+	 * 
+	 * @param nowMillis The current time in milliseconds since epoch.
+	 * @param encodedToken The Base64-encoded token.
+	 * @return The user of the token or null if it is invalid or expired.
+	 */
+	public UUID validateToken(long nowMillis, String encodedToken) {
+		UUID uuid = null;
+		BinaryToken.ValidToken cached = _cache.get(encodedToken);
+		if ((null != cached) && (cached.expiryMillis > nowMillis)) {
+			_hits.increment();
+			uuid = cached.uuid;
+		} else {
+			_misses.increment();
+			if (null != cached) {
+				// This has expired so drop it (validation below will fail, too).  Only the thread which removes it counts it.
+				if (_cache.remove(encodedToken, cached)) {
+					_evictions.increment();
+				}
+			}
+			BinaryToken.ValidToken valid = BinaryToken.validateWithExpiry(_keys, nowMillis, encodedToken);
+			if (null != valid) {
+				if (_cache.size() >= _maxEntries) {
+					_makeRoom(nowMillis);
+				}
+				_cache.put(encodedToken, valid);
+				uuid = valid.uuid;
+			}
+		}
+		return uuid;
+	}
+
+	/**
+	 * The same as BinaryToken.validateTokens() but only verifies the tokens which aren't already cached.
+	 * 
+	 * @param nowMillis The current time in milliseconds since epoch.
+	 * @param encodedTokens The Base64-encoded tokens.
+	 * @param pool The pool to use for validation.
+	 * @return The user of each token, in the same order (null for any which are invalid, malformed, or expired).
+	 */
+	public List<UUID> validateTokens(long nowMillis, List<String> encodedTokens, ForkJoinPool pool) {
+		return ParallelValidation.validate(pool, encodedTokens, (String encodedToken) -> validateToken(nowMillis, encodedToken));
+	}
+
+	/**
+	 * Looks up a token without validating it on a miss (package-private since only TokenBatchValidator uses this to
+	 * avoid queuing tokens which are already cached).
+	 * Only hits are counted, since a miss will be counted when the token is validated.
+	 * 
+	 * @param nowMillis The current time in milliseconds since epoch.
+	 * @param encodedToken The Base64-encoded token.
+	 * @return The user of the token or null if it isn't cached (or has expired).
+	 */
+	UUID getCached(long nowMillis, String encodedToken) {
+		UUID uuid = null;
+		BinaryToken.ValidToken cached = _cache.get(encodedToken);
+		if ((null != cached) && (cached.expiryMillis > nowMillis)) {
+			_hits.increment();
+			uuid = cached.uuid;
+		}
+		return uuid;
+	}
+
+	/**
+	 * @return A snapshot of the cache's metrics.
+	 */
+	public Metrics getMetrics() {
+		return new Metrics(_hits.sum(), _misses.sum(), _evictions.sum(), _cache.size());
+	}
+
+
+	private synchronized void _makeRoom(long nowMillis) {
+		// Another thread may have already made room while we waited for the monitor.
+		if (_cache.size() >= _maxEntries) {
+			// First, drop anything expired.
+			Iterator<Map.Entry<String, BinaryToken.ValidToken>> iterator = _cache.entrySet().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().getValue().expiryMillis <= nowMillis) {
+					iterator.remove();
+					_evictions.increment();
+				}
+			}
+			// If that wasn't enough, drop whatever the iteration finds first (we only free a tenth of the cache so the
+			// next inserts don't immediately need to do this again).
+			int target = _maxEntries - Math.max(1, _maxEntries / 10);
+			iterator = _cache.entrySet().iterator();
+			while ((_cache.size() > target) && iterator.hasNext()) {
+				iterator.next();
+				iterator.remove();
+				_evictions.increment();
+			}
+		}
+	}
+
+
+	/**
+	 * A snapshot of the cache's metrics.
+	 */
+	public static class Metrics {
+		/**
+		 * The number of validations answered from the cache.
+		 */
+		public final long hits;
+		/**
+		 * The number of validations which needed to verify the token's signature.
+		 */
+		public final long misses;
+		/**
+		 * The number of entries evicted because they expired or the cache was full.
+		 */
+		public final long evictions;
+		/**
+		 * The number of tokens currently cached.
+		 */
+		public final int size;
+		
+		public Metrics(long hits, long misses, long evictions, int size) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.size = size;
+		}
+		
+		@Override
+		public String toString() {
+			return "hits=" + this.hits + ", misses=" + this.misses + ", evictions=" + this.evictions + ", size=" + this.size;
+		}
+	}
+}
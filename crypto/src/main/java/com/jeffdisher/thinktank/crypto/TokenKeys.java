@@ -0,0 +1,56 @@
+package com.jeffdisher.thinktank.crypto;
+
+import java.security.PublicKey;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+
+/**
+ * The keys a validator uses to check BinaryTokens:  the public key for version 0 (signed) tokens and the secret keys,
+ * by key ID, for version 1 (MAC) tokens.
+ * Either may be missing, in which case tokens of that version are always rejected.  Keeping more than one secret key
+ * allows a new key to be rolled out before the old one is retired.
+ */
+public class TokenKeys {
+	/**
+	 * The key ID is a single byte in the token.
+	 */
+	public static final int MAX_KEY_ID = 255;
+
+	private final PublicKey _publicKey;
+	private final SecretKey[] _macKeys;
+
+	/**
+	 * Creates the key set.
+	 * 
+	 * @param publicKey The public key for signed tokens (null if they aren't accepted).
+	 * @param macKeys The secret keys for MAC tokens, by key ID (empty if they aren't accepted).
+	 */
+	public TokenKeys(PublicKey publicKey, Map<Integer, SecretKey> macKeys) {
+		_publicKey = publicKey;
+		_macKeys = new SecretKey[MAX_KEY_ID + 1];
+		for (Map.Entry<Integer, SecretKey> entry : macKeys.entrySet()) {
+			int keyId = entry.getKey();
+			if ((keyId < 0) || (keyId > MAX_KEY_ID)) {
+				throw new IllegalArgumentException("Key ID out of range: " + keyId);
+			}
+			_macKeys[keyId] = entry.getValue();
+		}
+	}
+
+	/**
+	 * @return The public key for signed tokens (null if they aren't accepted).
+	 */
+	public PublicKey getPublicKey() {
+		return _publicKey;
+	}
+
+	/**
+	 * @param keyId The key ID from a MAC token (0-255).
+	 * @return The secret key with this ID (null if there isn't one).
+	 */
+	public SecretKey getMacKey(int keyId) {
+		return _macKeys[keyId];
+	}
+}
@@ -3,8 +3,15 @@ package com.jeffdisher.thinktank.crypto;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
+import javax.crypto.SecretKey;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -59,4 +66,81 @@ public class BinaryTokenTest {
 		UUID valid = BinaryToken.validateToken(publicKey, now, token);
 		Assert.assertNull(valid);
 	}
+
+	@Test
+	public void testMacToken() throws Throwable {
+		SecretKey secret = CryptoHelpers.generateRandomMacKey();
+		TokenKeys keys = new TokenKeys(null, Collections.singletonMap(7, secret));
+		
+		UUID uuid = UUID.randomUUID();
+		long now = 1_000L;
+		long future = 2_000L;
+		String token = BinaryToken.createMacToken(7, secret, uuid, future);
+		Assert.assertEquals(80, token.length());
+		Assert.assertEquals(uuid, BinaryToken.validateToken(keys, now, token));
+		Assert.assertNull(BinaryToken.validateToken(keys, future, token));
+		
+		// The key ID must match and any change to the token invalidates it.
+		Assert.assertNull(BinaryToken.validateToken(keys, now, BinaryToken.createMacToken(8, secret, uuid, future)));
+		byte[] raw = Base64.getDecoder().decode(token);
+		raw[5] += 1;
+		Assert.assertNull(BinaryToken.validateToken(keys, now, Base64.getEncoder().encodeToString(raw)));
+		// A different secret with the same ID fails.
+		Assert.assertNull(BinaryToken.validateToken(keys, now, BinaryToken.createMacToken(7, CryptoHelpers.generateRandomMacKey(), uuid, future)));
+	}
+
+	@Test
+	public void testMixedVersions() throws Throwable {
+		KeyPair pair = CryptoHelpers.generateRandomKeyPair();
+		SecretKey oldSecret = CryptoHelpers.generateRandomMacKey();
+		SecretKey newSecret = CryptoHelpers.deserializeMacKey(CryptoHelpers.serializeMacKey(CryptoHelpers.generateRandomMacKey()));
+		Map<Integer, SecretKey> secrets = new HashMap<>();
+		secrets.put(0, oldSecret);
+		secrets.put(1, newSecret);
+		TokenKeys keys = new TokenKeys(pair.getPublic(), secrets);
+		
+		UUID uuid = UUID.randomUUID();
+		long now = 1_000L;
+		long future = 2_000L;
+		Assert.assertEquals(uuid, BinaryToken.validateToken(keys, now, BinaryToken.createToken(pair.getPrivate(), uuid, future)));
+		Assert.assertEquals(uuid, BinaryToken.validateToken(keys, now, BinaryToken.createMacToken(0, oldSecret, uuid, future)));
+		Assert.assertEquals(uuid, BinaryToken.validateToken(keys, now, BinaryToken.createMacToken(1, newSecret, uuid, future)));
+		// The public-key-only validator rejects MAC tokens.
+		Assert.assertNull(BinaryToken.validateToken(pair.getPublic(), now, BinaryToken.createMacToken(0, oldSecret, uuid, future)));
+	}
+
+	@Test
+	public void testMalformedTokens() throws Throwable {
+		KeyPair pair = CryptoHelpers.generateRandomKeyPair();
+		SecretKey secret = CryptoHelpers.generateRandomMacKey();
+		TokenKeys keys = new TokenKeys(pair.getPublic(), Collections.singletonMap(0, secret));
+		UUID uuid = UUID.randomUUID();
+		long now = 1_000L;
+		long future = 2_000L;
+		String ecToken = BinaryToken.createToken(pair.getPrivate(), uuid, future);
+		String macToken = BinaryToken.createMacToken(0, secret, uuid, future);
+		
+		// Padding is optional, as with Base64.getDecoder().
+		String unpadded = ecToken.replace("=", "");
+		Assert.assertEquals(uuid, BinaryToken.validateToken(keys, now, unpadded));
+		
+		// None of these throw, they are just rejected.
+		Assert.assertNull(BinaryToken.validateToken(keys, now, ""));
+		Assert.assertNull(BinaryToken.validateToken(keys, now, "A"));
+		Assert.assertNull(BinaryToken.validateToken(keys, now, "not base64!"));
+		Assert.assertNull(BinaryToken.validateToken(keys, now, "AAAA="));
+		Assert.assertNull(BinaryToken.validateToken(keys, now, unpadded.substring(0, 36)));
+		Assert.assertNull(BinaryToken.validateToken(keys, now, macToken.substring(0, macToken.length() - 4)));
+		Assert.assertNull(BinaryToken.validateToken(keys, now, macToken + "AAAA"));
+		char[] huge = new char[4096];
+		Arrays.fill(huge, 'A');
+		Assert.assertNull(BinaryToken.validateToken(keys, now, new String(huge)));
+		byte[] raw = Base64.getDecoder().decode(macToken);
+		raw[0] = 2;
+		Assert.assertNull(BinaryToken.validateToken(keys, now, Base64.getEncoder().encodeToString(raw)));
+		
+		// The parse buffer is reused so a valid token still works after all of those.
+		Assert.assertEquals(uuid, BinaryToken.validateToken(keys, now, macToken));
+		Assert.assertEquals(uuid, BinaryToken.validateToken(keys, now, ecToken));
+	}
 }
@@ -4,6 +4,9 @@ import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -60,4 +63,33 @@ public class CryptoHelpersTest {
 		Assert.assertFalse(brokenVerify2);
 		Assert.assertFalse(invalidVerify2);
 	}
+
+	@Test
+	public void testConcurrentSignVerify() throws Throwable {
+		// Each thread uses its own Signature so interleaved calls with different keys must not interfere.
+		int threadCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+		int iterations = 100;
+		AtomicInteger failures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < threadCount; ++i) {
+			threads.add(new Thread(() -> {
+				KeyPair pair = CryptoHelpers.generateRandomKeyPair();
+				KeyPair other = CryptoHelpers.generateRandomKeyPair();
+				for (int j = 0; j < iterations; ++j) {
+					byte[] data = ("message " + j).getBytes(StandardCharsets.UTF_8);
+					byte[] signature = CryptoHelpers.sign(pair.getPrivate(), data);
+					if (!CryptoHelpers.verify(pair.getPublic(), data, signature) || CryptoHelpers.verify(other.getPublic(), data, signature)) {
+						failures.incrementAndGet();
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(0, failures.get());
+	}
 }
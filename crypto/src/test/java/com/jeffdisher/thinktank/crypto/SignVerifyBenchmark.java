@@ -0,0 +1,58 @@
+package com.jeffdisher.thinktank.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Measures how sign+verify throughput scales from 1 to N threads (N defaults to the number of processors).
+ * This isn't part of the unit tests since the numbers depend on the machine:  run it directly, with the test classpath.
+ * Keys are generated before the clock starts so only signing and verifying are timed.
+ */
+public class SignVerifyBenchmark {
+	private static final int ITERATIONS_PER_THREAD = 500;
+
+	public static void main(String[] args) throws InterruptedException {
+		int maxThreads = (args.length > 0)
+				? Integer.parseInt(args[0])
+				: Runtime.getRuntime().availableProcessors();
+		// Warm up the JIT (and the per-thread state on this thread) before measuring.
+		_run(1);
+		for (int threadCount = 1; threadCount <= maxThreads; ++threadCount) {
+			long elapsedNanos = _run(threadCount);
+			long operations = (long)threadCount * ITERATIONS_PER_THREAD;
+			System.out.println(threadCount + " threads: " + (operations * 1_000_000_000L / elapsedNanos) + " sign+verify/s");
+		}
+	}
+
+
+	private static long _run(int threadCount) throws InterruptedException {
+		KeyPair[] pairs = new KeyPair[threadCount];
+		for (int i = 0; i < threadCount; ++i) {
+			pairs[i] = CryptoHelpers.generateRandomKeyPair();
+		}
+		byte[] data = "benchmark message".getBytes(StandardCharsets.UTF_8);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < threadCount; ++i) {
+			KeyPair pair = pairs[i];
+			threads.add(new Thread(() -> {
+				for (int j = 0; j < ITERATIONS_PER_THREAD; ++j) {
+					byte[] signature = CryptoHelpers.sign(pair.getPrivate(), data);
+					if (!CryptoHelpers.verify(pair.getPublic(), data, signature)) {
+						throw new AssertionError("Verification failed");
+					}
+				}
+			}));
+		}
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,135 @@
+package com.jeffdisher.thinktank.crypto;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class TokenBatchValidatorTest {
+	@Test
+	public void testParallelBatch() throws Throwable {
+		KeyPair pair = CryptoHelpers.generateRandomKeyPair();
+		TokenBatchValidator validator = new TokenBatchValidator(new TokenCache(_keys(pair.getPublic()), 100), 4, 100);
+		List<UUID> expected = new ArrayList<>();
+		List<String> tokens = new ArrayList<>();
+		for (int i = 0; i < 50; ++i) {
+			UUID uuid = UUID.randomUUID();
+			// Every fifth token is expired.
+			boolean isValid = (0 != (i % 5));
+			expected.add(isValid ? uuid : null);
+			tokens.add(BinaryToken.createToken(pair.getPrivate(), uuid, isValid ? 2_000L : 1_000L));
+		}
+		// A token which isn't even Base64 must not fail the others.
+		expected.add(null);
+		tokens.add("not a token!");
+		Assert.assertEquals(expected, validator.validateTokens(1_000L, tokens));
+		// The valid ones are now cached so submitting them completes immediately, without using the pool.
+		CompletableFuture<UUID> cached = validator.submit(1_000L, tokens.get(1));
+		Assert.assertTrue(cached.isDone());
+		Assert.assertEquals(expected.get(1), cached.get());
+		Assert.assertNull(validator.submit(1_000L, tokens.get(0)).get());
+		Assert.assertEquals(0, validator.getPendingCount());
+		validator.close();
+	}
+
+	@Test
+	public void testAdmissionControl() throws Throwable {
+		KeyPair pair = CryptoHelpers.generateRandomKeyPair();
+		// We hold the pool's only thread so nothing admitted can finish until we let it.
+		ForkJoinPool pool = new ForkJoinPool(1);
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		pool.execute(() -> {
+			blocked.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+		});
+		blocked.await();
+		TokenBatchValidator validator = new TokenBatchValidator(new TokenCache(_keys(pair.getPublic()), 100), pool, 2);
+		List<UUID> uuids = new ArrayList<>();
+		List<CompletableFuture<UUID>> admitted = new ArrayList<>();
+		for (int i = 0; i < 5; ++i) {
+			UUID uuid = UUID.randomUUID();
+			CompletableFuture<UUID> future = validator.submit(1_000L, BinaryToken.createToken(pair.getPrivate(), uuid, 2_000L));
+			// Only the first 2 fit under the limit.
+			if (i < 2) {
+				Assert.assertNotNull(future);
+				uuids.add(uuid);
+				admitted.add(future);
+			} else {
+				Assert.assertNull(future);
+			}
+		}
+		Assert.assertEquals(2, validator.getPendingCount());
+		Assert.assertEquals(3L, validator.getRejectedCount());
+		
+		// Once the pool drains, the admitted tokens are validated and there is room again.
+		release.countDown();
+		for (int i = 0; i < admitted.size(); ++i) {
+			Assert.assertEquals(uuids.get(i), admitted.get(i).get());
+		}
+		Assert.assertEquals(0, validator.getPendingCount());
+		UUID late = UUID.randomUUID();
+		Assert.assertEquals(late, validator.submit(1_000L, BinaryToken.createToken(pair.getPrivate(), late, 2_000L)).get());
+		Assert.assertEquals(3L, validator.getRejectedCount());
+		validator.close();
+	}
+
+	@Test
+	public void testValidationThrows() throws Throwable {
+		KeyPair pair = CryptoHelpers.generateRandomKeyPair();
+		TokenCache cache = new TokenCache(_keys(pair.getPublic()), 100) {
+			@Override
+			public UUID validateToken(long nowMillis, String encodedToken) {
+				throw new IllegalStateException("broken");
+			}
+		};
+		TokenBatchValidator validator = new TokenBatchValidator(cache, 1, 2);
+		CompletableFuture<UUID> future = validator.submit(1_000L, BinaryToken.createToken(pair.getPrivate(), UUID.randomUUID(), 2_000L));
+		try {
+			future.get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		Assert.assertEquals(0, validator.getPendingCount());
+		validator.close();
+	}
+
+	@Test
+	public void testSubmitAfterClose() throws Throwable {
+		KeyPair pair = CryptoHelpers.generateRandomKeyPair();
+		TokenBatchValidator validator = new TokenBatchValidator(new TokenCache(_keys(pair.getPublic()), 100), 1, 2);
+		validator.close();
+		CompletableFuture<UUID> future = validator.submit(1_000L, BinaryToken.createToken(pair.getPrivate(), UUID.randomUUID(), 2_000L));
+		Assert.assertTrue(future.isCompletedExceptionally());
+		try {
+			future.get();
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		// The permit was returned so the validator doesn't look busy.
+		Assert.assertEquals(0, validator.getPendingCount());
+		Assert.assertEquals(0L, validator.getRejectedCount());
+	}
+
+
+	private static TokenKeys _keys(PublicKey publicKey) {
+		return new TokenKeys(publicKey, Collections.emptyMap());
+	}
+}
@@ -0,0 +1,70 @@
+package com.jeffdisher.thinktank.crypto;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class TokenCacheTest {
+	@Test
+	public void testHitAndExpiry() throws Throwable {
+		KeyPair pair = CryptoHelpers.generateRandomKeyPair();
+		TokenCache cache = new TokenCache(_keys(pair.getPublic()), 10);
+		UUID uuid = UUID.randomUUID();
+		String token = BinaryToken.createToken(pair.getPrivate(), uuid, 2_000L);
+		
+		Assert.assertEquals(uuid, cache.validateToken(1_000L, token));
+		Assert.assertEquals(uuid, cache.validateToken(1_500L, token));
+		TokenCache.Metrics metrics = cache.getMetrics();
+		Assert.assertEquals(1L, metrics.hits);
+		Assert.assertEquals(1L, metrics.misses);
+		Assert.assertEquals(1, metrics.size);
+		
+		// Once expired, the cached entry is dropped and the token is rejected.
+		Assert.assertNull(cache.validateToken(2_000L, token));
+		metrics = cache.getMetrics();
+		Assert.assertEquals(2L, metrics.misses);
+		Assert.assertEquals(1L, metrics.evictions);
+		Assert.assertEquals(0, metrics.size);
+	}
+
+	@Test
+	public void testInvalidNotCached() throws Throwable {
+		KeyPair pair = CryptoHelpers.generateRandomKeyPair();
+		TokenCache cache = new TokenCache(_keys(CryptoHelpers.generateRandomKeyPair().getPublic()), 10);
+		String token = BinaryToken.createToken(pair.getPrivate(), UUID.randomUUID(), 2_000L);
+		
+		Assert.assertNull(cache.validateToken(1_000L, token));
+		Assert.assertNull(cache.validateToken(1_000L, token));
+		TokenCache.Metrics metrics = cache.getMetrics();
+		Assert.assertEquals(0L, metrics.hits);
+		Assert.assertEquals(2L, metrics.misses);
+		Assert.assertEquals(0, metrics.size);
+	}
+
+	@Test
+	public void testSizeBound() throws Throwable {
+		KeyPair pair = CryptoHelpers.generateRandomKeyPair();
+		TokenCache cache = new TokenCache(_keys(pair.getPublic()), 10);
+		// The first few expire early so they are purged first.
+		for (int i = 0; i < 25; ++i) {
+			long expiry = (i < 5) ? 1_500L : 5_000L;
+			String token = BinaryToken.createToken(pair.getPrivate(), UUID.randomUUID(), expiry);
+			long now = (i < 5) ? 1_000L : 2_000L;
+			Assert.assertNotNull(cache.validateToken(now, token));
+			Assert.assertTrue(cache.getMetrics().size <= 10);
+		}
+		TokenCache.Metrics metrics = cache.getMetrics();
+		Assert.assertEquals(25L, metrics.misses);
+		Assert.assertEquals(25L - metrics.size, metrics.evictions);
+	}
+
+
+	private static TokenKeys _keys(PublicKey publicKey) {
+		return new TokenKeys(publicKey, Collections.emptyMap());
+	}
+}
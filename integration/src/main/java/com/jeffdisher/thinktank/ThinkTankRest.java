@@ -1,9 +1,11 @@
 package com.jeffdisher.thinktank;
 
 import java.io.IOException;
-import java.security.KeyPair;
+import java.util.Collections;
 import java.util.concurrent.CountDownLatch;
 
+import javax.crypto.SecretKey;
+
 import org.eclipse.jetty.util.resource.ResourceCollection;
 
 import com.jeffdisher.breakwater.RestServer;
@@ -11,9 +13,13 @@ import com.jeffdisher.laminar.utils.Assert;
 import com.jeffdisher.thinktank.auth.AuthEntryPoints;
 import com.jeffdisher.thinktank.chat.ChatEntryPoints;
 import com.jeffdisher.thinktank.chat.ChatRest;
+import com.jeffdisher.thinktank.chat.ChatSnapshotter;
 import com.jeffdisher.thinktank.chat.ChatStore;
 import com.jeffdisher.thinktank.chat.IChatWriter;
 import com.jeffdisher.thinktank.crypto.CryptoHelpers;
+import com.jeffdisher.thinktank.crypto.TokenBatchValidator;
+import com.jeffdisher.thinktank.crypto.TokenCache;
+import com.jeffdisher.thinktank.crypto.TokenKeys;
 import com.jeffdisher.thinktank.exit.ExitEntryPoints;
 import com.jeffdisher.thinktank.utilities.MainHelpers;
 import com.jeffdisher.thinktank.utilities.ResourceHelpers;
@@ -23,6 +29,9 @@ public class ThinkTankRest {
 	private static final String ARG_HOSTNAME = "hostname";
 	private static final String ARG_PORT = "port";
 	private static final String ARG_LOCAL_ONLY = "local_only";
+	private static final String USAGE = "Usage: ThinkTankRest (--hostname|-h <hostname> --port|-p <port>)|--local_only|-l\n"
+			+ ChatRest.OPTIONS_USAGE;
+	private static final int MAC_KEY_ID = 0;
 
 	public static void main(String[] args) {
 		// The normal entry-point doesn't care about the latch so just create anything.
@@ -36,22 +45,25 @@ public class ThinkTankRest {
 
 	private static void _main(CountDownLatch bindLatch, String[] args) {
 		// Parse arguments.
-		String hostname = MainHelpers.getArgument(args, ARG_HOSTNAME);
-		String portString = MainHelpers.getArgument(args, ARG_PORT);
-		boolean localOnly = MainHelpers.getFlag(args, ARG_LOCAL_ONLY);
+		String hostname = MainHelpers.getArgument(args, ARG_HOSTNAME, 'h');
+		String portString = MainHelpers.getArgument(args, ARG_PORT, 'p');
+		boolean localOnly = MainHelpers.getFlag(args, ARG_LOCAL_ONLY, 'l');
 		if (!localOnly && (null == hostname)) {
-			MainHelpers.failStart("Missing hostname");
+			MainHelpers.failStart(USAGE, "Missing hostname");
 		}
 		if (!localOnly && (null == portString)) {
-			MainHelpers.failStart("Missing port");
+			MainHelpers.failStart(USAGE, "Missing port");
 		}
 		
-		// For now, keys are just generated internally.
-		KeyPair keyPair = CryptoHelpers.generateRandomKeyPair();
+		// For now, keys are just generated internally.  Since auth and chat run in the same process, they share a secret
+		// key so tokens are authenticated with a MAC, instead of signed.
+		SecretKey macKey = CryptoHelpers.generateRandomMacKey();
+		TokenKeys tokenKeys = new TokenKeys(null, Collections.singletonMap(MAC_KEY_ID, macKey));
 		
 		// Start the chat container (owns the Laminar connection).
-		ChatStore chatStore = new ChatStore();
-		IChatWriter chatWriter = ChatRest.buildChatWriter(chatStore, hostname, portString, localOnly);
+		ChatStore chatStore = ChatRest.buildChatStore(args);
+		IChatWriter chatWriter = ChatRest.buildChatWriter(chatStore, hostname, portString, localOnly, args);
+		ChatSnapshotter snapshotter = ChatRest.buildChatSnapshotter(chatStore, args);
 		
 		// Create the server and start it.
 		ResourceCollection combinedCollection;
@@ -69,8 +81,9 @@ public class ThinkTankRest {
 		CountDownLatch stopLatch = new CountDownLatch(1);
 		// Install all the entry-points.
 		ExitEntryPoints.registerEntryPoints(stopLatch, server);
-		AuthEntryPoints.registerEntryPoints(server, keyPair.getPrivate());
-		ChatEntryPoints.registerEntryPoints(server, chatStore, chatWriter, keyPair.getPublic());
+		AuthEntryPoints.registerEntryPoints(server, MAC_KEY_ID, macKey);
+		TokenBatchValidator tokenValidator = new TokenBatchValidator(new TokenCache(tokenKeys, TokenCache.DEFAULT_MAX_ENTRIES), Runtime.getRuntime().availableProcessors(), TokenBatchValidator.DEFAULT_MAX_PENDING);
+		ChatEntryPoints.registerEntryPoints(server, chatStore, chatWriter, tokenValidator);
 		server.start();
 		
 		// Count-down the latch in case we are part of a testing environment.
@@ -84,11 +97,16 @@ public class ThinkTankRest {
 			throw Assert.unexpected(e);
 		}
 		server.stop();
+		tokenValidator.close();
 		try {
 			chatWriter.close();
 		} catch (IOException e) {
 			// If this happens on shutdown, just print it.
 			e.printStackTrace();
 		}
+		if (null != snapshotter) {
+			snapshotter.close();
+		}
+		chatStore.close();
 	}
 }
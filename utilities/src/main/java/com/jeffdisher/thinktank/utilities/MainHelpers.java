@@ -3,37 +3,89 @@ package com.jeffdisher.thinktank.utilities;
 
 /**
  * Helpers for common main entry-point idioms.  This includes things like argument parsing and failure handling.
+ * Options are always matched by their long form ("--name").  A short form ("-n") is only matched if the caller asks
+ * for one, so adding an option can't silently change what an existing short form means.
  */
 public class MainHelpers {
+	/**
+	 * Finds the value of an option which only has a long form.
+	 * 
+	 * @param args The command-line arguments.
+	 * @param flag The name of the option (matched as "--flag").
+	 * @return The argument after the first match (null if the option wasn't given).
+	 */
 	public static String getArgument(String[] args, String flag) {
-		String check1 = "--" + flag;
-		String check2 = "-" + flag.substring(0, 1);
+		return _getArgument(args, "--" + flag, null);
+	}
+
+	/**
+	 * Finds the value of an option which also has a short form.
+	 * 
+	 * @param args The command-line arguments.
+	 * @param flag The name of the option (matched as "--flag").
+	 * @param shortFlag The short form of the option (matched as "-shortFlag").
+	 * @return The argument after the first match (null if the option wasn't given).
+	 */
+	public static String getArgument(String[] args, String flag, char shortFlag) {
+		return _getArgument(args, "--" + flag, "-" + shortFlag);
+	}
+
+	/**
+	 * Checks for a flag which only has a long form.
+	 * 
+	 * @param args The command-line arguments.
+	 * @param flag The name of the flag (matched as "--flag").
+	 * @return True if the flag was given.
+	 */
+	public static boolean getFlag(String[] args, String flag) {
+		return _getFlag(args, "--" + flag, null);
+	}
+
+	/**
+	 * Checks for a flag which also has a short form.
+	 * 
+	 * @param args The command-line arguments.
+	 * @param flag The name of the flag (matched as "--flag").
+	 * @param shortFlag The short form of the flag (matched as "-shortFlag").
+	 * @return True if the flag was given.
+	 */
+	public static boolean getFlag(String[] args, String flag, char shortFlag) {
+		return _getFlag(args, "--" + flag, "-" + shortFlag);
+	}
+
+	/**
+	 * Reports a problem with the command-line, and how to use it, and exits.
+	 * 
+	 * @param usage The usage text of the program being started.
+	 * @param problem The problem to report.
+	 * @return Never returns (this allows the caller to throw the result so flow control is explicit).
+	 */
+	public static RuntimeException failStart(String usage, String problem) {
+		System.err.println(problem);
+		System.err.println(usage);
+		System.exit(1);
+		// We never reach this point but it allows us to throw in the caller so flow control is explicit.
+		throw new RuntimeException();
+	}
+
+
+	private static String _getArgument(String[] args, String check1, String check2) {
 		String match = null;
 		for (int i = 0; (null == match) && (i < (args.length - 1)); ++i) {
-			if (check1.equals(args[i]) || check2.equals(args[i])) {
+			if (check1.equals(args[i]) || args[i].equals(check2)) {
 				match = args[i+1];
 			}
 		}
 		return match;
 	}
 
-	public static boolean getFlag(String[] args, String flag) {
-		String check1 = "--" + flag;
-		String check2 = "-" + flag.substring(0, 1);
+	private static boolean _getFlag(String[] args, String check1, String check2) {
 		boolean match = false;
 		for (int i = 0; !match && (i < args.length); ++i) {
-			if (check1.equals(args[i]) || check2.equals(args[i])) {
+			if (check1.equals(args[i]) || args[i].equals(check2)) {
 				match = true;
 			}
 		}
 		return match;
 	}
-
-	public static RuntimeException failStart(String problem) {
-		System.err.println(problem);
-		System.err.println("Usage: ThinkTankRest (--hostname <hostname> --port <port>)|--local_only");
-		System.exit(1);
-		// We never reach this point but it allows us to throw in the caller so flow control is explicit.
-		throw new RuntimeException();
-	}
 }
@@ -9,8 +9,11 @@ public class MainHelpersTest {
 	public void testArgumentParsing() throws Throwable {
 		String value = MainHelpers.getArgument(new String[] {"--adf", "--test", "value"}, "test");
 		Assert.assertEquals("value", value);
-		value = MainHelpers.getArgument(new String[] {"--adf", "-t", "value"}, "test");
+		value = MainHelpers.getArgument(new String[] {"--adf", "-t", "value"}, "test", 't');
 		Assert.assertEquals("value", value);
+		// Short forms are only matched when requested.
+		value = MainHelpers.getArgument(new String[] {"--adf", "-t", "value"}, "test");
+		Assert.assertEquals(null, value);
 		value = MainHelpers.getArgument(new String[] {"--adf", "--test", "value"}, "not");
 		Assert.assertEquals(null, value);
 		value = MainHelpers.getArgument(new String[] {"--adf", "--test", "value", "--test", "value2"}, "test");
@@ -20,5 +23,9 @@ public class MainHelpersTest {
 		Assert.assertTrue(flag);
 		flag = MainHelpers.getFlag(new String[] {"--adf", "--test", "value"}, "not");
 		Assert.assertFalse(flag);
+		flag = MainHelpers.getFlag(new String[] {"--adf", "-t"}, "test", 't');
+		Assert.assertTrue(flag);
+		flag = MainHelpers.getFlag(new String[] {"--adf", "-t"}, "test");
+		Assert.assertFalse(flag);
 	}
 }